@@ -0,0 +1,89 @@
+package qupath.ext.template;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic inputs shared by the benchmarks, generated from a fixed seed so runs are comparable.
+ */
+final class BenchmarkData {
+
+    private BenchmarkData() {
+    }
+
+    // Text that compresses like Python source
+    static String pythonSource(Random random, int length) {
+        String[] words = {"def", "return", "self", "import", "torch", "np", "for", "in", "range", "if", "else",
+                "output", "input", "heatmap", "radius", "=", "(", ")", ":", "\n    ", "\n"};
+        StringBuilder sb = new StringBuilder(length + 16);
+        while (sb.length() < length) {
+            sb.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Circles as several models would find them: each glomerulus is detected by most models,
+     * with a little jitter, and there are some single-model false positives.
+     */
+    static List<CircleDetection> modelCircles(Random random, int nGlomeruli, int nModels, int width, int height) {
+        List<CircleDetection> circles = new ArrayList<>();
+        for (int i = 0; i < nGlomeruli; i++) {
+            double x = random.nextDouble() * width;
+            double y = random.nextDouble() * height;
+            double r = 40 + random.nextDouble() * 60;
+            for (int m = 0; m < nModels; m++) {
+                if (random.nextDouble() < 0.85) {
+                    circles.add(new CircleDetection(x + random.nextGaussian() * 3, y + random.nextGaussian() * 3,
+                            r * (1 + random.nextGaussian() * 0.05), 0.3 + random.nextDouble() * 0.7, m, 1));
+                }
+            }
+            if (random.nextDouble() < 0.1) {
+                circles.add(new CircleDetection(random.nextDouble() * width, random.nextDouble() * height,
+                        40 + random.nextDouble() * 60, 0.3 + random.nextDouble() * 0.2, random.nextInt(nModels), 1));
+            }
+        }
+        return circles;
+    }
+
+    // A FeatureCollection of circle annotations, as written by the export or the Python script
+    static byte[] geoJson(int nObjects) {
+        Random random = new Random(42);
+        int side = (int) Math.ceil(Math.sqrt(nObjects)) * 250;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GeoJsonStreamWriter writer = new GeoJsonStreamWriter(bytes)) {
+            List<CircleDetection> batch = new ArrayList<>();
+            for (int i = 0; i < nObjects; i++) {
+                batch.add(new CircleDetection(random.nextDouble() * side, random.nextDouble() * side,
+                        40 + random.nextDouble() * 60, random.nextDouble(), -1, 3));
+                if (batch.size() == 1000 || i == nObjects - 1) {
+                    writer.write(batch.stream().map(CircleDetection::toPathObject).toList());
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        if (path == null || !Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package qupath.ext.template;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fusing the circles of several models, in one go and tile by tile as the detection pipeline does,
+ * and building the tile grid of a whole slide.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CircleFusionBenchmark {
+
+    private static final int N_MODELS = 3;
+    private static final double IOU_THRESHOLD = 0.3;
+    private static final int TILE_SIZE = 512;
+    private static final int OVERLAP = 64;
+    private static final int STEP = TILE_SIZE - OVERLAP;
+
+    @Param({"1000", "10000", "100000"})
+    public int glomeruli;
+
+    private int width;
+    private int height;
+    private List<CircleDetection> circles;
+    private List<DetectionTile> tiles;
+    private List<List<CircleDetection>> circlesPerTile;
+
+    @Setup(Level.Trial)
+    public void createCircles() {
+        // Roughly the density of glomeruli in a kidney section
+        width = (int) Math.sqrt(glomeruli * 1500.0 * 1500.0 / 4);
+        height = width;
+        circles = BenchmarkData.modelCircles(new Random(42), glomeruli, N_MODELS, width, height);
+        tiles = new TileGrid(TILE_SIZE, OVERLAP, 1.0).createTiles("bench", width, height);
+
+        // Each tile sees every circle centred inside it, as the models would report them
+        circlesPerTile = new ArrayList<>(tiles.size());
+        for (int i = 0; i < tiles.size(); i++) {
+            circlesPerTile.add(new ArrayList<>());
+        }
+        int nColumns = (int) tiles.stream().filter(t -> t.getRow() == 0).count();
+        for (CircleDetection circle : circles) {
+            // Tiles start every STEP pixels and are TILE_SIZE wide, so at most two rows and columns contain a point
+            int maxRow = (int) (circle.getY() / STEP);
+            int maxColumn = (int) (circle.getX() / STEP);
+            for (int row = Math.max(0, (int) ((circle.getY() - TILE_SIZE) / STEP)); row <= maxRow; row++) {
+                for (int column = Math.max(0, (int) ((circle.getX() - TILE_SIZE) / STEP)); column <= maxColumn; column++) {
+                    int index = row * nColumns + column;
+                    if (column < nColumns && index < tiles.size() && contains(tiles.get(index), circle)) {
+                        circlesPerTile.get(index).add(circle);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean contains(DetectionTile tile, CircleDetection circle) {
+        var request = tile.getRequest();
+        return circle.getX() >= request.getX() && circle.getX() < request.getX() + request.getWidth()
+                && circle.getY() >= request.getY() && circle.getY() < request.getY() + request.getHeight();
+    }
+
+    @Benchmark
+    public List<CircleDetection> fuse() {
+        return new CircleFusion(IOU_THRESHOLD, N_MODELS).fuse(circles);
+    }
+
+    @Benchmark
+    public void fuseStreaming(Blackhole blackhole) throws IOException {
+        StreamingCircleFusion fusion = new StreamingCircleFusion(new CircleFusion(IOU_THRESHOLD, N_MODELS),
+                tiles, width, height, blackhole::consume);
+        for (int i = 0; i < tiles.size(); i++) {
+            fusion.add(tiles.get(i), circlesPerTile.get(i));
+            double nextY = i + 1 < tiles.size() ? tiles.get(i + 1).getRequest().getY() : Double.POSITIVE_INFINITY;
+            fusion.advance(nextY);
+        }
+        fusion.finish();
+    }
+
+    @Benchmark
+    public List<DetectionTile> createTiles() {
+        return new TileGrid(TILE_SIZE, OVERLAP, 1.0).createTiles("bench", width, height);
+    }
+
+}
@@ -0,0 +1,84 @@
+package qupath.ext.template;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloading a model-sized file from a local HTTP server, so only the client side is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DownloadBenchmark {
+
+    @Param({"1", "64"})
+    public int sizeMB;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private String url;
+    private Path root;
+    private Path destination;
+    private final GLOMainCommand command = new GLOMainCommand(null);
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        byte[] body = new byte[sizeMB * 1024 * 1024];
+        new Random(42).nextBytes(body);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/model.pth", exchange -> {
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        executor = Executors.newFixedThreadPool(4);
+        server.setExecutor(executor);
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/model.pth";
+        root = Files.createTempDirectory("circlenet-download-bench");
+    }
+
+    @Setup(Level.Invocation)
+    public void createDestination() throws IOException {
+        destination = Files.createTempDirectory(root, "out").resolve("model.pth");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteDestination() throws IOException {
+        BenchmarkData.deleteRecursively(destination.getParent());
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        server.stop(0);
+        executor.shutdownNow();
+        BenchmarkData.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public void downloadFile() throws IOException {
+        command.downloadFile(url, destination.toString());
+    }
+
+}
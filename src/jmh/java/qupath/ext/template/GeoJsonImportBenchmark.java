@@ -0,0 +1,71 @@
+package qupath.ext.template;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading detections from GeoJSON and adding them to a hierarchy, in the same batches as the import.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class GeoJsonImportBenchmark {
+
+    private static final int BATCH_SIZE = 500;
+
+    @Param({"1000", "10000", "100000"})
+    public int detections;
+
+    private byte[] geoJson;
+    private List<List<PathObject>> batches;
+
+    @Setup(Level.Trial)
+    public void createGeoJson() {
+        geoJson = BenchmarkData.geoJson(detections);
+    }
+
+    // Objects can only belong to one hierarchy, so the insert benchmark needs new ones every time
+    @Setup(Level.Invocation)
+    public void parseBatches() throws IOException {
+        batches = new ArrayList<>();
+        new GeoJsonStreamReader(BATCH_SIZE).read(new ByteArrayInputStream(geoJson), batches::add);
+    }
+
+    @Benchmark
+    public int parse(Blackhole blackhole) throws IOException {
+        return new GeoJsonStreamReader(BATCH_SIZE).read(new ByteArrayInputStream(geoJson), blackhole::consume);
+    }
+
+    @Benchmark
+    public PathObjectHierarchy insert() {
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        for (List<PathObject> batch : batches) {
+            hierarchy.addObjects(batch);
+        }
+        return hierarchy;
+    }
+
+    @Benchmark
+    public PathObjectHierarchy parseAndInsert() throws IOException {
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        new GeoJsonStreamReader(BATCH_SIZE).read(new ByteArrayInputStream(geoJson), hierarchy::addObjects);
+        return hierarchy;
+    }
+
+}
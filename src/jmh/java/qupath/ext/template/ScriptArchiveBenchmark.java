@@ -0,0 +1,83 @@
+package qupath.ext.template;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Extracting an archive shaped like the CircleNet scripts: many small source files and a few large binaries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ScriptArchiveBenchmark {
+
+    @Param({"500"})
+    public int sourceFiles;
+
+    @Param({"4"})
+    public int binaryFiles;
+
+    private Path root;
+    private Path zip;
+    private Path destination;
+    private final GLOMainCommand command = new GLOMainCommand(null);
+
+    @Setup(Level.Trial)
+    public void createArchive() throws IOException {
+        root = Files.createTempDirectory("circlenet-unzip-bench");
+        zip = root.resolve("python_scripts.zip");
+        Random random = new Random(42);
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            for (int i = 0; i < sourceFiles; i++) {
+                out.putNextEntry(new ZipEntry("CircleNet/src/lib/module" + (i % 20) + "/file" + i + ".py"));
+                out.write(BenchmarkData.pythonSource(random, 20_000).getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+            byte[] binary = new byte[8 * 1024 * 1024];
+            for (int i = 0; i < binaryFiles; i++) {
+                random.nextBytes(binary);
+                out.putNextEntry(new ZipEntry("CircleNet/src/lib/external/binary" + i + ".so"));
+                out.write(binary);
+                out.closeEntry();
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createDestination() throws IOException {
+        destination = Files.createTempDirectory(root, "out");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteDestination() throws IOException {
+        BenchmarkData.deleteRecursively(destination);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteArchive() throws IOException {
+        BenchmarkData.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public void unzipFile() throws IOException {
+        command.unzipFile(zip.toString(), destination.toString());
+    }
+
+}
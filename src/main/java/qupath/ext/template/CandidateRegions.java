@@ -0,0 +1,89 @@
+package qupath.ext.template;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Boxes around the glomeruli found by a coarse pass, used to pick the full-resolution tiles worth running.
+ * <p>
+ * Circles found at a coarse downsample are only roughly placed and sized, so each box is the circle's
+ * bounding box with some padding. A tile is kept if the part of it whose circles it keeps touches a box,
+ * so the tile that will report the refined circle is always run. The boxes are indexed in a coarse
+ * grid of buckets, so filtering a large slide is not a full scan of every box for every tile.
+ */
+public class CandidateRegions {
+
+    // Padding around each candidate, as a fraction of its radius
+    private static final double PADDING = 0.25;
+
+    // Side of the buckets the boxes are indexed by, in full-resolution pixels
+    private static final double BUCKET_SIZE = 4096;
+
+    private final Map<Long, List<Rectangle2D>> buckets = new HashMap<>();
+    private final int count;
+
+    /**
+     * @param candidates circles found by the coarse pass
+     * @param minPadding least padding around each circle, in full-resolution pixels, e.g. a few pixels of the coarse pass
+     */
+    public CandidateRegions(Collection<CircleDetection> candidates, double minPadding) {
+        for (CircleDetection circle : candidates) {
+            double half = circle.getRadius() + Math.max(circle.getRadius() * PADDING, minPadding);
+            Rectangle2D box = new Rectangle2D.Double(circle.getX() - half, circle.getY() - half, half * 2, half * 2);
+            for (int by = bucket(box.getMinY()); by <= bucket(box.getMaxY()); by++) {
+                for (int bx = bucket(box.getMinX()); bx <= bucket(box.getMaxX()); bx++) {
+                    buckets.computeIfAbsent(key(bx, by), k -> new ArrayList<>()).add(box);
+                }
+            }
+        }
+        this.count = candidates.size();
+    }
+
+    // Tiles whose kept part touches at least one candidate
+    public List<DetectionTile> filterTiles(List<DetectionTile> tiles) {
+        List<DetectionTile> filtered = new ArrayList<>();
+        for (DetectionTile tile : tiles) {
+            if (intersects(tile)) {
+                filtered.add(tile);
+            }
+        }
+        return filtered;
+    }
+
+    private boolean intersects(DetectionTile tile) {
+        double width = tile.getKeepMaxX() - tile.getKeepMinX();
+        double height = tile.getKeepMaxY() - tile.getKeepMinY();
+        for (int by = bucket(tile.getKeepMinY()); by <= bucket(tile.getKeepMaxY()); by++) {
+            for (int bx = bucket(tile.getKeepMinX()); bx <= bucket(tile.getKeepMaxX()); bx++) {
+                List<Rectangle2D> boxes = buckets.get(key(bx, by));
+                if (boxes == null) {
+                    continue;
+                }
+                for (Rectangle2D box : boxes) {
+                    if (box.intersects(tile.getKeepMinX(), tile.getKeepMinY(), width, height)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // Number of candidate circles
+    public int size() {
+        return count;
+    }
+
+    private static int bucket(double coordinate) {
+        return (int) Math.floor(coordinate / BUCKET_SIZE);
+    }
+
+    private static long key(int bx, int by) {
+        return ((long) bx << 32) | (by & 0xffffffffL);
+    }
+
+}
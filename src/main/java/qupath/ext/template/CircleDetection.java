@@ -0,0 +1,165 @@
+package qupath.ext.template;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.List;
+
+/**
+ * A single circle found by CircleNet, in full-resolution image coordinates.
+ * <p>
+ * {@code model} is the index of the checkpoint that produced the circle, or -1 once circles
+ * from several models have been fused; {@code nModels} is the number of models that agree.
+ */
+public class CircleDetection {
+
+    public static final String PATH_CLASS_NAME = "Glomerulus";
+
+    public static final String MEASUREMENT_SCORE = "CircleNet score";
+    public static final String MEASUREMENT_RADIUS = "CircleNet radius";
+    public static final String MEASUREMENT_AGREEMENT = "CircleNet model agreement";
+
+    private final double x;
+    private final double y;
+    private final double radius;
+    private final double score;
+    private final int model;
+    private final int nModels;
+
+    public CircleDetection(double x, double y, double radius, double score, int model, int nModels) {
+        this.x = x;
+        this.y = y;
+        this.radius = radius;
+        this.score = score;
+        this.model = model;
+        this.nModels = nModels;
+    }
+
+    /**
+     * Parse a worker record of the form
+     * {@code C <tab> id <tab> x <tab> y <tab> radius <tab> score <tab> model <tab> n_models}.
+     * @throws IllegalArgumentException if the record is malformed
+     */
+    public static CircleDetection parseRecord(String line) {
+        String[] parts = line.split("\t");
+        if (parts.length != 8 || !"C".equals(parts[0])) {
+            throw new IllegalArgumentException("Invalid circle record: " + line);
+        }
+        return new CircleDetection(
+                Double.parseDouble(parts[2]),
+                Double.parseDouble(parts[3]),
+                Double.parseDouble(parts[4]),
+                Double.parseDouble(parts[5]),
+                Integer.parseInt(parts[6]),
+                Integer.parseInt(parts[7]));
+    }
+
+    // Request id of a worker record, without parsing the rest of it
+    public static long parseRecordId(String line) {
+        int start = line.indexOf('\t') + 1;
+        int end = line.indexOf('\t', start);
+        return Long.parseLong(line.substring(start, end));
+    }
+
+    // Create an annotation with a circular ROI, matching what the GeoJSON import produces
+    public PathObject toPathObject() {
+        ROI roi = ROIs.createEllipseROI(x - radius, y - radius, radius * 2, radius * 2, ImagePlane.getDefaultPlane());
+        PathObject pathObject = PathObjects.createAnnotationObject(roi, PathClass.fromString(PATH_CLASS_NAME));
+        try (MeasurementList measurements = pathObject.getMeasurementList()) {
+            measurements.put(MEASUREMENT_SCORE, score);
+            measurements.put(MEASUREMENT_RADIUS, radius);
+            measurements.put(MEASUREMENT_AGREEMENT, nModels);
+        }
+        return pathObject;
+    }
+
+    // Create a detection instead, which is much lighter to store, draw and place in the hierarchy than an annotation
+    public PathObject toDetectionObject() {
+        ROI roi = ROIs.createEllipseROI(x - radius, y - radius, radius * 2, radius * 2, ImagePlane.getDefaultPlane());
+        // Float storage is plenty for these values and halves the size of the list
+        MeasurementList measurements = MeasurementListFactory.createMeasurementList(3, MeasurementList.MeasurementListType.FLOAT);
+        measurements.put(MEASUREMENT_SCORE, score);
+        measurements.put(MEASUREMENT_RADIUS, radius);
+        measurements.put(MEASUREMENT_AGREEMENT, nModels);
+        measurements.close();
+        return PathObjects.createDetectionObject(roi, PathClass.fromString(PATH_CLASS_NAME), measurements);
+    }
+
+    public PathObject toPathObject(boolean asDetection) {
+        return asDetection ? toDetectionObject() : toPathObject();
+    }
+
+    // Turn an object read from GeoJSON into a detection with the same ROI, class and measurements
+    public static PathObject toDetectionObject(PathObject pathObject) {
+        MeasurementList source = pathObject.getMeasurementList();
+        List<String> names = source.getMeasurementNames();
+        MeasurementList measurements = MeasurementListFactory.createMeasurementList(names.size(), MeasurementList.MeasurementListType.FLOAT);
+        for (String name : names) {
+            measurements.put(name, source.get(name));
+        }
+        measurements.close();
+        return PathObjects.createDetectionObject(pathObject.getROI(), pathObject.getPathClass(), measurements);
+    }
+
+    /**
+     * Tag an object read from the CircleNet script's GeoJSON the same way as the circles created here,
+     * so a later run recognises it. The script doesn't write the score, which is left as NaN if missing.
+     */
+    public static void tagScriptObject(PathObject pathObject) {
+        if (pathObject.getROI() == null) {
+            return;
+        }
+        if (pathObject.getPathClass() == null) {
+            pathObject.setPathClass(PathClass.fromString(PATH_CLASS_NAME));
+        }
+        try (MeasurementList measurements = pathObject.getMeasurementList()) {
+            if (!measurements.containsKey(MEASUREMENT_SCORE)) {
+                measurements.put(MEASUREMENT_SCORE, Double.NaN);
+            }
+            if (!measurements.containsKey(MEASUREMENT_RADIUS)) {
+                measurements.put(MEASUREMENT_RADIUS, pathObject.getROI().getBoundsWidth() / 2);
+            }
+        }
+    }
+
+    // Whether an object was created by CircleNet with any engine, rather than drawn by hand
+    public static boolean isCircleNetObject(PathObject pathObject) {
+        return pathObject.getROI() != null && pathObject.getMeasurementList().containsKey(MEASUREMENT_SCORE);
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    public int getModel() {
+        return model;
+    }
+
+    public int getModelCount() {
+        return nModels;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Circle[x=%.1f, y=%.1f, r=%.1f, score=%.3f, model=%d, n=%d]", x, y, radius, score, model, nModels);
+    }
+
+}
@@ -0,0 +1,430 @@
+package qupath.ext.template;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Weighted circle fusion of the detections of several models and overlapping tiles, the Java
+ * counterpart of {@code fuse_circles} in the worker script.
+ * <p>
+ * Candidates are first split into clusters: connected groups of circles overlapping by more than the
+ * IoU threshold. Overlapping pairs are found with a uniform grid whose cells are as wide as nearly every
+ * circle, so each circle is only compared with those in the 3x3 cells around it rather than with every
+ * other circle. The cell size ignores the largest few circles, so one huge false positive can't make the
+ * cells so big that everything is compared with everything; those circles search the cells within their
+ * own reach instead. Within a cluster, circles are visited from the highest score down and each joins the first
+ * fused circle it overlaps by more than the threshold, which is re-fused as the score-weighted mean.
+ * The fused score is scaled by the fraction of models that agree.
+ * <p>
+ * Finding overlaps and fusing clusters are both split across the common fork-join pool for large inputs.
+ */
+public class CircleFusion {
+
+    // Below this many candidates or clusters a task runs on the calling thread
+    private static final int SEQUENTIAL_THRESHOLD = 4096;
+
+    // Percentile of the radii the grid cells are sized for, larger circles are outsized
+    private static final double CELL_PERCENTILE = 0.95;
+
+    private final double iouThreshold;
+    private final int nModels;
+
+    /**
+     * @param iouThreshold minimum IoU for two circles to be fused
+     * @param nModels number of models in the ensemble, used to scale scores by agreement
+     */
+    public CircleFusion(double iouThreshold, int nModels) {
+        this.iouThreshold = iouThreshold;
+        this.nModels = Math.max(1, nModels);
+    }
+
+    /**
+     * Fuse candidate circles.
+     * @param candidates circles from any model and tile, with {@link CircleDetection#getModel()} set to the model index
+     * @return fused circles, with model set to -1 and the number of agreeing models
+     */
+    public List<CircleDetection> fuse(List<CircleDetection> candidates) {
+        return fuseClusters(findClusters(candidates));
+    }
+
+    /**
+     * Split candidates into connected groups of circles that overlap by more than the IoU threshold.
+     * Circles in different clusters are never fused together.
+     */
+    public List<List<CircleDetection>> findClusters(List<CircleDetection> candidates) {
+        int n = candidates.size();
+        if (n == 0) {
+            return new ArrayList<>();
+        }
+        SpatialGrid grid = new SpatialGrid(candidates);
+        List<int[]> pairs = invoke(new OverlapTask(grid, candidates, 0, n));
+
+        UnionFind unionFind = new UnionFind(n);
+        for (int[] pair : pairs) {
+            unionFind.union(pair[0], pair[1]);
+        }
+        Map<Integer, List<CircleDetection>> clusters = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            clusters.computeIfAbsent(unionFind.find(i), k -> new ArrayList<>()).add(candidates.get(i));
+        }
+        return new ArrayList<>(clusters.values());
+    }
+
+    // Fuse each cluster independently
+    public List<CircleDetection> fuseClusters(List<List<CircleDetection>> clusters) {
+        if (clusters.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return invoke(new FuseTask(clusters, 0, clusters.size()));
+    }
+
+    private static <T> List<T> invoke(RecursiveTask<List<T>> task) {
+        // Already inside the pool (e.g. called from a parallel stream), so just run it
+        if (ForkJoinTask.inForkJoinPool()) {
+            return task.invoke();
+        }
+        return ForkJoinPool.commonPool().invoke(task);
+    }
+
+    // Greedy fusion of one cluster, in score order
+    private List<CircleDetection> fuseCluster(List<CircleDetection> cluster) {
+        if (cluster.size() == 1) {
+            CircleDetection circle = cluster.get(0);
+            return List.of(createFused(circle.getX(), circle.getY(), circle.getRadius(), circle.getScore(), agreement(circle)));
+        }
+        List<CircleDetection> sorted = new ArrayList<>(cluster);
+        sorted.sort(Comparator.comparingDouble(CircleDetection::getScore).reversed());
+        List<Fused> fused = new ArrayList<>();
+        for (CircleDetection circle : sorted) {
+            Fused match = null;
+            for (Fused candidate : fused) {
+                if (iou(candidate.x, candidate.y, candidate.r, circle) > iouThreshold) {
+                    match = candidate;
+                    break;
+                }
+            }
+            if (match == null) {
+                fused.add(new Fused(circle));
+            } else {
+                match.add(circle);
+            }
+        }
+        List<CircleDetection> result = new ArrayList<>(fused.size());
+        for (Fused f : fused) {
+            result.add(createFused(f.x, f.y, f.r, f.sumScore / f.size, f.agreement()));
+        }
+        return result;
+    }
+
+    private CircleDetection createFused(double x, double y, double r, double meanScore, int agreement) {
+        return new CircleDetection(x, y, r, meanScore * Math.min(agreement, nModels) / nModels, -1, agreement);
+    }
+
+    // Models a single candidate speaks for; circles fused earlier keep their agreement
+    private static int agreement(CircleDetection circle) {
+        return circle.getModel() < 0 ? circle.getModelCount() : 1;
+    }
+
+    // Intersection over union of two circles
+    public static double iou(double x1, double y1, double r1, CircleDetection other) {
+        double r2 = other.getRadius();
+        double dx = x1 - other.getX();
+        double dy = y1 - other.getY();
+        double d2 = dx * dx + dy * dy;
+        if (d2 >= (r1 + r2) * (r1 + r2)) {
+            return 0;
+        }
+        double d = Math.sqrt(d2);
+        double intersection;
+        if (d <= Math.abs(r1 - r2)) {
+            double r = Math.min(r1, r2);
+            intersection = Math.PI * r * r;
+        } else {
+            double a1 = r1 * r1 * Math.acos((d * d + r1 * r1 - r2 * r2) / (2 * d * r1));
+            double a2 = r2 * r2 * Math.acos((d * d + r2 * r2 - r1 * r1) / (2 * d * r2));
+            double a3 = 0.5 * Math.sqrt(Math.max(0, (-d + r1 + r2) * (d + r1 - r2) * (d - r1 + r2) * (d + r1 + r2)));
+            intersection = a1 + a2 - a3;
+        }
+        double union = Math.PI * (r1 * r1 + r2 * r2) - intersection;
+        return union > 0 ? intersection / union : 0;
+    }
+
+    /**
+     * Uniform grid over circle centres. Cells are as wide as the diameter of all but the largest few circles,
+     * so any two overlapping circles that both fit in a cell are in the same or adjacent cells.
+     */
+    private static class SpatialGrid {
+
+        private final double cellSize;
+        private final double minX;
+        private final double minY;
+        private final int nColumns;
+        private final int nRows;
+        private final Map<Long, List<Integer>> cells = new HashMap<>();
+
+        private SpatialGrid(List<CircleDetection> circles) {
+            double[] radii = new double[circles.size()];
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < radii.length; i++) {
+                CircleDetection circle = circles.get(i);
+                radii[i] = circle.getRadius();
+                minX = Math.min(minX, circle.getX());
+                minY = Math.min(minY, circle.getY());
+                maxX = Math.max(maxX, circle.getX());
+                maxY = Math.max(maxY, circle.getY());
+            }
+            Arrays.sort(radii);
+            double cellRadius = radii.length == 0 ? 0 : radii[(int) Math.ceil(CELL_PERCENTILE * (radii.length - 1))];
+            this.cellSize = Math.max(1, 2 * cellRadius);
+            this.minX = minX;
+            this.minY = minY;
+            this.nColumns = column(maxX) + 1;
+            this.nRows = row(maxY) + 1;
+            for (int i = 0; i < circles.size(); i++) {
+                CircleDetection circle = circles.get(i);
+                cells.computeIfAbsent(key(column(circle.getX()), row(circle.getY())), k -> new ArrayList<>()).add(i);
+            }
+        }
+
+        private int column(double x) {
+            return (int) ((x - minX) / cellSize);
+        }
+
+        private int row(double y) {
+            return (int) ((y - minY) / cellSize);
+        }
+
+        // Row-major cell index, which also hashes well (packing x and y into the high and low bits doesn't)
+        private long key(int column, int row) {
+            return (long) row * nColumns + column;
+        }
+
+        private List<Integer> get(int column, int row) {
+            if (column < 0 || column >= nColumns || row < 0) {
+                return null;
+            }
+            return cells.get(key(column, row));
+        }
+
+        // Too large for the 3x3 cells around it to hold every circle it overlaps
+        private boolean isOutsized(CircleDetection circle) {
+            return 2 * circle.getRadius() > cellSize;
+        }
+
+        // Cells holding every centre within a distance of a point, or all of them if that is fewer to visit
+        private Collection<List<Integer>> getCellsNear(double x, double y, double distance) {
+            int minColumn = Math.max(0, column(x - distance));
+            int maxColumn = Math.min(nColumns - 1, column(x + distance));
+            int minRow = Math.max(0, row(y - distance));
+            int maxRow = Math.min(nRows - 1, row(y + distance));
+            if ((long) (maxColumn - minColumn + 1) * (maxRow - minRow + 1) >= cells.size()) {
+                return cells.values();
+            }
+            List<List<Integer>> near = new ArrayList<>();
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int column = minColumn; column <= maxColumn; column++) {
+                    List<Integer> cell = cells.get(key(column, row));
+                    if (cell != null) {
+                        near.add(cell);
+                    }
+                }
+            }
+            return near;
+        }
+
+    }
+
+    /**
+     * Finds overlapping pairs (i, j) with i < j for a range of candidates.
+     */
+    private class OverlapTask extends RecursiveTask<List<int[]>> {
+
+        private final SpatialGrid grid;
+        private final List<CircleDetection> circles;
+        private final int start;
+        private final int end;
+
+        private OverlapTask(SpatialGrid grid, List<CircleDetection> circles, int start, int end) {
+            this.grid = grid;
+            this.circles = circles;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected List<int[]> compute() {
+            if (end - start > SEQUENTIAL_THRESHOLD) {
+                int mid = (start + end) >>> 1;
+                OverlapTask left = new OverlapTask(grid, circles, start, mid);
+                left.fork();
+                List<int[]> pairs = new OverlapTask(grid, circles, mid, end).compute();
+                pairs.addAll(left.join());
+                return pairs;
+            }
+            List<int[]> pairs = new ArrayList<>();
+            for (int i = start; i < end; i++) {
+                CircleDetection circle = circles.get(i);
+                if (grid.isOutsized(circle)) {
+                    addOutsizedPairs(i, pairs);
+                    continue;
+                }
+                int cx = grid.column(circle.getX());
+                int cy = grid.row(circle.getY());
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        List<Integer> cell = grid.get(cx + dx, cy + dy);
+                        if (cell == null) {
+                            continue;
+                        }
+                        for (int j : cell) {
+                            if (j > i && iou(circle.getX(), circle.getY(), circle.getRadius(), circles.get(j)) > iouThreshold) {
+                                pairs.add(new int[]{i, j});
+                            }
+                        }
+                    }
+                }
+            }
+            return pairs;
+        }
+
+        // An outsized circle finds every circle up to its own size it overlaps, larger ones find it in turn.
+        // A circle that is no larger can only overlap it with its centre closer than twice its radius
+        private void addOutsizedPairs(int i, List<int[]> pairs) {
+            CircleDetection circle = circles.get(i);
+            double radius = circle.getRadius();
+            for (List<Integer> cell : grid.getCellsNear(circle.getX(), circle.getY(), 2 * radius + grid.cellSize)) {
+                for (int j : cell) {
+                    double other = circles.get(j).getRadius();
+                    if ((other < radius || (other == radius && j > i))
+                            && iou(circle.getX(), circle.getY(), radius, circles.get(j)) > iouThreshold) {
+                        pairs.add(new int[]{i, j});
+                    }
+                }
+            }
+        }
+
+    }
+
+    private class FuseTask extends RecursiveTask<List<CircleDetection>> {
+
+        private final List<List<CircleDetection>> clusters;
+        private final int start;
+        private final int end;
+
+        private FuseTask(List<List<CircleDetection>> clusters, int start, int end) {
+            this.clusters = clusters;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected List<CircleDetection> compute() {
+            if (end - start > SEQUENTIAL_THRESHOLD) {
+                int mid = (start + end) >>> 1;
+                FuseTask left = new FuseTask(clusters, start, mid);
+                left.fork();
+                List<CircleDetection> fused = new FuseTask(clusters, mid, end).compute();
+                fused.addAll(0, left.join());
+                return fused;
+            }
+            List<CircleDetection> fused = new ArrayList<>();
+            for (int i = start; i < end; i++) {
+                fused.addAll(fuseCluster(clusters.get(i)));
+            }
+            return fused;
+        }
+
+    }
+
+    private static class UnionFind {
+
+        private final int[] parent;
+
+        private UnionFind(int n) {
+            parent = new int[n];
+            for (int i = 0; i < n; i++) {
+                parent[i] = i;
+            }
+        }
+
+        private int find(int i) {
+            while (parent[i] != i) {
+                parent[i] = parent[parent[i]];
+                i = parent[i];
+            }
+            return i;
+        }
+
+        private void union(int a, int b) {
+            int rootA = find(a);
+            int rootB = find(b);
+            if (rootA != rootB) {
+                parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+            }
+        }
+
+    }
+
+    /**
+     * Running score-weighted mean of the circles fused so far.
+     */
+    private static class Fused {
+
+        private double sumX;
+        private double sumY;
+        private double sumR;
+        private double sumScore;
+        private int size;
+        private int models;
+        private int prefused;
+        private double x;
+        private double y;
+        private double r;
+
+        private Fused(CircleDetection circle) {
+            add(circle);
+        }
+
+        private void add(CircleDetection circle) {
+            double w = circle.getScore();
+            sumX += circle.getX() * w;
+            sumY += circle.getY() * w;
+            sumR += circle.getRadius() * w;
+            sumScore += w;
+            size++;
+            if (circle.getModel() >= 0) {
+                models |= 1 << circle.getModel();
+            } else {
+                prefused = Math.max(prefused, circle.getModelCount());
+            }
+            // Zero scores would otherwise leave the mean undefined
+            if (sumScore > 0) {
+                x = sumX / sumScore;
+                y = sumY / sumScore;
+                r = sumR / sumScore;
+            } else {
+                x = circle.getX();
+                y = circle.getY();
+                r = circle.getRadius();
+            }
+        }
+
+        // Distinct models in the fused circle, so the same model seen in two overlapping tiles counts once
+        private int agreement() {
+            return Math.max(Integer.bitCount(models), prefused);
+        }
+
+    }
+
+}
@@ -0,0 +1,215 @@
+package qupath.ext.template;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Runs CircleNet without the QuPath GUI, from scripts and headless batch runs
+ * such as {@code QuPath script} on a compute node.
+ * <p>
+ * Detection runs on the calling thread, and the hierarchy is updated directly as other QuPath scripts do.
+ * Nothing needs the JavaFX toolkit, so no display is required. Interrupting the thread stops the run
+ * and kills any Python process it started. For example, in Groovy:
+ * <pre>
+ * import qupath.ext.template.*
+ *
+ * def options = new DetectionOptions(useOnnxEngine: true, importAsDetections: true)
+ * def result = new CircleNetDetector(options).detect(getCurrentImageData())
+ * print result.getCount() + ' glomeruli'
+ * </pre>
+ * or, for every image of a project, {@code new CircleNetDetector(options).detectProject(getProject())}.
+ */
+public class CircleNetDetector {
+
+    private static final Logger logger = LoggerFactory.getLogger(CircleNetDetector.class);
+
+    private final GLOMainCommand command = new GLOMainCommand(null);
+    private final DetectionOptions options;
+
+    // Run with the current preferences
+    public CircleNetDetector() {
+        this(DetectionOptions.fromPreferences());
+    }
+
+    public CircleNetDetector(DetectionOptions options) {
+        this.options = options.copy();
+    }
+
+    public DetectionOptions getOptions() {
+        return options.copy();
+    }
+
+    /**
+     * Detect glomeruli in an image, adding them to its hierarchy.
+     * Results of an earlier run in the same regions are replaced.
+     * @throws IOException if the detection fails
+     * @throws InterruptedException if the thread is interrupted
+     */
+    public DetectionResult detect(ImageData<BufferedImage> imageData) throws IOException, InterruptedException {
+        DetectionResult result = run(imageData, imageData.getServer().getMetadata().getName(), null);
+        result.checkSucceeded();
+        return result;
+    }
+
+    /**
+     * Detect glomeruli in a project image, saving the results back to the project.
+     * @throws IOException if the image can't be read or saved, or the detection fails
+     * @throws InterruptedException if the thread is interrupted
+     */
+    public DetectionResult detect(ProjectImageEntry<BufferedImage> entry) throws IOException, InterruptedException {
+        DetectionResult result = runEntry(entry);
+        result.checkSucceeded();
+        return result;
+    }
+
+    /**
+     * Detect glomeruli in every image of a project, one after the other, saving each as it is done.
+     * An image that fails is logged and skipped. The metrics of the batch are written to the results directory.
+     * @throws InterruptedException if the thread is interrupted, images already done keep their results
+     */
+    public List<DetectionResult> detectProject(Project<BufferedImage> project) throws InterruptedException {
+        String batchName = "batch-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        List<ProjectImageEntry<BufferedImage>> entries = project.getImageList();
+        List<DetectionResult> results = new ArrayList<>();
+        try {
+            for (ProjectImageEntry<BufferedImage> entry : entries) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Detection interrupted");
+                }
+                logger.info("Image {} of {}: {}", results.size() + 1, entries.size(), entry.getImageName());
+                DetectionResult result;
+                try {
+                    result = runEntry(entry);
+                } catch (IOException | RuntimeException e) {
+                    result = new DetectionResult(entry.getImageName(), Collections.emptyList(), null, e);
+                }
+                if (!result.isSucceeded()) {
+                    logger.error("Detection failed for {}", entry.getImageName(), result.getError());
+                }
+                results.add(result);
+            }
+        } finally {
+            writeReport(results, batchName);
+        }
+        long failed = results.stream().filter(result -> !result.isSucceeded()).count();
+        logger.info("Detection finished on {} images, {} failed", results.size(), failed);
+        return results;
+    }
+
+    private DetectionResult runEntry(ProjectImageEntry<BufferedImage> entry) throws IOException, InterruptedException {
+        ImageData<BufferedImage> imageData = entry.readImageData();
+        try {
+            DetectionResult result = run(imageData, entry.getImageName(), entry);
+            // Objects added before a failure are saved too, as they would be by the GUI
+            entry.saveImageData(imageData);
+            return result;
+        } finally {
+            try {
+                imageData.getServer().close();
+            } catch (Exception e) {
+                logger.warn("Unable to close the image server of {}", entry.getImageName(), e);
+            }
+        }
+    }
+
+    private DetectionResult run(ImageData<BufferedImage> imageData, String imageName, ProjectImageEntry<BufferedImage> entry)
+            throws InterruptedException {
+        logger.info("Running CircleNet on {} with {}", imageName, options);
+        ScriptDetectionTask task = new ScriptDetectionTask(command, imageData, imageName, entry, options);
+        Exception error = null;
+        try {
+            task.call();
+        } catch (CancellationException | InterruptedException e) {
+            throw new InterruptedException("Detection interrupted: " + imageName);
+        } catch (Exception e) {
+            error = e;
+        }
+        return new DetectionResult(imageName, task.detections, task.getMetrics(), error);
+    }
+
+    private void writeReport(List<DetectionResult> results, String batchName) {
+        List<RunMetrics> metrics = new ArrayList<>();
+        for (DetectionResult result : results) {
+            if (result.getMetrics() != null) {
+                metrics.add(result.getMetrics());
+            }
+        }
+        if (metrics.isEmpty()) {
+            return;
+        }
+        try {
+            RunMetricsLog.writeReport(metrics, command.getMetricsDirectory(), batchName);
+        } catch (IOException e) {
+            logger.warn("Unable to write the batch metrics", e);
+        }
+    }
+
+    /**
+     * Runs the pipeline on the calling thread instead of as a JavaFX task:
+     * progress is logged rather than bound to the UI, and the hierarchy is updated directly.
+     */
+    private static class ScriptDetectionTask extends DetectionTask {
+
+        private final List<PathObject> detections = new ArrayList<>();
+        // Project entry of the image, or null if it was passed on its own
+        private final ProjectImageEntry<BufferedImage> entry;
+
+        private ScriptDetectionTask(GLOMainCommand command, ImageData<BufferedImage> imageData, String imageName,
+                                    ProjectImageEntry<BufferedImage> entry, DetectionOptions options) {
+            super(command, imageData, imageName, options);
+            this.entry = entry;
+        }
+
+        @Override
+        protected String getSlideId(ImageData<BufferedImage> imageData) {
+            return entry == null ? super.getSlideId(imageData) : DetectionColumnWriter.getSlideId(entry);
+        }
+
+        @Override
+        protected void updateHierarchy(Runnable update) {
+            update.run();
+        }
+
+        // No viewer to keep up to date, the hierarchy is announced once the import is complete
+        @Override
+        protected boolean isShownLive() {
+            return false;
+        }
+
+        @Override
+        protected void importBatch(ImageData<BufferedImage> imageData, PathObject parent, List<PathObject> batch) throws IOException {
+            super.importBatch(imageData, parent, batch);
+            detections.addAll(batch);
+        }
+
+        // Called from the constructor, before the fields of this class are set
+        @Override
+        protected void updateTitle(String title) {
+        }
+
+        @Override
+        protected void updateMessage(String message) {
+            logger.debug(message);
+        }
+
+        // The messages already say how far the run has got
+        @Override
+        protected void updateProgress(double workDone, double max) {
+        }
+
+    }
+
+}
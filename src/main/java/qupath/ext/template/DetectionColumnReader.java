@@ -0,0 +1,183 @@
+package qupath.ext.template;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a column file written by {@link DetectionColumnWriter}.
+ * <p>
+ * Each chunk is memory-mapped and its columns are returned as views on the file, so scanning millions of rows
+ * allocates nothing per row and only reads the columns used. For example, the mean radius of each slide in Groovy:
+ * <pre>
+ * import qupath.ext.template.DetectionColumnReader
+ *
+ * DetectionColumnReader.open(path).withCloseable { reader ->
+ *     for (chunk in reader.getChunks()) {
+ *         def radius = chunk.getColumn('radius')
+ *         double sum = 0
+ *         for (int i = 0; i &lt; chunk.getRowCount(); i++)
+ *             sum += radius.get(i)
+ *         println chunk.getSlideId() + ': ' + sum / chunk.getRowCount()
+ *     }
+ * }
+ * </pre>
+ */
+public class DetectionColumnReader implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DetectionColumnReader.class);
+
+    private final FileChannel channel;
+    private final List<Chunk> chunks;
+
+    private DetectionColumnReader(FileChannel channel, List<Chunk> chunks) {
+        this.channel = channel;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Open a column file, indexing its chunks. A chunk left incomplete at the end of the file is ignored.
+     * @throws IOException if the file can't be read or isn't a column file
+     */
+    public static DetectionColumnReader open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long end = DetectionColumnWriter.findEnd(channel);
+            if (end == 0 && channel.size() > 0) {
+                throw new IOException(path + " is not a detection column file");
+            } else if (end < channel.size()) {
+                logger.warn("Ignoring {} bytes of an incomplete chunk at the end of {}", channel.size() - end, path);
+            }
+            // The last run of a slide replaces the earlier ones, but the slide keeps its first place
+            Map<String, Chunk> latest = new LinkedHashMap<>();
+            ByteBuffer prefix = ByteBuffer.allocate(DetectionColumnWriter.PREFIX_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            long position = 0;
+            while (position < end) {
+                prefix.clear();
+                channel.read(prefix, position);
+                long length = prefix.getLong(8);
+                Chunk chunk = new Chunk(channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN));
+                latest.put(chunk.getSlideId(), chunk);
+                position += length;
+            }
+            return new DetectionColumnReader(channel, List.copyOf(latest.values()));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // The latest chunk of each slide, in the order the slides were first added
+    public List<Chunk> getChunks() {
+        return chunks;
+    }
+
+    public long getRowCount() {
+        long rows = 0;
+        for (Chunk chunk : chunks) {
+            rows += chunk.getRowCount();
+        }
+        return rows;
+    }
+
+    // Mapped chunks stay readable after the file is closed, until they are garbage collected
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * The detections of one slide run.
+     */
+    public static class Chunk {
+
+        private final ByteBuffer buffer;
+        private final String slideId;
+        private final int rows;
+        private final List<String> columnNames;
+        private final Map<String, Integer> offsets = new LinkedHashMap<>();
+
+        private Chunk(ByteBuffer buffer) throws IOException {
+            this.buffer = buffer;
+            buffer.position(DetectionColumnWriter.PREFIX_BYTES);
+            rows = buffer.getInt();
+            int nColumns = buffer.getInt();
+            if (rows < 0 || nColumns < 0) {
+                throw new IOException("Corrupt detection column chunk");
+            }
+            slideId = readString(buffer);
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < nColumns; i++) {
+                names.add(readString(buffer));
+            }
+            int offset = (buffer.position() + 7) & ~7;
+            if (offset + 4L * rows * nColumns != buffer.capacity()) {
+                throw new IOException("Corrupt detection column chunk for " + slideId);
+            }
+            for (String name : names) {
+                offsets.put(name, offset);
+                offset += 4 * rows;
+            }
+            columnNames = Collections.unmodifiableList(names);
+        }
+
+        private static String readString(ByteBuffer buffer) throws IOException {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException("Corrupt detection column chunk");
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public String getSlideId() {
+            return slideId;
+        }
+
+        public int getRowCount() {
+            return rows;
+        }
+
+        public List<String> getColumnNames() {
+            return columnNames;
+        }
+
+        public boolean hasColumn(String name) {
+            return offsets.containsKey(name);
+        }
+
+        /**
+         * Values of a column, indexed by row, read straight from the file.
+         * @return the column, or null if this chunk doesn't have it
+         */
+        public FloatBuffer getColumn(String name) {
+            Integer offset = offsets.get(name);
+            if (offset == null) {
+                return null;
+            }
+            return buffer.duplicate().position(offset).limit(offset + 4 * rows).slice()
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Chunk[slide=%s, rows=%d, columns=%d]", slideId, rows, columnNames.size());
+        }
+
+    }
+
+}
@@ -0,0 +1,193 @@
+package qupath.ext.template;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.ImageData;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Appends the detections of a slide to a column file, a compact binary format for analysing a whole cohort
+ * with {@link DetectionColumnReader}.
+ * <p>
+ * A column file is a sequence of chunks, one for each slide run, and each chunk stores its columns one after the other
+ * as little-endian 32-bit floats. Every chunk has the columns x, y, radius, score and agreement, followed by
+ * any other measurements of its objects, which are NaN for objects without them. A chunk is laid out as
+ * <pre>
+ * int magic, int version, long chunk length in bytes
+ * int rows, int columns, slide id, column names (each an int byte length and UTF-8 bytes)
+ * padding to a multiple of 8 bytes, then the values of each column in turn
+ * </pre>
+ * Running a slide again appends a new chunk, which the reader uses in place of the earlier ones.
+ * Appending holds a file lock, so runs in several processes can share a file, and a chunk left incomplete
+ * by a crash is dropped by the next append.
+ */
+public class DetectionColumnWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DetectionColumnWriter.class);
+
+    static final int MAGIC = 0x434F4C47; // 'GLOC' when read as little-endian bytes
+    static final int VERSION = 1;
+    // Magic, version and chunk length
+    static final int PREFIX_BYTES = 16;
+
+    public static final String COLUMN_X = "x";
+    public static final String COLUMN_Y = "y";
+    public static final String COLUMN_RADIUS = "radius";
+    public static final String COLUMN_SCORE = "score";
+    public static final String COLUMN_AGREEMENT = "agreement";
+
+    private static final List<String> FIXED_COLUMNS = List.of(COLUMN_X, COLUMN_Y, COLUMN_RADIUS, COLUMN_SCORE, COLUMN_AGREEMENT);
+
+    private DetectionColumnWriter() {
+    }
+
+    /**
+     * Append the objects of one slide to a column file, creating it if needed.
+     * @param slideId name identifying the slide in the cohort, e.g. from {@link #getSlideId(ProjectImageEntry)}
+     */
+    public static void append(Path path, String slideId, Collection<? extends PathObject> pathObjects) throws IOException {
+        ByteBuffer chunk = encode(slideId, pathObjects);
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        // A file lock can't be held twice by the same JVM, so slides finishing together take turns here first
+        synchronized (DetectionColumnWriter.class) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileLock lock = channel.lock()) {
+                long end = findEnd(channel);
+                if (end < channel.size()) {
+                    logger.warn("Dropping {} bytes of an incomplete chunk at the end of {}", channel.size() - end, path);
+                    channel.truncate(end);
+                }
+                long position = end;
+                while (chunk.hasRemaining()) {
+                    position += channel.write(chunk, position);
+                }
+                channel.force(false);
+            }
+        }
+        logger.info("Appended {} detections of {} to {}", pathObjects.size(), slideId, path);
+    }
+
+    /**
+     * Slide id of a project image, of the form {@code project/entry id/image name}, where the project is
+     * the name of its directory. The entry id keeps images with the same name apart, and the image name
+     * is there to be read: renaming the image gives it a new id.
+     */
+    public static String getSlideId(ProjectImageEntry<?> entry) {
+        // Entries are stored in project/data/id
+        Path entryPath = entry.getEntryPath();
+        Path projectDir = entryPath == null || entryPath.getParent() == null ? null : entryPath.getParent().getParent();
+        String project = projectDir == null || projectDir.getFileName() == null ? "" : projectDir.getFileName().toString();
+        return project + "/" + entry.getID() + "/" + entry.getImageName();
+    }
+
+    // Slide id of an image outside a project, its server path
+    public static String getSlideId(ImageData<?> imageData) {
+        return imageData.getServer().getPath();
+    }
+
+    // End of the last complete chunk
+    static long findEnd(FileChannel channel) throws IOException {
+        ByteBuffer prefix = ByteBuffer.allocate(PREFIX_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long size = channel.size();
+        long position = 0;
+        while (position + PREFIX_BYTES <= size) {
+            prefix.clear();
+            while (prefix.hasRemaining()) {
+                if (channel.read(prefix, position + prefix.position()) < 0) {
+                    return position;
+                }
+            }
+            long length = prefix.getLong(8);
+            if (prefix.getInt(0) != MAGIC || prefix.getInt(4) != VERSION || length < PREFIX_BYTES || position + length > size) {
+                break;
+            }
+            position += length;
+        }
+        return position;
+    }
+
+    private static ByteBuffer encode(String slideId, Collection<? extends PathObject> pathObjects) {
+        List<String> columns = new ArrayList<>(FIXED_COLUMNS);
+        columns.addAll(getMeasurementNames(pathObjects));
+        List<byte[]> strings = new ArrayList<>();
+        strings.add(slideId.getBytes(StandardCharsets.UTF_8));
+        for (String column : columns) {
+            strings.add(column.getBytes(StandardCharsets.UTF_8));
+        }
+        int headerBytes = PREFIX_BYTES + 8;
+        for (byte[] string : strings) {
+            headerBytes += 4 + string.length;
+        }
+        headerBytes = (headerBytes + 7) & ~7;
+        int rows = pathObjects.size();
+        long length = headerBytes + 4L * rows * columns.size();
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many detections for one chunk: " + rows);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(length);
+        buffer.putInt(rows).putInt(columns.size());
+        for (byte[] string : strings) {
+            buffer.putInt(string.length).put(string);
+        }
+        buffer.position(headerBytes);
+        for (String column : columns) {
+            for (PathObject pathObject : pathObjects) {
+                buffer.putFloat((float) getValue(pathObject, column));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Measurements other than the CircleNet ones, in the order they are first seen
+    private static Set<String> getMeasurementNames(Collection<? extends PathObject> pathObjects) {
+        Set<String> names = new LinkedHashSet<>();
+        for (PathObject pathObject : pathObjects) {
+            names.addAll(pathObject.getMeasurementList().getMeasurementNames());
+        }
+        names.remove(CircleDetection.MEASUREMENT_SCORE);
+        names.remove(CircleDetection.MEASUREMENT_RADIUS);
+        names.remove(CircleDetection.MEASUREMENT_AGREEMENT);
+        return names;
+    }
+
+    private static double getValue(PathObject pathObject, String column) {
+        ROI roi = pathObject.getROI();
+        MeasurementList measurements = pathObject.getMeasurementList();
+        return switch (column) {
+            case COLUMN_X -> roi.getCentroidX();
+            case COLUMN_Y -> roi.getCentroidY();
+            // Objects from elsewhere may not have the CircleNet measurements, the ROI gives the radius anyway
+            case COLUMN_RADIUS -> measurements.containsKey(CircleDetection.MEASUREMENT_RADIUS)
+                    ? measurements.get(CircleDetection.MEASUREMENT_RADIUS) : roi.getBoundsWidth() / 2;
+            case COLUMN_SCORE -> getMeasurement(measurements, CircleDetection.MEASUREMENT_SCORE);
+            case COLUMN_AGREEMENT -> getMeasurement(measurements, CircleDetection.MEASUREMENT_AGREEMENT);
+            default -> getMeasurement(measurements, column);
+        };
+    }
+
+    private static double getMeasurement(MeasurementList measurements, String name) {
+        return measurements.containsKey(name) ? measurements.get(name) : Double.NaN;
+    }
+
+}
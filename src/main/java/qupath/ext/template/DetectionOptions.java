@@ -0,0 +1,353 @@
+package qupath.ext.template;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Settings of one detection run, the same ones shown in the preferences.
+ * <p>
+ * A run takes a copy of the options when it is created, so changing the preferences while it is running
+ * has no effect on it. Scripts can start from {@link #fromPreferences()}, or from the defaults with
+ * {@code new DetectionOptions()}, and change what they need, e.g. in Groovy
+ * {@code new DetectionOptions(useOnnxEngine: true, importAsDetections: true)}.
+ */
+public class DetectionOptions {
+
+    // Cores needed to keep one worker busy
+    private static final int CORES_PER_WORKER = 4;
+    // Rough resident size of a worker with all the checkpoints of a model version loaded
+    private static final long BYTES_PER_WORKER = 3L * 1024 * 1024 * 1024;
+    private static final int MAX_AUTO_WORKERS = 8;
+
+    private boolean useOnnxEngine = false;
+    private boolean useWorker = true;
+    private boolean streamResults = true;
+    private boolean tileInQuPath = true;
+    private int tileSize = 512;
+    private int tileOverlap = 64;
+    private double tileDownsample = 1.0;
+    private int ensembleSize = 0;
+    private boolean coarseToFine = false;
+    private double coarseDownsample = 4.0;
+    private String regionClass = "";
+    private boolean tissueFilter = true;
+    private double tissueThreshold = 0.07;
+    private boolean tileCache = true;
+    private boolean exportGeoJson = false;
+    private boolean importAsDetections = false;
+    private boolean measure = false;
+    private boolean exportColumns = false;
+    private int importBatchSize = 500;
+    private int processTimeoutMinutes = 30;
+    private int shardWorkers = 0;
+    private int concurrentSlides = 1;
+
+    // The defaults of the preferences
+    public DetectionOptions() {
+    }
+
+    // The current values of the preferences
+    public static DetectionOptions fromPreferences() {
+        DetectionOptions options = new DetectionOptions();
+        options.useOnnxEngine = GloExtension.useOnnxEngineProperty().get();
+        options.useWorker = GloExtension.useWorkerProperty().get();
+        options.streamResults = GloExtension.streamResultsProperty().get();
+        options.tileInQuPath = GloExtension.tileInQuPathProperty().get();
+        options.tileSize = GloExtension.tileSizeProperty().getValue();
+        options.tileOverlap = GloExtension.tileOverlapProperty().getValue();
+        options.tileDownsample = GloExtension.tileDownsampleProperty().getValue();
+        options.ensembleSize = GloExtension.ensembleSizeProperty().getValue();
+        options.coarseToFine = GloExtension.coarseToFineProperty().get();
+        options.coarseDownsample = GloExtension.coarseDownsampleProperty().getValue();
+        options.regionClass = GloExtension.regionClassProperty().get();
+        options.tissueFilter = GloExtension.tissueFilterProperty().get();
+        options.tissueThreshold = GloExtension.tissueThresholdProperty().getValue();
+        options.tileCache = GloExtension.tileCacheProperty().get();
+        options.exportGeoJson = GloExtension.exportGeoJsonProperty().get();
+        options.importAsDetections = GloExtension.importAsDetectionsProperty().get();
+        options.measure = GloExtension.measureProperty().get();
+        options.exportColumns = GloExtension.exportColumnsProperty().get();
+        options.importBatchSize = GloExtension.importBatchSizeProperty().getValue();
+        options.processTimeoutMinutes = GloExtension.processTimeoutMinutesProperty().getValue();
+        options.shardWorkers = GloExtension.shardWorkersProperty().getValue();
+        return options;
+    }
+
+    public DetectionOptions copy() {
+        DetectionOptions options = new DetectionOptions();
+        options.useOnnxEngine = useOnnxEngine;
+        options.useWorker = useWorker;
+        options.streamResults = streamResults;
+        options.tileInQuPath = tileInQuPath;
+        options.tileSize = tileSize;
+        options.tileOverlap = tileOverlap;
+        options.tileDownsample = tileDownsample;
+        options.ensembleSize = ensembleSize;
+        options.coarseToFine = coarseToFine;
+        options.coarseDownsample = coarseDownsample;
+        options.regionClass = regionClass;
+        options.tissueFilter = tissueFilter;
+        options.tissueThreshold = tissueThreshold;
+        options.tileCache = tileCache;
+        options.exportGeoJson = exportGeoJson;
+        options.importAsDetections = importAsDetections;
+        options.measure = measure;
+        options.exportColumns = exportColumns;
+        options.importBatchSize = importBatchSize;
+        options.processTimeoutMinutes = processTimeoutMinutes;
+        options.shardWorkers = shardWorkers;
+        options.concurrentSlides = concurrentSlides;
+        return options;
+    }
+
+    // Grid of the tiling options, throws an IllegalArgumentException if they are invalid
+    public TileGrid createTileGrid() {
+        return new TileGrid(tileSize, tileOverlap, tileDownsample);
+    }
+
+    // Grid of the candidate pass, the same tiles at the coarse downsample
+    public TileGrid createCoarseTileGrid() {
+        return new TileGrid(tileSize, tileOverlap, coarseDownsample);
+    }
+
+    public boolean isUseOnnxEngine() {
+        return useOnnxEngine;
+    }
+
+    // Whether the CircleNet script runs the whole slide itself, with every model and its own tiling
+    public boolean isScriptEngine() {
+        return !useOnnxEngine && !(useWorker && streamResults);
+    }
+
+    // Run the models in QuPath rather than in Python
+    public void setUseOnnxEngine(boolean useOnnxEngine) {
+        this.useOnnxEngine = useOnnxEngine;
+    }
+
+    public boolean isUseWorker() {
+        return useWorker;
+    }
+
+    // Keep a Python worker running between runs
+    public void setUseWorker(boolean useWorker) {
+        this.useWorker = useWorker;
+    }
+
+    public boolean isStreamResults() {
+        return streamResults;
+    }
+
+    // Import circles as the worker finds them, rather than reading a GeoJSON file at the end
+    public void setStreamResults(boolean streamResults) {
+        this.streamResults = streamResults;
+    }
+
+    public boolean isTileInQuPath() {
+        return tileInQuPath;
+    }
+
+    // Read the tiles in QuPath and send them to the worker, rather than have the worker read the slide
+    public void setTileInQuPath(boolean tileInQuPath) {
+        this.tileInQuPath = tileInQuPath;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    public int getTileOverlap() {
+        return tileOverlap;
+    }
+
+    public void setTileOverlap(int tileOverlap) {
+        this.tileOverlap = tileOverlap;
+    }
+
+    public double getTileDownsample() {
+        return tileDownsample;
+    }
+
+    public void setTileDownsample(double tileDownsample) {
+        this.tileDownsample = tileDownsample;
+    }
+
+    public int getEnsembleSize() {
+        return ensembleSize;
+    }
+
+    // Run only the first few models of the version, 0 to run all of them
+    public void setEnsembleSize(int ensembleSize) {
+        this.ensembleSize = ensembleSize;
+    }
+
+    // The checkpoints run with these options
+    public List<DownloadManager.Artifact> getModels() {
+        return ModelVersion.getDefault().getModels(ensembleSize);
+    }
+
+    public boolean isCoarseToFine() {
+        return coarseToFine;
+    }
+
+    // Find candidates at the coarse downsample first, and only run the tiles around them at the inference downsample
+    public void setCoarseToFine(boolean coarseToFine) {
+        this.coarseToFine = coarseToFine;
+    }
+
+    public double getCoarseDownsample() {
+        return coarseDownsample;
+    }
+
+    public void setCoarseDownsample(double coarseDownsample) {
+        this.coarseDownsample = coarseDownsample;
+    }
+
+    public String getRegionClass() {
+        return regionClass;
+    }
+
+    // Only detect inside annotations of this class, or the whole image if empty
+    public void setRegionClass(String regionClass) {
+        this.regionClass = regionClass;
+    }
+
+    public boolean isTissueFilter() {
+        return tissueFilter;
+    }
+
+    // Skip tiles without tissue
+    public void setTissueFilter(boolean tissueFilter) {
+        this.tissueFilter = tissueFilter;
+    }
+
+    public double getTissueThreshold() {
+        return tissueThreshold;
+    }
+
+    public void setTissueThreshold(double tissueThreshold) {
+        this.tissueThreshold = tissueThreshold;
+    }
+
+    public boolean isTileCache() {
+        return tileCache;
+    }
+
+    // Reuse the results of tiles already run on the image with the same models and grid
+    public void setTileCache(boolean tileCache) {
+        this.tileCache = tileCache;
+    }
+
+    public boolean isExportGeoJson() {
+        return exportGeoJson;
+    }
+
+    // Also write streamed detections to a GeoJSON file in the results directory
+    public void setExportGeoJson(boolean exportGeoJson) {
+        this.exportGeoJson = exportGeoJson;
+    }
+
+    public boolean isImportAsDetections() {
+        return importAsDetections;
+    }
+
+    // Add detection objects rather than annotations
+    public void setImportAsDetections(boolean importAsDetections) {
+        this.importAsDetections = importAsDetections;
+    }
+
+    public boolean isMeasure() {
+        return measure;
+    }
+
+    // Add size, shape and intensity measurements to the glomeruli once they are imported
+    public void setMeasure(boolean measure) {
+        this.measure = measure;
+    }
+
+    public boolean isExportColumns() {
+        return exportColumns;
+    }
+
+    // Append the detections of each slide to the cohort column file in the results directory
+    public void setExportColumns(boolean exportColumns) {
+        this.exportColumns = exportColumns;
+    }
+
+    public int getImportBatchSize() {
+        return importBatchSize;
+    }
+
+    public void setImportBatchSize(int importBatchSize) {
+        this.importBatchSize = importBatchSize;
+    }
+
+    public int getProcessTimeoutMinutes() {
+        return processTimeoutMinutes;
+    }
+
+    // Stop a Python process that writes nothing for this long, 0 to wait forever
+    public void setProcessTimeoutMinutes(int processTimeoutMinutes) {
+        this.processTimeoutMinutes = processTimeoutMinutes;
+    }
+
+    public int getShardWorkers() {
+        return shardWorkers;
+    }
+
+    // Inference workers sharing the tiles of one slide, 0 to choose from the cores and memory
+    public void setShardWorkers(int shardWorkers) {
+        this.shardWorkers = shardWorkers;
+    }
+
+    public int getConcurrentSlides() {
+        return concurrentSlides;
+    }
+
+    // Number of slides being detected at once, which share the cores
+    public void setConcurrentSlides(int concurrentSlides) {
+        this.concurrentSlides = Math.max(1, concurrentSlides);
+    }
+
+    // Threads the ONNX engine uses for each model, this slide's share of the cores
+    public int resolveOnnxThreads() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / concurrentSlides);
+    }
+
+    /**
+     * Number of workers to run one slide on: the number set, or else as many as the machine has room for,
+     * split between the slides running at the same time.
+     * @param concurrentSlides number of slides being detected at once
+     */
+    public int resolveShardWorkers(int concurrentSlides) {
+        if (shardWorkers > 0) {
+            return shardWorkers;
+        }
+        return Math.max(1, getMachineWorkers() / Math.max(1, concurrentSlides));
+    }
+
+    // One worker for every few cores, as long as there is memory for its models
+    private static int getMachineWorkers() {
+        int byCores = Runtime.getRuntime().availableProcessors() / CORES_PER_WORKER;
+        int byMemory = Integer.MAX_VALUE;
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+            byMemory = (int) Math.min(Integer.MAX_VALUE, os.getTotalMemorySize() / BYTES_PER_WORKER);
+        }
+        return Math.max(1, Math.min(MAX_AUTO_WORKERS, Math.min(byCores, byMemory)));
+    }
+
+    @Override
+    public String toString() {
+        String engine = useOnnxEngine ? "onnx" : !useWorker ? "python-script"
+                : !streamResults ? "python-worker" : tileInQuPath ? "python-tiles" : "python-stream";
+        return String.format("DetectionOptions[engine=%s, tile=%d/%d@%s, models=%s, coarse=%s, regions=%s, tissue=%s, cache=%s, detections=%s, measure=%s, workers=%s]",
+                engine, tileSize, tileOverlap, tileDownsample, ensembleSize > 0 ? ensembleSize : "all",
+                coarseToFine ? coarseDownsample : "off", regionClass == null || regionClass.isBlank() ? "all" : regionClass,
+                tissueFilter ? tissueThreshold : "off", tileCache, importAsDetections, measure,
+                shardWorkers > 0 ? shardWorkers : "auto");
+    }
+
+}
@@ -0,0 +1,152 @@
+package qupath.ext.template;
+
+import org.locationtech.jts.geom.Geometry;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * The annotations detection is restricted to, or the whole image if there are none.
+ * <p>
+ * Only tiles that intersect an annotation are sent for inference, and each detection is added
+ * as a child of the annotation containing its centre. Detections outside every annotation are dropped.
+ */
+public class DetectionRegions {
+
+    private final PathObject root;
+    private final List<PathObject> annotations;
+    private final List<Geometry> geometries;
+
+    private DetectionRegions(PathObject root, Collection<PathObject> annotations) {
+        this.root = root;
+        // Smallest first, so nested annotations get the detections inside them
+        this.annotations = annotations.stream()
+                .filter(annotation -> annotation.getROI() != null)
+                .sorted(Comparator.comparingDouble(annotation -> annotation.getROI().getArea()))
+                .collect(Collectors.toList());
+        this.geometries = this.annotations.stream()
+                .map(annotation -> annotation.getROI().getGeometry())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Find the regions for an image: the selected annotations if there are any, otherwise the annotations
+     * with the class set in the preferences, otherwise the whole image.
+     * @throws IOException if a class is set but the image has no annotations with it
+     */
+    public static DetectionRegions fromImage(ImageData<?> imageData) throws IOException {
+        return fromImage(imageData, GloExtension.regionClassProperty().get());
+    }
+
+    /**
+     * Find the regions for an image: the selected annotations if there are any, otherwise the annotations
+     * with the given class, otherwise the whole image.
+     * @param className class of the annotations to detect in, or null or blank for the whole image
+     * @throws IOException if a class is given but the image has no annotations with it
+     */
+    public static DetectionRegions fromImage(ImageData<?> imageData, String className) throws IOException {
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        List<PathObject> selected = hierarchy.getSelectionModel().getSelectedObjects().stream()
+                .filter(PathObject::isAnnotation)
+                .collect(Collectors.toList());
+        if (!selected.isEmpty()) {
+            return new DetectionRegions(hierarchy.getRootObject(), selected);
+        }
+        if (className == null || className.isBlank()) {
+            return new DetectionRegions(hierarchy.getRootObject(), List.of());
+        }
+        List<PathObject> classified = hierarchy.getAnnotationObjects().stream()
+                .filter(annotation -> annotation.getPathClass() != null
+                        && className.trim().equals(annotation.getPathClass().getName()))
+                .collect(Collectors.toList());
+        if (classified.isEmpty()) {
+            throw new IOException("No annotations with class '" + className.trim() + "' to detect in");
+        }
+        return new DetectionRegions(hierarchy.getRootObject(), classified);
+    }
+
+    public boolean isWholeImage() {
+        return annotations.isEmpty();
+    }
+
+    public List<PathObject> getAnnotations() {
+        return annotations;
+    }
+
+    // Tiles that intersect at least one annotation
+    public List<DetectionTile> filterTiles(List<DetectionTile> tiles) {
+        if (isWholeImage()) {
+            return tiles;
+        }
+        List<DetectionTile> filtered = new ArrayList<>();
+        for (DetectionTile tile : tiles) {
+            if (intersects(tile.getRequest())) {
+                filtered.add(tile);
+            }
+        }
+        return filtered;
+    }
+
+    private boolean intersects(RegionRequest request) {
+        Geometry rectangle = null;
+        for (int i = 0; i < annotations.size(); i++) {
+            ROI roi = annotations.get(i).getROI();
+            // Cheap bounding box check before the exact one
+            if (roi.getBoundsX() > request.getMaxX() || roi.getBoundsY() > request.getMaxY()
+                    || roi.getBoundsX() + roi.getBoundsWidth() < request.getX()
+                    || roi.getBoundsY() + roi.getBoundsHeight() < request.getY()) {
+                continue;
+            }
+            if (rectangle == null) {
+                rectangle = GeometryTools.createRectangle(request.getX(), request.getY(), request.getWidth(), request.getHeight());
+            }
+            if (geometries.get(i).intersects(rectangle)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parent for a detection centred at this point.
+     * @return the smallest annotation containing the point, the hierarchy root when detecting in the
+     *         whole image, or null if the point is outside every annotation
+     */
+    public PathObject findParent(double x, double y) {
+        if (isWholeImage()) {
+            return root;
+        }
+        for (PathObject annotation : annotations) {
+            if (annotation.getROI().contains(x, y)) {
+                return annotation;
+            }
+        }
+        return null;
+    }
+
+    // Group detections by parent, dropping those outside every annotation
+    public Map<PathObject, List<PathObject>> assign(Collection<PathObject> detections) {
+        Map<PathObject, List<PathObject>> assigned = new LinkedHashMap<>();
+        for (PathObject detection : detections) {
+            ROI roi = detection.getROI();
+            PathObject parent = findParent(roi.getCentroidX(), roi.getCentroidY());
+            if (parent != null) {
+                assigned.computeIfAbsent(parent, p -> new ArrayList<>()).add(detection);
+            }
+        }
+        return assigned;
+    }
+
+}
@@ -0,0 +1,69 @@
+package qupath.ext.template;
+
+import qupath.lib.objects.PathObject;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a detection run started by {@link CircleNetDetector}: the objects added to the image,
+ * or why the run failed, and the timings of the run.
+ */
+public class DetectionResult {
+
+    private final String imageName;
+    private final List<PathObject> detections;
+    private final RunMetrics metrics;
+    private final Exception error;
+
+    DetectionResult(String imageName, List<PathObject> detections, RunMetrics metrics, Exception error) {
+        this.imageName = imageName;
+        this.detections = Collections.unmodifiableList(detections);
+        this.metrics = metrics;
+        this.error = error;
+    }
+
+    public String getImageName() {
+        return imageName;
+    }
+
+    // Objects added to the hierarchy, which are kept even if the run failed part way through
+    public List<PathObject> getDetections() {
+        return detections;
+    }
+
+    public int getCount() {
+        return detections.size();
+    }
+
+    public RunMetrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean isSucceeded() {
+        return error == null;
+    }
+
+    // Why the run failed, or null if it succeeded
+    public Exception getError() {
+        return error;
+    }
+
+    void checkSucceeded() throws IOException {
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error != null) {
+            throw new IOException("Detection failed for " + imageName, error);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return isSucceeded() ? String.format("%s: %d detections", imageName, getCount())
+                : String.format("%s: failed (%s)", imageName, error.getMessage());
+    }
+
+}
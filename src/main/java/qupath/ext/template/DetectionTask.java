@@ -0,0 +1,1178 @@
+package qupath.ext.template;
+
+import com.google.gson.JsonObject;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Background task running the CircleNet pipeline for a single image:
+ * download, prepare, infer and import.
+ * <p>
+ * Everything runs on the calling worker thread except the final hierarchy update,
+ * which by default is marshalled back to the JavaFX application thread.
+ * Subclasses can change where the image data comes from and how the results are stored.
+ * Cancelling the task kills the Python process (and any children it started).
+ * The task value is the number of objects added to the hierarchy.
+ * The settings are taken from the {@link DetectionOptions} given when the task is created.
+ */
+public class DetectionTask extends Task<Integer> {
+
+    private static final Logger logger = LoggerFactory.getLogger(DetectionTask.class);
+
+    private static final double DOWNLOAD_END = 0.2;
+    private static final double PREPARE_END = 0.25;
+    private static final double INFER_END = 0.9;
+
+    private static final int MAX_WORKER_RESTARTS = 1;
+
+    // How long to keep reading output after a process exits, in case a child it started still holds the pipe open
+    private static final long OUTPUT_DRAIN_MILLIS = 5000;
+
+    // Minimum score and fusion IoU for the in-QuPath engine, the same defaults as the worker
+    private static final double SCORE_THRESHOLD = 0.3;
+    private static final double FUSION_IOU_THRESHOLD = 0.3;
+
+    // Tiles with less tissue than this are skipped
+    private static final double MIN_TISSUE_FRACTION = 0.01;
+
+    // Longest time streamed detections wait before they are added to the hierarchy, so they appear while inference runs
+    private static final long LIVE_UPDATE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    // Minimum time between the hierarchy events announcing detections added in bulk, each one makes the viewer re-index them all
+    private static final long BULK_EVENT_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    // Least padding around a candidate of the coarse pass, in pixels at the coarse downsample
+    private static final double COARSE_PADDING = 16;
+
+    // Tiles in each shard handed to a worker when a slide is shared between several, a shard never spans rows
+    private static final int SHARD_TILES = 4;
+
+    private final GLOMainCommand command;
+    private final ImageData<BufferedImage> imageData;
+    private final String imageName;
+    private final DetectionOptions options;
+
+    // Every Python process currently running for this task, so cancelling can kill them all
+    private final Set<Process> processes = ConcurrentHashMap.newKeySet();
+    private volatile RunMetrics metrics;
+
+    // Set when objects have been added in bulk without a hierarchy event
+    private PathObjectHierarchy bulkHierarchy;
+    private boolean bulkAddedToRoot;
+    // Objects imported by this run, kept when they are to be measured
+    private final List<PathObject> imported = new ArrayList<>();
+    // Results of earlier runs in the regions being detected, removed once the new results are ready to take their place
+    private List<PathObject> previousResults = List.of();
+    private long lastBulkEventNanos;
+
+    // Part of the image to detect first, in full-resolution pixels
+    private volatile Rectangle2D priorityRegion;
+
+    // Run with the current preferences
+    public DetectionTask(GLOMainCommand command, ImageData<BufferedImage> imageData) {
+        this(command, imageData, DetectionOptions.fromPreferences());
+    }
+
+    public DetectionTask(GLOMainCommand command, ImageData<BufferedImage> imageData, DetectionOptions options) {
+        this(command, imageData, imageData == null ? "CircleNet detection" : imageData.getServer().getMetadata().getName(), options);
+    }
+
+    protected DetectionTask(GLOMainCommand command, ImageData<BufferedImage> imageData, String imageName, DetectionOptions options) {
+        this.command = command;
+        this.imageData = imageData;
+        this.imageName = imageName;
+        this.options = options.copy();
+        updateTitle(imageName);
+    }
+
+    public DetectionOptions getOptions() {
+        return options.copy();
+    }
+
+    /**
+     * Set a region to run first, typically the part of the slide shown in the viewer, so the glomeruli there
+     * appear before the rest of the slide is done. Only used when QuPath reads the tiles.
+     * @param region bounds in full-resolution image pixels, or null to run the tiles in row order
+     */
+    public void setPriorityRegion(Rectangle2D region) {
+        this.priorityRegion = region;
+    }
+
+    // Timings and counts of the run, or null if it hasn't started
+    public RunMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Image data to process, called from the worker thread
+    protected ImageData<BufferedImage> loadImageData() throws IOException {
+        return imageData;
+    }
+
+    // Apply a change to the hierarchy; by default this is done on the FX thread since the image may be open in a viewer.
+    // Waiting for each change stops batches piling up in memory if the FX thread is busy
+    protected void updateHierarchy(Runnable update) throws IOException {
+        FutureTask<Void> task = new FutureTask<>(update, null);
+        Platform.runLater(task);
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Import interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to update the hierarchy", e.getCause());
+        }
+    }
+
+    // Whether the image may be open in a viewer, so detections added in bulk should be announced as they arrive
+    protected boolean isShownLive() {
+        return true;
+    }
+
+    // Add a batch of detections below a parent in the hierarchy
+    protected void importBatch(ImageData<BufferedImage> imageData, PathObject parent, List<PathObject> batch) throws IOException {
+        try (RunMetrics.Timer timer = metrics.time(RunMetrics.Stage.IMPORT)) {
+            if (options.isImportAsDetections()) {
+                // Added without resolving, which is done once when the import is complete.
+                // Nothing is drawn until an event is fired, so one is fired now and then while the image is shown
+                PathObjectHierarchy hierarchy = imageData.getHierarchy();
+                bulkHierarchy = hierarchy;
+                bulkAddedToRoot |= parent == hierarchy.getRootObject();
+                boolean announce = isShownLive() && System.nanoTime() - lastBulkEventNanos >= BULK_EVENT_NANOS;
+                List<PathObject> replaced = takePreviousResults();
+                updateHierarchy(() -> {
+                    removeObjects(hierarchy, replaced);
+                    parent.addChildObjects(batch);
+                    if (announce) {
+                        hierarchy.fireHierarchyChangedEvent(hierarchy);
+                    }
+                });
+                if (announce) {
+                    lastBulkEventNanos = System.nanoTime();
+                }
+            } else {
+                List<PathObject> replaced = takePreviousResults();
+                updateHierarchy(() -> {
+                    removeObjects(imageData.getHierarchy(), replaced);
+                    addToHierarchy(imageData, parent, batch);
+                });
+            }
+        }
+        if (options.isMeasure()) {
+            imported.addAll(batch);
+        }
+        metrics.addObjectsImported(batch.size());
+    }
+
+    // Resolve and announce everything added in bulk, with a single hierarchy event
+    private void completeBulkImport() throws IOException {
+        PathObjectHierarchy hierarchy = bulkHierarchy;
+        if (hierarchy == null) {
+            return;
+        }
+        bulkHierarchy = null;
+        boolean resolve = bulkAddedToRoot;
+        try (RunMetrics.Timer timer = metrics.time(RunMetrics.Stage.IMPORT)) {
+            updateHierarchy(() -> {
+                // Objects added to the root may belong inside existing annotations; resolving fires its own event
+                if (resolve && !hierarchy.getAnnotationObjects().isEmpty()) {
+                    hierarchy.resolveHierarchy();
+                } else {
+                    hierarchy.fireHierarchyChangedEvent(hierarchy);
+                }
+            });
+        }
+    }
+
+    // Measure every object imported, announcing the new measurements with a single hierarchy event
+    private void measureImported(ImageData<BufferedImage> imageData, List<PathObject> objects) throws IOException, InterruptedException {
+        if (!options.isMeasure() || objects.isEmpty()) {
+            return;
+        }
+        updateMessage("Measuring " + objects.size() + " glomeruli");
+        try (RunMetrics.Timer timer = metrics.time(RunMetrics.Stage.MEASURE)) {
+            new GlomerulusMeasurer(imageData.getServer(), options.getTileDownsample()).measure(objects,
+                    done -> updateProgress(INFER_END + (1 - INFER_END) * done / objects.size(), 1));
+            PathObjectHierarchy hierarchy = imageData.getHierarchy();
+            updateHierarchy(() -> hierarchy.fireObjectMeasurementsChangedEvent(this, objects));
+        }
+    }
+
+    // Results of earlier runs in the regions being detected, so a re-run replaces them rather than adding duplicates
+    protected List<PathObject> findPreviousResults(ImageData<BufferedImage> imageData, DetectionRegions regions) {
+        List<PathObject> previous = new ArrayList<>();
+        for (PathObject pathObject : findCircleNetObjects(imageData)) {
+            if (regions.findParent(pathObject.getROI().getCentroidX(), pathObject.getROI().getCentroidY()) != null) {
+                previous.add(pathObject);
+            }
+        }
+        return previous;
+    }
+
+    // Every CircleNet object of the image, from this run or earlier ones
+    private static List<PathObject> findCircleNetObjects(ImageData<BufferedImage> imageData) {
+        List<PathObject> candidates = new ArrayList<>(imageData.getHierarchy().getAnnotationObjects());
+        candidates.addAll(imageData.getHierarchy().getDetectionObjects());
+        candidates.removeIf(pathObject -> !CircleDetection.isCircleNetObject(pathObject));
+        return candidates;
+    }
+
+    /**
+     * Name of the slide in the cohort column file. A project image is qualified by its project,
+     * since images of different projects often share names.
+     */
+    protected String getSlideId(ImageData<BufferedImage> imageData) {
+        ProjectImageEntry<BufferedImage> entry = command.getProjectEntry(imageData);
+        return entry == null ? DetectionColumnWriter.getSlideId(imageData) : DetectionColumnWriter.getSlideId(entry);
+    }
+
+    // The earlier results still to be removed, which are then left to the caller
+    private List<PathObject> takePreviousResults() {
+        List<PathObject> previous = previousResults;
+        previousResults = List.of();
+        if (!previous.isEmpty()) {
+            logger.info("Replacing {} detections from an earlier run", previous.size());
+        }
+        return previous;
+    }
+
+    private static void removeObjects(PathObjectHierarchy hierarchy, List<PathObject> pathObjects) {
+        if (!pathObjects.isEmpty()) {
+            hierarchy.removeObjects(pathObjects, true);
+        }
+    }
+
+    // Objects added to the root are placed by the hierarchy, those with a parent annotation go straight below it
+    protected static void addToHierarchy(ImageData<BufferedImage> imageData, PathObject parent, List<PathObject> batch) {
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        if (parent == hierarchy.getRootObject()) {
+            hierarchy.addPathObjects(batch);
+        } else {
+            parent.addChildObjects(batch);
+            hierarchy.fireHierarchyChangedEvent(hierarchy, parent);
+        }
+    }
+
+    // Called once all batches have been imported
+    protected void importComplete(ImageData<BufferedImage> imageData, int count) throws IOException {
+    }
+
+    // Record the metrics of every run, whether it succeeds or not
+    @Override
+    protected Integer call() throws Exception {
+        metrics = new RunMetrics(imageName, ModelVersion.getDefault().getKey());
+        metrics.setProfile(SpeedProfile.describe(options));
+        String status = "failed";
+        try {
+            int count = detect();
+            status = "succeeded";
+            return count;
+        } finally {
+            // Objects added in bulk before a failure still need to be shown
+            try {
+                completeBulkImport();
+            } catch (IOException e) {
+                logger.warn("Unable to update the hierarchy after the import", e);
+            }
+            metrics.finish(isCancelled() ? "cancelled" : status);
+            GLOMainCommand.getMetricsLog().add(metrics);
+        }
+    }
+
+    private int detect() throws Exception {
+        // Stage 1: download models and Python scripts
+        updateMessage("Downloading models");
+        updateProgress(0, 1);
+        String qupathModelDir = command.prepareResources(artifact -> updateMessage("Downloaded " + artifact.getFileName()), metrics);
+        String resultsDir = command.getResultsDirectory();
+        checkCancelled();
+
+        // Stage 2: resolve the slide and the regions to detect in
+        updateMessage("Preparing detection");
+        updateProgress(DOWNLOAD_END, 1);
+        ImageData<BufferedImage> imageData;
+        DetectionRegions regions;
+        String wholeSlideImagePath;
+        try (RunMetrics.Timer timer = metrics.time(RunMetrics.Stage.PREPARE)) {
+            imageData = loadImageData();
+            regions = DetectionRegions.fromImage(imageData, options.getRegionClass());
+            if (!regions.isWholeImage()) {
+                logger.info("Restricting detection to {} annotations", regions.getAnnotations().size());
+            }
+            wholeSlideImagePath = command.getWholeSlideImagePath(imageData);
+        }
+        checkCancelled();
+
+        // Stage 3: run inference
+        updateMessage("Running CircleNet");
+        updateProgress(PREPARE_END, 1);
+        long detectionStart = System.nanoTime();
+        // Only removed along with the first new results, so a run that fails before finding anything loses nothing
+        previousResults = findPreviousResults(imageData, regions);
+        int count;
+        Path exportPath = options.isExportGeoJson() ? command.getExportPath(resultsDir, wholeSlideImagePath) : null;
+        if (options.isUseOnnxEngine()) {
+            metrics.setEngine("onnx");
+            // Everything runs in QuPath, so no Python is needed at all
+            try (OnnxCircleNetEngine engine = OnnxCircleNetEngine.getInstance(
+                    command.findOnnxModels(qupathModelDir, options.getModels()), options.resolveOnnxThreads())) {
+                TilePass pass = (passGrid, passTiles, cache, sink) -> runOnnx(engine, imageData, passTiles, cache, sink);
+                TileGrid grid = options.createTileGrid();
+                List<DetectionTile> tiles = refineTiles(imageData, regions, selectTiles(imageData, grid, regions), resultsDir, "onnx", pass);
+                try (TileResultCache cache = openTileCache(resultsDir, imageData, "onnx", grid);
+                     RunMetrics.Timer timer = metrics.time(RunMetrics.Stage.INFERENCE)) {
+                    count = runStreaming(imageData, regions, exportPath, streamingImport -> pass.run(grid, tiles, cache, streamingImport));
+                }
+            }
+        } else if (options.isUseWorker() && options.isStreamResults()) {
+            // Circles are streamed back from the worker and imported as they arrive, so stages 3 and 4 overlap
+            String pythonPath = command.findPythonExecutable();
+            ProcessBuilder processBuilder = command.createProcessBuilder(command.buildWorkerCommand(pythonPath, qupathModelDir));
+            TileGrid grid = options.createTileGrid();
+            if (options.isTileInQuPath()) {
+                // Large slides are shared between several workers, each limited to its share of the cores
+                int nWorkers = options.resolveShardWorkers(1);
+                ProcessBuilder tileBuilder = nWorkers <= 1 ? processBuilder : command.createProcessBuilder(command.buildWorkerCommand(
+                        pythonPath, qupathModelDir, Math.max(1, Runtime.getRuntime().availableProcessors() / nWorkers)));
+                metrics.setEngine(nWorkers <= 1 ? "python-tiles" : "python-tiles-x" + nWorkers);
+                TilePass pass = (passGrid, passTiles, cache, sink) ->
+                        runTiles(tileBuilder, nWorkers, imageData, passTiles, qupathModelDir, cache, sink);
+                List<DetectionTile> tiles = refineTiles(imageData, regions, selectTiles(imageData, grid, regions), resultsDir, "python", pass);
+                try (TileResultCache cache = openTileCache(resultsDir, imageData, "python", grid);
+                     RunMetrics.Timer timer = metrics.time(RunMetrics.Stage.INFERENCE)) {
+                    count = runStreaming(imageData, regions, exportPath, streamingImport -> pass.run(grid, tiles, cache, streamingImport));
+                }
+            } else {
+                // The worker builds the same grid, and the tiles are sent as a whitelist
+                // Restarting after some circles have been imported would add them twice
+                metrics.setEngine("python-stream");
+                TilePass pass = (passGrid, passTiles, cache, sink) -> {
+                    JsonObject request = command.buildSlideRequest(wholeSlideImagePath, qupathModelDir, options.getModels(), passGrid, passTiles);
+                    runWorker(processBuilder, worker -> worker.detectStream(request.deepCopy(), sink), () -> sink.count == 0);
+                };
+                List<DetectionTile> tiles = refineTiles(imageData, regions, selectTiles(imageData, grid, regions), resultsDir, null, pass);
+                try (RunMetrics.Timer timer = metrics.time(RunMetrics.Stage.INFERENCE)) {
+                    count = runStreaming(imageData, regions, exportPath, streamingImport -> pass.run(grid, tiles, null, streamingImport));
+                }
+            }
+        } else {
+            if (options.getModels().size() < ModelVersion.getDefault().getModels().size()) {
+                logger.warn("The CircleNet script always runs every model, the ensemble size of {} is ignored", options.getEnsembleSize());
+            }
+            if (options.getTileDownsample() != 1) {
+                logger.warn("The CircleNet script always runs at its own resolution, the downsample of {} is ignored", options.getTileDownsample());
+            }
+            if (options.isCoarseToFine()) {
+                logger.warn("The CircleNet script always runs the whole slide, coarse-to-fine detection is ignored");
+            }
+            String pythonPath = command.findPythonExecutable();
+            String wsiName = command.getGeoJsonName(wholeSlideImagePath);
+            List<String> pythonCommand = command.buildDetectionCommand(pythonPath, wholeSlideImagePath, qupathModelDir, resultsDir);
+            String output;
+            try (RunMetrics.Timer timer = metrics.time(RunMetrics.Stage.INFERENCE)) {
+                if (options.isUseWorker()) {
+                    // The worker is already running the script, so it only needs the arguments
+                    metrics.setEngine("python-worker");
+                    List<String> args = pythonCommand.subList(2, pythonCommand.size());
+                    runWorker(command.createProcessBuilder(command.buildWorkerCommand(pythonPath, qupathModelDir)), worker -> {
+                        worker.setProgressListener(this::updateScriptProgress);
+                        worker.detect(args);
+                    }, () -> true);
+                    output = "";
+                } else {
+                    metrics.setEngine("python-script");
+                    output = runProcess(command.createProcessBuilder(pythonCommand));
+                }
+            }
+            checkCancelled();
+
+            // Stage 4: stream the results, adding them to the hierarchy in batches
+            updateMessage("Importing detections");
+            updateProgress(INFER_END, 1);
+            String geojsonDir = command.generateGeoJsonPath(resultsDir + "/test_only_result");
+            AtomicInteger importedCount = new AtomicInteger();
+            // Parsing and importing are interleaved, so the parse time is what's left once the imports are taken out
+            long parseStart = System.nanoTime();
+            long importBefore = metrics.getStageNanos(RunMetrics.Stage.IMPORT);
+            command.parsePythonOutput(output, geojsonDir, wsiName, options.getImportBatchSize(), batch -> {
+                checkCancelled();
+                // Tagged like the other engines' circles, so the next run replaces them
+                batch.forEach(CircleDetection::tagScriptObject);
+                if (options.isImportAsDetections()) {
+                    batch.replaceAll(CircleDetection::toDetectionObject);
+                }
+                for (Map.Entry<PathObject, List<PathObject>> entry : regions.assign(batch).entrySet()) {
+                    importBatch(imageData, entry.getKey(), entry.getValue());
+                    importedCount.addAndGet(entry.getValue().size());
+                }
+                updateMessage("Imported " + importedCount.get() + " detections");
+            });
+            count = importedCount.get();
+            long importNanos = metrics.getStageNanos(RunMetrics.Stage.IMPORT) - importBefore;
+            metrics.addStageNanos(RunMetrics.Stage.PARSE, System.nanoTime() - parseStart - importNanos);
+        }
+        checkCancelled();
+        // Nothing was found, so the earlier results are removed on their own
+        List<PathObject> replaced = takePreviousResults();
+        if (!replaced.isEmpty()) {
+            updateHierarchy(() -> removeObjects(imageData.getHierarchy(), replaced));
+        }
+        completeBulkImport();
+        checkCancelled();
+
+        // Stage 5: measure the glomeruli, once they are all in the hierarchy
+        List<PathObject> objects = List.copyOf(imported);
+        imported.clear();
+        measureImported(imageData, objects);
+        checkCancelled();
+        if (options.isExportColumns()) {
+            // Everything found on the slide, including regions detected by earlier runs, since this chunk replaces theirs.
+            // Written even when nothing was found, so the slide shows up in the cohort with no rows
+            updateMessage("Exporting detections");
+            DetectionColumnWriter.append(command.getColumnFilePath(), getSlideId(imageData), findCircleNetObjects(imageData));
+        }
+        importComplete(imageData, count);
+        metrics.setDetectionNanos(System.nanoTime() - detectionStart);
+        updateProgress(1, 1);
+        updateMessage("Done");
+        return count;
+    }
+
+    // Import circles as the job streams them, optionally exporting them as GeoJSON at the same time
+    private int runStreaming(ImageData<BufferedImage> imageData, DetectionRegions regions, Path exportPath, StreamingJob job)
+            throws IOException, InterruptedException {
+        StreamingImport streamingImport = new StreamingImport(imageData, regions, options.getImportBatchSize());
+        try (GeoJsonStreamWriter export = exportPath == null ? null : new GeoJsonStreamWriter(
+                new BufferedOutputStream(Files.newOutputStream(exportPath)))) {
+            streamingImport.export = export;
+            job.run(streamingImport);
+            streamingImport.flush();
+        }
+        return streamingImport.count;
+    }
+
+    /**
+     * With coarse-to-fine detection, run the pass on a grid at the coarse downsample first and keep only the tiles
+     * near the candidates it finds. Glomeruli are large enough to be found at a low resolution, so the tiles
+     * without any are never run at the inference downsample.
+     * @param cacheEngine engine name of the tile cache of the coarse pass, or null if it can't be cached
+     */
+    private List<DetectionTile> refineTiles(ImageData<BufferedImage> imageData, DetectionRegions regions, List<DetectionTile> tiles,
+                                            String resultsDir, String cacheEngine, TilePass pass) throws IOException, InterruptedException {
+        if (!options.isCoarseToFine() || tiles.isEmpty()) {
+            return tiles;
+        }
+        TileGrid coarseGrid = options.createCoarseTileGrid();
+        if (coarseGrid.getDownsample() <= options.getTileDownsample()) {
+            logger.warn("The coarse pass downsample {} is no lower resolution than the inference downsample {}, running every tile",
+                    coarseGrid.getDownsample(), options.getTileDownsample());
+            return tiles;
+        }
+        List<DetectionTile> coarseTiles = selectTiles(imageData, coarseGrid, regions);
+        updateMessage("Finding candidate glomeruli");
+        CandidateCollector collector = new CandidateCollector(imageData, regions);
+        try (TileResultCache cache = cacheEngine == null ? null : openTileCache(resultsDir, imageData, cacheEngine, coarseGrid);
+             RunMetrics.Timer timer = metrics.time(RunMetrics.Stage.INFERENCE)) {
+            pass.run(coarseGrid, coarseTiles, cache, collector);
+        }
+        checkCancelled();
+        CandidateRegions candidates = new CandidateRegions(collector.candidates, coarseGrid.getDownsample() * COARSE_PADDING);
+        List<DetectionTile> refined = candidates.filterTiles(tiles);
+        // Every tile has the same number of pixels, whatever its downsample
+        logger.info("Coarse pass found {} candidates, refining {} of {} tiles ({}% of the pixels of running every tile)",
+                candidates.size(), refined.size(), tiles.size(),
+                String.format("%.1f", 100.0 * (coarseTiles.size() + refined.size()) / tiles.size()));
+        updateMessage(String.format("Refining %d candidates in %d of %d tiles", candidates.size(), refined.size(), tiles.size()));
+        return refined;
+    }
+
+    // Cache of the tiles already run on the image, or null if caching is turned off
+    // A smaller ensemble fuses to different scores, so it is cached apart from the full one
+    private TileResultCache openTileCache(String resultsDir, ImageData<BufferedImage> imageData, String engine, TileGrid grid)
+            throws IOException {
+        if (!options.isTileCache()) {
+            return null;
+        }
+        int nModels = options.getModels().size();
+        if (nModels < ModelVersion.getDefault().getModels().size()) {
+            engine += "-" + nModels + "models";
+        }
+        return command.openTileCache(resultsDir, imageData, engine, grid);
+    }
+
+    // Tiles worth running inference on: those inside the detection regions that aren't just glass
+    private List<DetectionTile> selectTiles(ImageData<BufferedImage> imageData, TileGrid grid, DetectionRegions regions)
+            throws IOException {
+        try (RunMetrics.Timer timer = metrics.time(RunMetrics.Stage.PREPARE)) {
+            return selectTissueTiles(imageData, grid, regions);
+        }
+    }
+
+    private List<DetectionTile> selectTissueTiles(ImageData<BufferedImage> imageData, TileGrid grid, DetectionRegions regions)
+            throws IOException {
+        List<DetectionTile> allTiles = grid.createTiles(imageData.getServer());
+        List<DetectionTile> tiles = regions.filterTiles(allTiles);
+        int outsideRegions = allTiles.size() - tiles.size();
+        int background = 0;
+        if (options.isTissueFilter() && imageData.getServer().isRGB()) {
+            updateMessage("Finding tissue");
+            TissueMask mask = TissueMask.create(imageData.getServer(), options.getTissueThreshold());
+            List<DetectionTile> tissueTiles = mask.filterTiles(tiles, MIN_TISSUE_FRACTION);
+            background = tiles.size() - tissueTiles.size();
+            tiles = tissueTiles;
+            logger.info("Tissue covers {}% of the image", String.format("%.1f", mask.getTissueFraction() * 100));
+        }
+        logger.info("Running on {} of {} tiles, skipped {} outside the annotations and {} without tissue",
+                tiles.size(), allTiles.size(), outsideRegions, background);
+        updateMessage(String.format("Skipped %d of %d tiles", outsideRegions + background, allTiles.size()));
+        return tiles;
+    }
+
+    // Read tiles through QuPath, prefetching them while the worker runs inference on the current one,
+    // or sharing them between several workers that each read their own
+    private void runTiles(ProcessBuilder processBuilder, int nWorkers, ImageData<BufferedImage> imageData, List<DetectionTile> tiles,
+                          String qupathModelDir, TileResultCache cache, StreamingImport streamingImport)
+            throws IOException, InterruptedException {
+        checkRGB(imageData);
+        try (TileRun run = new TileRun(imageData, tiles, cache, options.getModels().size(), streamingImport)) {
+            if (nWorkers > 1 && run.toRead.size() > 1) {
+                run.runSharded(nWorkers, (index, queue, done) ->
+                        runShard(processBuilder, imageData.getServer(), qupathModelDir, index, queue, done));
+            } else {
+                runWorker(processBuilder, worker -> run.run(image -> detectTile(worker, image, qupathModelDir)), () -> true);
+            }
+            run.finish();
+        }
+    }
+
+    // Run the shards a worker takes from the queue on a warm worker of its own, a tile interrupted by a crash is run again
+    private void runShard(ProcessBuilder processBuilder, ImageServer<BufferedImage> server, String qupathModelDir, int index,
+                          ShardQueue<DetectionTile> queue, BiConsumer<DetectionTile, List<CircleDetection>> done)
+            throws IOException, InterruptedException {
+        Deque<DetectionTile> shard = new ArrayDeque<>();
+        runWorker(processBuilder, worker -> {
+            while (true) {
+                if (shard.isEmpty()) {
+                    List<DetectionTile> next = queue.next(index);
+                    if (next == null) {
+                        return;
+                    }
+                    shard.addAll(next);
+                }
+                checkCancelled();
+                List<CircleDetection> circles = detectTile(worker, TilePrefetcher.read(server, shard.peekFirst()), qupathModelDir);
+                done.accept(shard.pollFirst(), circles);
+            }
+        }, () -> true);
+    }
+
+    // Circles of a tile only count once the worker has finished it, so a crash can't leave half a tile behind
+    private List<CircleDetection> detectTile(InferenceWorker worker, TilePrefetcher.TileImage image, String qupathModelDir)
+            throws IOException, InterruptedException {
+        List<CircleDetection> circles = new ArrayList<>();
+        worker.detectStream(command.buildTileRequest(image, qupathModelDir, options.getModels()), circles::add);
+        return circles;
+    }
+
+    // Run the models in QuPath, fusing the circles of all models and overlapping tiles as rows complete
+    private void runOnnx(OnnxCircleNetEngine engine, ImageData<BufferedImage> imageData, List<DetectionTile> tiles,
+                         TileResultCache cache, StreamingImport streamingImport) throws IOException, InterruptedException {
+        checkRGB(imageData);
+        try (TileRun run = new TileRun(imageData, tiles, cache, engine.getModelCount(), streamingImport)) {
+            run.run(image -> {
+                List<CircleDetection> circles = new ArrayList<>();
+                for (List<CircleDetection> modelCircles : engine.detect(image, SCORE_THRESHOLD)) {
+                    circles.addAll(modelCircles);
+                }
+                return circles;
+            });
+            run.finish();
+        }
+    }
+
+    // Top of the next tile to be processed, after the given number of tiles are done
+    private static double getNextTileY(List<DetectionTile> tiles, int done) {
+        return done < tiles.size() ? tiles.get(done).getRequest().getY() : Double.POSITIVE_INFINITY;
+    }
+
+    private static void checkRGB(ImageData<BufferedImage> imageData) throws IOException {
+        if (!imageData.getServer().isRGB()) {
+            throw new IOException("CircleNet needs an RGB brightfield image");
+        }
+    }
+
+    private void updateTileProgress(int done, int total, int count, double etaSeconds) {
+        updateProgress(PREPARE_END + (INFER_END - PREPARE_END) * done / total, 1);
+        metrics.sampleHeap();
+        if (Double.isNaN(etaSeconds)) {
+            updateMessage(String.format("Tile %d of %d, %d detections", done, total, count));
+        } else {
+            updateMessage(String.format("Tile %d of %d, %d detections, about %s left",
+                    done, total, count, ProcessOutputPump.formatDuration(etaSeconds)));
+        }
+    }
+
+    /**
+     * Work that produces streamed circles.
+     */
+    @FunctionalInterface
+    private interface StreamingJob {
+        void run(StreamingImport streamingImport) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Runs detection on some tiles of a grid, passing the circles on as they are found.
+     */
+    @FunctionalInterface
+    private interface TilePass {
+        void run(TileGrid grid, List<DetectionTile> tiles, TileResultCache cache, StreamingImport sink)
+                throws IOException, InterruptedException;
+    }
+
+    /**
+     * Finds the raw per-model circles in one tile.
+     */
+    @FunctionalInterface
+    private interface TileDetector {
+        List<CircleDetection> detect(TilePrefetcher.TileImage image) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Runs the tiles of one shard worker, passing each finished tile on.
+     */
+    @FunctionalInterface
+    private interface ShardWorker {
+        void run(int index, ShardQueue<DetectionTile> queue, BiConsumer<DetectionTile, List<CircleDetection>> done)
+                throws IOException, InterruptedException;
+    }
+
+    /**
+     * The circles of a tile finished by a shard worker, or the reason the worker failed.
+     */
+    private static class ShardResult {
+
+        private final DetectionTile tile;
+        private final List<CircleDetection> circles;
+        private final Exception error;
+
+        private ShardResult(DetectionTile tile, List<CircleDetection> circles, Exception error) {
+            this.tile = tile;
+            this.circles = circles;
+            this.error = error;
+        }
+
+    }
+
+    /**
+     * Detects the tiles that weren't already run, in the priority region first, and fuses the circles of all tiles.
+     * <p>
+     * Fusion needs the tiles in row order, so a tile inferred ahead of an earlier one is held back until that one is done;
+     * cached tiles are taken from the result cache as fusion reaches them. Only uncached tiles are read from the image.
+     * Progress is kept between calls to {@link #run(TileDetector)}, so after a worker crash a new worker
+     * carries on from the tile that failed.
+     */
+    private class TileRun implements AutoCloseable {
+
+        private final ImageData<BufferedImage> imageData;
+        private final List<DetectionTile> tiles;
+        // Tiles to infer, in the order they are run
+        private final List<DetectionTile> toRead = new ArrayList<>();
+        private final TileResultCache cache;
+        private final StreamingCircleFusion fusion;
+        private final PriorityFusion priority;
+        private final StreamingImport streamingImport;
+        private final Map<DetectionTile, List<CircleDetection>> heldBack = new HashMap<>();
+        private final long startNanos = System.nanoTime();
+        private TilePrefetcher prefetcher;
+        private TilePrefetcher.TileImage current;
+        private final int nPriority;
+        private int nextRead;
+        private int done;
+        private int fromCache;
+        private int inferred;
+
+        private TileRun(ImageData<BufferedImage> imageData, List<DetectionTile> tiles, TileResultCache cache, int nModels,
+                        StreamingImport streamingImport) {
+            this.imageData = imageData;
+            this.tiles = tiles;
+            this.cache = cache;
+            this.streamingImport = streamingImport;
+            int width = imageData.getServer().getWidth();
+            int height = imageData.getServer().getHeight();
+
+            List<DetectionTile> priorityTiles = new ArrayList<>();
+            List<DetectionTile> otherTiles = new ArrayList<>();
+            Rectangle2D region = priorityRegion;
+            for (DetectionTile tile : tiles) {
+                RegionRequest request = tile.getRequest();
+                if (region != null && region.intersects(request.getX(), request.getY(), request.getWidth(), request.getHeight())) {
+                    priorityTiles.add(tile);
+                } else {
+                    otherTiles.add(tile);
+                }
+            }
+            // Only worth it when the region is part of the slide
+            if (priorityTiles.isEmpty() || otherTiles.isEmpty()) {
+                priorityTiles.clear();
+                this.priority = null;
+            } else {
+                this.priority = new PriorityFusion(priorityTiles, new CircleFusion(FUSION_IOU_THRESHOLD, nModels), width, height, streamingImport);
+                logger.info("Running the {} tiles in view first", priorityTiles.size());
+            }
+            // Circles centred in the priority region have already been passed on by its own fusion
+            this.fusion = new StreamingCircleFusion(new CircleFusion(FUSION_IOU_THRESHOLD, nModels), tiles, width, height, circle -> {
+                if (priority == null || !priority.contains(circle)) {
+                    streamingImport.accept(circle);
+                }
+            });
+            for (DetectionTile tile : priorityTiles) {
+                if (cache == null || !cache.contains(tile)) {
+                    toRead.add(tile);
+                }
+            }
+            nPriority = toRead.size();
+            for (DetectionTile tile : priority == null ? tiles : otherTiles) {
+                if (cache == null || !cache.contains(tile)) {
+                    toRead.add(tile);
+                }
+            }
+            logger.info("Running CircleNet on {} tiles, {} already done in an earlier run", toRead.size(), tiles.size() - toRead.size());
+        }
+
+        private void run(TileDetector detector) throws IOException, InterruptedException {
+            if (prefetcher == null) {
+                prefetcher = new TilePrefetcher(imageData.getServer(), toRead, TilePrefetcher.getDefaultThreads());
+                fuseAvailable();
+            }
+            while (nextRead < toRead.size()) {
+                if (current == null) {
+                    current = prefetcher.next();
+                }
+                checkCancelled();
+                List<CircleDetection> circles = detector.detect(current);
+                current = null;
+                tileInferred(toRead.get(nextRead++), circles);
+            }
+        }
+
+        /**
+         * Infer the tiles on several workers at once. The workers take shards of neighbouring tiles
+         * from a work-stealing queue, and the results are fused here, so fusion removes the duplicates
+         * where shards meet as it does between tiles.
+         */
+        private void runSharded(int nWorkers, ShardWorker shardWorker) throws IOException, InterruptedException {
+            // A shard never mixes tiles in the priority region with the rest, so the region is still done first
+            List<List<DetectionTile>> shards = new ArrayList<>(ShardQueue.split(toRead.subList(0, nPriority), SHARD_TILES, DetectionTile::getRow));
+            shards.addAll(ShardQueue.split(toRead.subList(nPriority, toRead.size()), SHARD_TILES, DetectionTile::getRow));
+            ShardQueue<DetectionTile> queue = new ShardQueue<>(shards, nWorkers);
+            BlockingQueue<ShardResult> results = new LinkedBlockingQueue<>();
+            ExecutorService pool = Executors.newFixedThreadPool(nWorkers, ThreadTools.createThreadFactory("circlenet-shard-", true));
+            logger.info("Sharing {} tiles between {} inference workers", toRead.size(), nWorkers);
+            boolean completed = false;
+            try {
+                for (int i = 0; i < nWorkers; i++) {
+                    int index = i;
+                    pool.execute(() -> {
+                        try {
+                            shardWorker.run(index, queue, (tile, circles) -> results.add(new ShardResult(tile, circles, null)));
+                        } catch (Exception e) {
+                            results.add(new ShardResult(null, null, e));
+                        }
+                    });
+                }
+                fuseAvailable();
+                while (inferred < toRead.size()) {
+                    ShardResult result = results.take();
+                    if (result.error != null) {
+                        throw shardFailure(result.error);
+                    }
+                    tileInferred(result.tile, result.circles);
+                }
+                completed = true;
+                logger.info("Inference workers stole {} shards from each other", queue.getStolenCount());
+            } finally {
+                if (!completed) {
+                    // The other workers may still be busy with tiles nobody will use
+                    destroyProcesses();
+                }
+                pool.shutdownNow();
+            }
+        }
+
+        private void tileInferred(DetectionTile tile, List<CircleDetection> circles) throws IOException {
+            inferred++;
+            if (cache != null) {
+                cache.put(tile, circles);
+            }
+            heldBack.put(tile, circles);
+            fuseAvailable();
+            // Sparse regions may take a while to fill a batch, so what there is gets shown regularly
+            streamingImport.flushIfDue();
+            updateTileProgress(tiles.size() - toRead.size() + inferred, tiles.size(), streamingImport.count, estimateSecondsLeft());
+        }
+
+        // Fuse every tile whose turn has come and whose circles are known
+        private void fuseAvailable() throws IOException {
+            if (priority != null) {
+                priority.fuseAvailable(this::getCircles);
+            }
+            while (done < tiles.size()) {
+                DetectionTile tile = tiles.get(done);
+                List<CircleDetection> circles = heldBack.remove(tile);
+                if (circles == null && cache != null && (circles = cache.get(tile)) != null) {
+                    fromCache++;
+                }
+                if (circles == null) {
+                    return;
+                }
+                fusion.add(tile, circles);
+                fusion.advance(getNextTileY(tiles, ++done));
+            }
+        }
+
+        private List<CircleDetection> getCircles(DetectionTile tile) {
+            List<CircleDetection> circles = heldBack.get(tile);
+            return circles == null && cache != null ? cache.get(tile) : circles;
+        }
+
+        // Cached tiles take no time, so the estimate is based on the tiles still to infer
+        private double estimateSecondsLeft() {
+            if (inferred == 0) {
+                return Double.NaN;
+            }
+            double secondsPerTile = (System.nanoTime() - startNanos) / 1e9 / inferred;
+            return secondsPerTile * (toRead.size() - inferred);
+        }
+
+        private void finish() throws IOException {
+            fusion.finish();
+            metrics.addTiles(inferred, fromCache);
+            logger.info("Reused {} cached tiles, dropped {} circles cut by a tile edge", fromCache, fusion.getDroppedAtBorder());
+        }
+
+        @Override
+        public void close() {
+            if (prefetcher != null) {
+                prefetcher.close();
+            }
+        }
+
+    }
+
+    /**
+     * Fuses the tiles of the priority region on their own as soon as they are done, so glomeruli there
+     * are shown before the rest of the slide has been run. It passes on the circles centred in the region,
+     * i.e. inside the part of a region tile that tile is responsible for; the fusion of the whole slide passes on the rest.
+     */
+    private static class PriorityFusion {
+
+        private final List<DetectionTile> tiles;
+        private final StreamingCircleFusion fusion;
+        private int done;
+        private boolean finished;
+
+        private PriorityFusion(List<DetectionTile> tiles, CircleFusion circleFusion, int width, int height,
+                               InferenceWorker.CircleConsumer consumer) {
+            this.tiles = tiles;
+            this.fusion = new StreamingCircleFusion(circleFusion, tiles, width, height, circle -> {
+                if (contains(circle)) {
+                    consumer.accept(circle);
+                }
+            });
+        }
+
+        private boolean contains(CircleDetection circle) {
+            for (DetectionTile tile : tiles) {
+                if (circle.getX() >= tile.getKeepMinX() && circle.getX() < tile.getKeepMaxX()
+                        && circle.getY() >= tile.getKeepMinY() && circle.getY() < tile.getKeepMaxY()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void fuseAvailable(Function<DetectionTile, List<CircleDetection>> circlesOfTile) throws IOException {
+            while (done < tiles.size()) {
+                List<CircleDetection> circles = circlesOfTile.apply(tiles.get(done));
+                if (circles == null) {
+                    return;
+                }
+                fusion.add(tiles.get(done), circles);
+                fusion.advance(getNextTileY(tiles, ++done));
+            }
+            if (!finished) {
+                finished = true;
+                fusion.finish();
+            }
+        }
+
+    }
+
+    /**
+     * Collects streamed circles into batches for {@link #importBatch(ImageData, PathObject, List)},
+     * grouped by the annotation they belong to.
+     */
+    private class StreamingImport implements InferenceWorker.CircleConsumer {
+
+        private final ImageData<BufferedImage> imageData;
+        private final DetectionRegions regions;
+        private final int batchSize;
+        private final Map<PathObject, List<PathObject>> batches = new LinkedHashMap<>();
+        private int pending;
+        private GeoJsonStreamWriter export;
+        private int count;
+        private long lastFlushNanos = System.nanoTime();
+
+        private StreamingImport(ImageData<BufferedImage> imageData, DetectionRegions regions, int batchSize) {
+            this.imageData = imageData;
+            this.regions = regions;
+            this.batchSize = Math.max(1, batchSize);
+        }
+
+        @Override
+        public void accept(CircleDetection circle) throws IOException {
+            PathObject parent = regions.findParent(circle.getX(), circle.getY());
+            if (parent == null) {
+                return;
+            }
+            batches.computeIfAbsent(parent, p -> new ArrayList<>()).add(circle.toPathObject(options.isImportAsDetections()));
+            pending++;
+            count++;
+            if (pending >= batchSize || isFlushDue()) {
+                flush();
+            }
+        }
+
+        // Add what there is if it has waited long enough, for when circles come in slowly
+        private void flushIfDue() throws IOException {
+            if (isFlushDue()) {
+                flush();
+            }
+        }
+
+        private boolean isFlushDue() {
+            return pending > 0 && System.nanoTime() - lastFlushNanos >= LIVE_UPDATE_NANOS;
+        }
+
+        private void flush() throws IOException {
+            if (pending == 0) {
+                return;
+            }
+            checkCancelled();
+            for (Map.Entry<PathObject, List<PathObject>> entry : batches.entrySet()) {
+                if (export != null) {
+                    export.write(entry.getValue());
+                }
+                importBatch(imageData, entry.getKey(), entry.getValue());
+            }
+            updateMessage("Imported " + count + " detections");
+            batches.clear();
+            pending = 0;
+            lastFlushNanos = System.nanoTime();
+        }
+
+    }
+
+    /**
+     * Keeps the circles of the coarse pass as candidates rather than importing them.
+     */
+    private class CandidateCollector extends StreamingImport {
+
+        private final List<CircleDetection> candidates = new ArrayList<>();
+
+        private CandidateCollector(ImageData<BufferedImage> imageData, DetectionRegions regions) {
+            super(imageData, regions, 1);
+        }
+
+        @Override
+        public void accept(CircleDetection circle) {
+            candidates.add(circle);
+            super.count++;
+        }
+
+    }
+
+    // Run the script in its own process, returning the last lines of its output
+    private String runProcess(ProcessBuilder processBuilder) throws IOException, InterruptedException {
+        Process process = processBuilder.start();
+        processes.add(process);
+        try {
+            return waitForProcess(process);
+        } finally {
+            processes.remove(process);
+        }
+    }
+
+    private String waitForProcess(Process process) throws IOException, InterruptedException {
+        // Handles the case where we were cancelled while the process was starting
+        if (isCancelled()) {
+            destroyProcesses();
+        }
+
+        // The output is read on its own thread, so this one is free to watch for a hung process
+        ProcessOutputPump output = ProcessOutputPump.start("circlenet-output-" + process.pid(), process.getInputStream(),
+                ProcessOutputPump.DEFAULT_TAIL_LINES, logger::debug);
+        output.setProgressListener(this::updateScriptProgress);
+        long timeoutMillis = getOutputTimeoutMillis();
+        try {
+            while (!process.waitFor(1, TimeUnit.SECONDS)) {
+                checkCancelled();
+                if (timeoutMillis > 0 && output.getMillisSinceOutput() > timeoutMillis) {
+                    destroyProcesses();
+                    logger.error("Python script output:{}{}", System.lineSeparator(), output.getTail());
+                    throw new IOException(String.format("Python script wrote nothing for %d seconds and was stopped",
+                            TimeUnit.MILLISECONDS.toSeconds(timeoutMillis)));
+                }
+            }
+            output.awaitEnd(OUTPUT_DRAIN_MILLIS);
+            checkCancelled();
+        } catch (InterruptedException | CancellationException e) {
+            // A script run is stopped by interrupting its thread, without cancel() to kill the process
+            destroyProcesses();
+            throw e;
+        }
+        int exitCode = process.exitValue();
+        if (exitCode != 0) {
+            logger.error("Python script output:{}{}", System.lineSeparator(), output.getTail());
+            throw new IOException("Python script exited with error code: " + exitCode);
+        }
+        logger.info("Python script executed successfully.");
+        return output.getTail();
+    }
+
+    private long getOutputTimeoutMillis() {
+        return TimeUnit.MINUTES.toMillis(options.getProcessTimeoutMinutes());
+    }
+
+    // Progress reported by the detection script itself, e.g. a tqdm bar
+    private void updateScriptProgress(long done, long total, double etaSeconds) {
+        updateProgress(PREPARE_END + (INFER_END - PREPARE_END) * done / total, 1);
+        if (Double.isNaN(etaSeconds)) {
+            updateMessage(String.format("CircleNet %d of %d", done, total));
+        } else {
+            updateMessage(String.format("CircleNet %d of %d, about %s left", done, total, ProcessOutputPump.formatDuration(etaSeconds)));
+        }
+    }
+
+    /**
+     * Work to run on an inference worker.
+     */
+    @FunctionalInterface
+    private interface WorkerJob {
+        void run(InferenceWorker worker) throws IOException, InterruptedException;
+    }
+
+    // Run the job on a warm worker, restarting the worker if it crashes part way through and the job can be repeated
+    private void runWorker(ProcessBuilder processBuilder, WorkerJob job, BooleanSupplier canRestart)
+            throws IOException, InterruptedException {
+        InferenceWorkerPool pool = GLOMainCommand.getWorkerPool();
+        for (int attempt = 0; ; attempt++) {
+            updateMessage(attempt == 0 ? "Running CircleNet" : "Restarting CircleNet worker");
+            InferenceWorker worker;
+            try (RunMetrics.Timer timer = metrics.time(RunMetrics.Stage.WORKER_START)) {
+                worker = pool.acquire(processBuilder);
+            }
+            processes.add(worker.getProcess());
+            if (isCancelled()) {
+                destroyProcesses();
+            }
+            worker.setOutputTimeout(getOutputTimeoutMillis());
+            // Only a worker that finished its request can be reused, one stopped part way through would reply to it later
+            boolean reusable = false;
+            try {
+                job.run(worker);
+                reusable = true;
+                return;
+            } catch (IOException e) {
+                checkCancelled();
+                reusable = true;
+                if (worker.isAlive() || attempt >= MAX_WORKER_RESTARTS || !canRestart.getAsBoolean()) {
+                    throw e;
+                }
+                logger.warn("Inference worker crashed, restarting: {}", e.getMessage());
+            } catch (InterruptedException | CancellationException e) {
+                destroyProcesses();
+                throw e;
+            } finally {
+                processes.remove(worker.getProcess());
+                worker.setOutputTimeout(0);
+                worker.setProgressListener(null);
+                if (reusable) {
+                    pool.release(worker);
+                } else {
+                    pool.discard(worker);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        destroyProcesses();
+        return cancelled;
+    }
+
+    private void destroyProcesses() {
+        for (Process p : processes) {
+            if (p.isAlive()) {
+                logger.info("Killing CircleNet process {}", p.pid());
+                p.descendants().forEach(ProcessHandle::destroyForcibly);
+                p.destroyForcibly();
+            }
+        }
+    }
+
+    // A failure on a shard worker's thread, rethrown on the task thread
+    private static IOException shardFailure(Exception e) {
+        if (e instanceof CancellationException) {
+            throw (CancellationException) e;
+        }
+        return e instanceof IOException ? new IOException(e.getMessage(), e) : new IOException("Inference worker failed: " + e.getMessage(), e);
+    }
+
+    // An interrupt counts too, since a script run outside a Task is stopped by interrupting its thread
+    private void checkCancelled() {
+        if (isCancelled() || Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Detection cancelled");
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package qupath.ext.template;
+
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * A tile sent for inference, with the part of it whose detections are kept.
+ * <p>
+ * Neighbouring tiles overlap so that glomeruli on a tile border are seen whole by one of them.
+ * The keep bounds split each overlap down the middle, so every circle is reported by exactly one tile.
+ * All coordinates are in the full-resolution image.
+ * <p>
+ * The row and column give the tile's position in its {@link TileGrid}, so neighbours can be found.
+ */
+public class DetectionTile {
+
+    private final RegionRequest request;
+    private final int row;
+    private final int column;
+    private final double keepMinX;
+    private final double keepMinY;
+    private final double keepMaxX;
+    private final double keepMaxY;
+
+    public DetectionTile(RegionRequest request, int row, int column,
+                         double keepMinX, double keepMinY, double keepMaxX, double keepMaxY) {
+        this.request = request;
+        this.row = row;
+        this.column = column;
+        this.keepMinX = keepMinX;
+        this.keepMinY = keepMinY;
+        this.keepMaxX = keepMaxX;
+        this.keepMaxY = keepMaxY;
+    }
+
+    public RegionRequest getRequest() {
+        return request;
+    }
+
+    public int getRow() {
+        return row;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    // Whether a circle centred at this point belongs to the tile
+    public boolean keeps(double x, double y) {
+        return x >= keepMinX && x < keepMaxX && y >= keepMinY && y < keepMaxY;
+    }
+
+    public double getKeepMinX() {
+        return keepMinX;
+    }
+
+    public double getKeepMinY() {
+        return keepMinY;
+    }
+
+    public double getKeepMaxX() {
+        return keepMaxX;
+    }
+
+    public double getKeepMaxY() {
+        return keepMaxY;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Tile[x=%d, y=%d, w=%d, h=%d, downsample=%.2f]",
+                request.getX(), request.getY(), request.getWidth(), request.getHeight(), request.getDownsample());
+    }
+
+}
@@ -0,0 +1,402 @@
+package qupath.ext.template;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Downloads model and script artifacts concurrently.
+ * <p>
+ * Each artifact is streamed into a {@code .part} file, resumed with an HTTP Range request if a
+ * previous download was interrupted, checked against its SHA-256 and then atomically moved into place.
+ * The hash and size of every completed artifact are recorded in a manifest in the destination directory;
+ * files without a manifest entry (e.g. from older versions of the extension) are treated as partial
+ * downloads and resumed, so a truncated checkpoint is never silently reused. Existing files are hashed
+ * again before they are used, so a file changed on disk is never trusted because its size still matches.
+ */
+public class DownloadManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(DownloadManager.class);
+
+    public static final String MANIFEST_NAME = "download-manifest.json";
+
+    private static final String PART_SUFFIX = ".part";
+    private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+    private static final int HASH_BUFFER = 1024 * 1024;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    private final HttpClient client;
+    private final int nThreads;
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+
+    /**
+     * A file to download. The file name may include subdirectories relative to the destination.
+     * If {@code sha256} is null, the hash recorded on first download is used instead, so a file that later
+     * changes, locally or upstream, is rejected rather than replacing the one first downloaded.
+     */
+    public static class Artifact {
+
+        private final URI uri;
+        private final String fileName;
+        private final String sha256;
+
+        public Artifact(String url, String fileName, String sha256) {
+            this.uri = URI.create(url);
+            this.fileName = fileName;
+            this.sha256 = sha256;
+        }
+
+        // The file name is taken from the last part of the URL
+        public static Artifact fromUrl(String url) {
+            String[] urlParts = url.split("/");
+            return new Artifact(url, urlParts[urlParts.length - 1], null);
+        }
+
+        public URI getUri() {
+            return uri;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+    }
+
+    /**
+     * Manifest record for a completed download.
+     */
+    static class ManifestEntry {
+        String url;
+        String sha256;
+        long size;
+    }
+
+    public DownloadManager(int nThreads) {
+        this(HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(30))
+                .build(), nThreads);
+    }
+
+    // The client can be replaced, e.g. to point at a local HTTP server
+    public DownloadManager(HttpClient client, int nThreads) {
+        this.client = client;
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    /**
+     * Download all the artifacts into the directory, skipping any that are already complete.
+     * @param artifacts the files to download
+     * @param directory the destination directory
+     * @param onComplete called (from a download thread) after each artifact is available
+     * @return the paths of the downloaded files, in the same order as the artifacts
+     * @throws IOException if any download fails; the other downloads are still completed
+     */
+    public List<Path> downloadAll(List<Artifact> artifacts, Path directory, Consumer<Artifact> onComplete)
+            throws IOException, InterruptedException {
+        if (artifacts.isEmpty()) {
+            return List.of();
+        }
+        Files.createDirectories(directory);
+        Map<String, ManifestEntry> manifest = readManifest(directory);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(nThreads, artifacts.size()),
+                ThreadTools.createThreadFactory("circlenet-download-", true));
+        Exception error = null;
+        try {
+            List<Future<Path>> futures = new ArrayList<>();
+            for (Artifact artifact : artifacts) {
+                futures.add(pool.submit(() -> {
+                    Path path = download(artifact, directory, manifest);
+                    if (onComplete != null) {
+                        onComplete.accept(artifact);
+                    }
+                    return path;
+                }));
+            }
+
+            List<Path> paths = new ArrayList<>();
+            IOException failure = null;
+            for (Future<Path> future : futures) {
+                try {
+                    paths.add(future.get());
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = new IOException("Failed to download all CircleNet resources");
+                    }
+                    failure.addSuppressed(e.getCause());
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return paths;
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            error = e;
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            pool.shutdown();
+            // The downloads that did complete are still recorded, without hiding why the others failed
+            try {
+                writeManifest(directory, manifest);
+            } catch (IOException e) {
+                if (error == null) {
+                    throw e;
+                }
+                error.addSuppressed(e);
+            }
+        }
+    }
+
+    // Download a single artifact, resuming a partial file if there is one
+    private Path download(Artifact artifact, Path directory, Map<String, ManifestEntry> manifest)
+            throws IOException, InterruptedException {
+        Path target = directory.resolve(artifact.getFileName());
+        Path part = directory.resolve(artifact.getFileName() + PART_SUFFIX);
+        Files.createDirectories(target.getParent());
+
+        ManifestEntry entry;
+        synchronized (manifest) {
+            entry = manifest.get(artifact.getFileName());
+        }
+        String expected = getExpectedHash(artifact, entry);
+        if (Files.isRegularFile(target)) {
+            if (entry != null && expected != null && entry.size == Files.size(target)) {
+                if (expected.equalsIgnoreCase(sha256(target))) {
+                    logger.debug("File already exists: {}", target);
+                    return target;
+                }
+                // Complete but changed, so there is nothing worth resuming
+                logger.warn("{} does not match the hash recorded when it was downloaded, downloading it again", target);
+                Files.delete(target);
+            } else {
+                // Unknown or inconsistent file, so check it by resuming rather than trusting it
+                logger.info("Verifying existing file {}", target);
+                Files.move(target, part, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        transfer(artifact, part);
+
+        String sha256 = sha256(part);
+        if (expected != null && !expected.equalsIgnoreCase(sha256)) {
+            Files.deleteIfExists(part);
+            if (artifact.getSha256() == null) {
+                throw new IOException("Checksum mismatch for " + artifact.getFileName() + ": the remote file is not the one first downloaded to "
+                        + directory + " (expected " + expected + " but was " + sha256 + "), delete the directory to accept the new file");
+            }
+            throw new IOException("Checksum mismatch for " + artifact.getFileName()
+                    + ": expected " + expected + " but was " + sha256);
+        }
+
+        moveAtomically(part, target);
+
+        ManifestEntry completed = new ManifestEntry();
+        completed.url = artifact.getUri().toString();
+        completed.sha256 = sha256;
+        completed.size = Files.size(target);
+        synchronized (manifest) {
+            manifest.put(artifact.getFileName(), completed);
+        }
+        logger.info("Downloaded: {}", target);
+        return target;
+    }
+
+    // Stream the artifact into the part file, appending to whatever is already there
+    private void transfer(Artifact artifact, Path part) throws IOException, InterruptedException {
+        long existing = Files.isRegularFile(part) ? Files.size(part) : 0;
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(artifact.getUri()).GET();
+        if (existing > 0) {
+            builder.header("Range", "bytes=" + existing + "-");
+        }
+        HttpResponse<InputStream> response = client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        int status = response.statusCode();
+
+        try (InputStream body = response.body()) {
+            if (status == HTTP_RANGE_NOT_SATISFIABLE && existing > 0) {
+                // Nothing left to fetch, provided the server agrees on the total size
+                long total = parseTotalSize(response.headers().firstValue("Content-Range").orElse(null));
+                if (total < 0 || total == existing) {
+                    return;
+                }
+                throw new IOException("Partial file " + part + " is larger than the remote file");
+            }
+            boolean append;
+            if (status == 206) {
+                append = true;
+            } else if (status == 200) {
+                // Server ignored the Range header, so start again
+                append = false;
+            } else {
+                throw new IOException("Failed to download file: " + status + " " + artifact.getUri());
+            }
+
+            long expectedLength = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+            long written = 0;
+            try (ReadableByteChannel in = Channels.newChannel(body);
+                 FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                if (!append) {
+                    out.truncate(0);
+                }
+                long position = out.size();
+                long n;
+                while ((n = out.transferFrom(in, position, TRANSFER_CHUNK)) > 0) {
+                    position += n;
+                    written += n;
+                    bytesDownloaded.addAndGet(n);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException("Download interrupted: " + artifact.getUri());
+                    }
+                }
+            }
+            if (expectedLength >= 0 && written != expectedLength) {
+                throw new IOException("Incomplete download of " + artifact.getUri()
+                        + " (" + written + " of " + expectedLength + " bytes), will resume next time");
+            }
+        }
+    }
+
+    // The pinned hash, or else the one recorded when the file was first downloaded, or null if it never was
+    private static String getExpectedHash(Artifact artifact, ManifestEntry entry) {
+        if (artifact.getSha256() != null) {
+            return artifact.getSha256();
+        }
+        return entry == null ? null : entry.sha256;
+    }
+
+    // Hash of an artifact's file as recorded by the last download into the directory, or null if it hasn't been downloaded
+    public static String getRecordedHash(Path directory, Artifact artifact) {
+        ManifestEntry entry = readManifest(directory).get(artifact.getFileName());
+        return entry == null ? null : entry.sha256;
+    }
+
+    // Whether the artifact's file is there with the size recorded when it was downloaded, a check that needs no hashing
+    static boolean hasRecordedSize(Path directory, Artifact artifact) {
+        ManifestEntry entry = readManifest(directory).get(artifact.getFileName());
+        Path path = directory.resolve(artifact.getFileName());
+        try {
+            return entry != null && Files.isRegularFile(path) && Files.size(path) == entry.size;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Parse the total from a header like 'bytes */1234'
+    private static long parseTotalSize(String contentRange) {
+        if (contentRange == null || !contentRange.contains("/")) {
+            return -1;
+        }
+        String total = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+        try {
+            return "*".equals(total) ? -1 : Long.parseLong(total);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static String sha256(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Write to a temp file then move, so readers never see a half-written file
+    static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static Map<String, ManifestEntry> readManifest(Path directory) {
+        Path path = directory.resolve(MANIFEST_NAME);
+        if (Files.isRegularFile(path)) {
+            try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                Map<String, ManifestEntry> manifest = gson.fromJson(reader, new TypeToken<Map<String, ManifestEntry>>() {}.getType());
+                if (manifest != null) {
+                    return new HashMap<>(manifest);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Unable to read download manifest, all files will be verified: {}", e.getMessage());
+            }
+        }
+        return new HashMap<>();
+    }
+
+    private static void writeManifest(Path directory, Map<String, ManifestEntry> manifest) throws IOException {
+        Path path = directory.resolve(MANIFEST_NAME);
+        Path temp = directory.resolve(MANIFEST_NAME + PART_SUFFIX);
+        synchronized (manifest) {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                gson.toJson(manifest, writer);
+            }
+        }
+        moveAtomically(temp, path);
+    }
+
+    // Total bytes transferred by this manager, including resumed downloads
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+}
@@ -1,23 +1,39 @@
 package qupath.ext.template;
 
-import javafx.application.Platform;
-import javafx.concurrent.Task;
-import qupath.lib.io.PathIO;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import javafx.event.ActionEvent;
+import javafx.scene.Scene;
+import javafx.scene.control.ButtonType;
+import javafx.stage.Modality;
+import javafx.stage.Stage;
+import org.controlsfx.dialog.ProgressDialog;
+import qupath.ext.template.ui.BatchQueueController;
+import qupath.fx.dialogs.Dialogs;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.images.ImageData;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
 import java.io.InputStream;
 import java.io.FileInputStream; 
-import java.io.FileOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
 
 
 import qupath.lib.gui.QuPathGUI;
-import qupath.lib.images.servers.ImageServer;
-import qupath.lib.objects.PathObject;
+import qupath.lib.gui.viewer.QuPathViewer;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -26,25 +42,55 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Map;
-import java.net.HttpURLConnection;
-import java.net.URL;
-
-import java.io.*;
-import java.net.*;
-import java.nio.file.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class GLOMainCommand {
 
     private static final Logger logger = LoggerFactory.getLogger(GLOMainCommand.class);
+    private static final String TITLE = "CircleNet";
+
+    // Maximum number of detection runs waiting behind the one currently running
+    private static final int MAX_QUEUED_TASKS = 4;
+
+    // Single worker, since one CircleNet run already saturates the machine
+    private static final ExecutorService detectionPool = new ThreadPoolExecutor(
+            1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED_TASKS),
+            ThreadTools.createThreadFactory("circlenet-detection-", true));
+
+    // Warm Python workers shared by all detection runs
+    private static final InferenceWorkerPool workerPool = new InferenceWorkerPool(
+            () -> TimeUnit.MINUTES.toMillis(GloExtension.workerIdleMinutesProperty().getValue()));
+
+    // Workers are separate processes, so they are stopped when QuPath or a headless script exits
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(workerPool::shutdown, "circlenet-worker-shutdown"));
+    }
+
+    // Metrics of every run in this session
+    private static final RunMetricsLog metricsLog = new RunMetricsLog();
+
+    // Script run by the warm worker, bundled with the extension
+    private static final String WORKER_SCRIPT = "circlenet_worker.py";
+
+    // Converts the checkpoints for the in-QuPath ONNX engine
+    private static final String EXPORT_SCRIPT = "export_onnx.py";
+
+    private static final List<String> BUNDLED_SCRIPTS = List.of(WORKER_SCRIPT, EXPORT_SCRIPT);
+
+    // Folder of the model version holding the ONNX exports
+    private static final String ONNX_DIR = "onnx";
+
     private final QuPathGUI qupath; // Qupath GUI instance
-    private String serverURL;
-    private String targetDir;
 
 
     public GLOMainCommand(QuPathGUI qupath) {
@@ -69,329 +115,389 @@ public class GLOMainCommand {
     Files.setPosixFilePermissions(path, perms);
     }
 
+    // Download a single file, resuming and verifying it if a previous download was interrupted
     public void downloadFile(String fileUrl, String destinationPath) throws IOException {
-        File destinationFile = new File(destinationPath);
+        Path destination = Paths.get(destinationPath);
+        DownloadManager.Artifact artifact = new DownloadManager.Artifact(fileUrl, destination.getFileName().toString(), null);
+        try {
+            new DownloadManager(1).downloadAll(List.of(artifact), destination.getParent(), null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download interrupted: " + fileUrl);
+        }
+        setFolderPermissions(destinationPath);
+    }
 
-        // Check if the file already exists
-        if (destinationFile.exists()) {
-            System.out.println("File already exists: " + destinationPath);
+    // Method to unzip a .zip file
+    public void unzipFile(String zipFilePath, String destDir) throws IOException {
+        ScriptArchive.extract(zipFilePath, destDir);
+    }
+
+    // Submit detection task
+    // The task is queued on the detection pool so that download, inference and import never block the FX thread
+    public void submitDetectionTask() {
+        ImageData<BufferedImage> imageData = qupath.getImageData();
+        if (imageData == null) {
+            Dialogs.showErrorMessage(TITLE, "No image is open");
             return;
         }
 
-        URL url = new URL(fileUrl);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setInstanceFollowRedirects(true);  // Automatically follow redirects
-        connection.setRequestMethod("GET");
-        connection.connect();
-
-        int status = connection.getResponseCode();
-        if (status != HttpURLConnection.HTTP_OK) {
-            // Handle redirects (e.g., 303, 302, etc.)
-            if (status == HttpURLConnection.HTTP_MOVED_TEMP || status == HttpURLConnection.HTTP_MOVED_PERM ||
-                status == HttpURLConnection.HTTP_SEE_OTHER) {
-                String newUrl = connection.getHeaderField("Location");
-                connection = (HttpURLConnection) new URL(newUrl).openConnection();
-                connection.connect();
+        DetectionTask task = new DetectionTask(this, imageData);
+        // Start where the user is looking, unless the whole slide is in view
+        QuPathViewer viewer = qupath.getViewer();
+        if (viewer != null && viewer.getImageData() == imageData && viewer.getDisplayedRegionShape() != null) {
+            task.setPriorityRegion(viewer.getDisplayedRegionShape().getBounds2D());
+        }
+        task.setOnSucceeded(e -> Dialogs.showInfoNotification(TITLE,
+                "Added " + task.getValue() + " detections"));
+        task.setOnCancelled(e -> Dialogs.showWarningNotification(TITLE, "Detection cancelled"));
+        task.setOnFailed(e -> {
+            logger.error("Error during detection", task.getException());
+            Dialogs.showErrorMessage(TITLE, "Detection failed: " + task.getException().getMessage());
+        });
+
+        try {
+            detectionPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            Dialogs.showErrorMessage(TITLE, "Too many detection runs are already queued, please wait for them to finish");
+            return;
+        }
+        showProgressDialog(task);
+    }
+
+    // Submit detection tasks for every image in the current project
+    // Slides are scheduled across numThreadsProperty workers and the results saved with each entry
+    public void submitProjectDetectionTask() {
+        Project<BufferedImage> project = qupath.getProject();
+        if (project == null || project.getImageList().isEmpty()) {
+            Dialogs.showErrorMessage(TITLE, "No project with images is open");
+            return;
+        }
+
+        // The open image is updated live, otherwise the viewer would later overwrite the saved results
+        ImageData<BufferedImage> currentImageData = qupath.getImageData();
+        ProjectImageEntry<BufferedImage> currentEntry = currentImageData == null ? null : project.getEntry(currentImageData);
+
+        int nThreads = Math.max(1, GloExtension.numThreadsProperty().getValue());
+        // Slides run side by side share the machine, so each gets a share of the workers
+        DetectionOptions options = DetectionOptions.fromPreferences();
+        options.setShardWorkers(options.resolveShardWorkers(nThreads));
+        options.setConcurrentSlides(nThreads);
+
+        List<DetectionTask> tasks = new ArrayList<>();
+        for (ProjectImageEntry<BufferedImage> entry : project.getImageList()) {
+            if (entry == currentEntry) {
+                tasks.add(new DetectionTask(this, currentImageData, options));
             } else {
-                throw new IOException("Failed to download file: " + connection.getResponseCode());
+                tasks.add(new ProjectEntryDetectionTask(this, entry, options));
             }
         }
 
-        try (InputStream inputStream = connection.getInputStream();
-            FileOutputStream outputStream = new FileOutputStream(destinationFile)) {
-
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
+        Path metricsDir;
+        try {
+            metricsDir = getMetricsDirectory();
+        } catch (IOException e) {
+            logger.warn("Unable to create the results directory, batch metrics won't be saved", e);
+            metricsDir = null;
+        }
+        ProjectDetectionScheduler scheduler = new ProjectDetectionScheduler(tasks, nThreads, metricsDir);
+        try {
+            Stage stage = new Stage();
+            stage.setTitle(TITLE + " - " + project.getName());
+            if (qupath.getStage() != null) {
+                stage.initOwner(qupath.getStage());
             }
+            stage.setScene(new Scene(BatchQueueController.createInstance(scheduler)));
+            stage.show();
+        } catch (IOException e) {
+            logger.error("Unable to load batch queue FXML", e);
         }
+        logger.info("Running detection on {} images with {} threads", tasks.size(), nThreads);
+        scheduler.start();
+    }
 
-        System.out.println("Downloaded: " + destinationPath);
-        setFolderPermissions(destinationPath);
+    // Non-modal progress dialog, so the viewer can still be used while detection is running
+    private void showProgressDialog(DetectionTask task) {
+        ProgressDialog dialog = new ProgressDialog(task);
+        dialog.setTitle(TITLE);
+        dialog.setHeaderText("Running CircleNet detection");
+        dialog.initModality(Modality.NONE);
+        if (qupath.getStage() != null) {
+            dialog.initOwner(qupath.getStage());
+        }
+        dialog.getDialogPane().getButtonTypes().setAll(ButtonType.CANCEL);
+        dialog.getDialogPane().lookupButton(ButtonType.CANCEL)
+                .addEventFilter(ActionEvent.ACTION, e -> task.cancel(true));
+        dialog.show();
+    }
+
+    // Folder for the Python output, kept outside the model cache so results survive cache eviction
+    public String getResultsDirectory() throws IOException {
+        String userPath = PathPrefs.getUserPath();
+        Path base = userPath == null ? Paths.get(System.getProperty("user.home"), "QuPath") : Paths.get(userPath);
+        Path resultsDir = base.resolve("circlenet").resolve("results");
+        Files.createDirectories(resultsDir);
+        return resultsDir.toString();
     }
 
+    // Get the cached models and Python scripts for the current model version, downloading them if needed
+    public String prepareResources(Consumer<DownloadManager.Artifact> onDownloaded, RunMetrics metrics) throws IOException {
+        Path versionDir = ModelCache.getDefault().resolve(ModelVersion.getDefault(), onDownloaded, metrics);
+        for (String name : BUNDLED_SCRIPTS) {
+            extractScript(versionDir.toString(), name);
+        }
+        return versionDir.toString();
+    }
 
-    // Helper method to parse confirmation token from Google Drive HTML page
-    private String parseConfirmationToken(HttpURLConnection connection) throws IOException {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.contains("confirm")) {
-                    // Extract the token from the HTML
-                    String token = line.split("confirm=")[1].split("&")[0];
-                    return token;
-                }
+    // Copy a bundled script next to the downloaded Python scripts, unless it is already up to date
+    private void extractScript(String qupathModelDir, String name) throws IOException {
+        byte[] script;
+        try (InputStream inputStream = GLOMainCommand.class.getResourceAsStream("python/" + name)) {
+            if (inputStream == null) {
+                throw new IOException("Missing bundled resource " + name);
             }
+            script = inputStream.readAllBytes();
+        }
+        Path target = Paths.get(qupathModelDir, ModelVersion.SCRIPTS_DIR, name);
+        if (!Files.isRegularFile(target) || !Arrays.equals(Files.readAllBytes(target), script)) {
+            Files.write(target, script);
         }
-        return null;
     }
 
-    // Method to unzip a .zip file
-    public void unzipFile(String zipFilePath, String destDir) throws IOException {
-        File dir = new File(destDir);
-        if (!dir.exists()) dir.mkdirs();
-
-        try (FileInputStream fis = new FileInputStream(zipFilePath);
-             ZipInputStream zis = new ZipInputStream(fis)) {
-            ZipEntry zipEntry = zis.getNextEntry();
-            while (zipEntry != null) {
-                File newFile = newFile(dir, zipEntry);
-                if (zipEntry.isDirectory()) {
-                    if (!newFile.isDirectory() && !newFile.mkdirs()) {
-                        throw new IOException("Failed to create directory " + newFile);
-                    }
-                } else {
-                    // fix for Windows-created archives
-                    File parent = newFile.getParentFile();
-                    if (!parent.isDirectory() && !parent.mkdirs()) {
-                        throw new IOException("Failed to create directory " + parent);
-                    }
-
-                    // write file content
-                    try (FileOutputStream fos = new FileOutputStream(newFile)) {
-                        byte[] buffer = new byte[1024];
-                        int len;
-                        while ((len = zis.read(buffer)) > 0) {
-                            fos.write(buffer, 0, len);
-                        }
-                    }
-                }
-                zipEntry = zis.getNextEntry();
+    // ONNX exports of the given models, which must be created with the bundled export script first
+    public List<Path> findOnnxModels(String qupathModelDir, List<DownloadManager.Artifact> checkpoints) throws IOException {
+        Path onnxDir = Paths.get(qupathModelDir, ONNX_DIR);
+        List<Path> models = new ArrayList<>();
+        for (DownloadManager.Artifact model : checkpoints) {
+            String name = Paths.get(model.getFileName()).getFileName().toString().replaceFirst("\\.pth$", "") + ".onnx";
+            Path path = onnxDir.resolve(name);
+            if (!Files.isRegularFile(path)) {
+                throw new IOException("ONNX model " + path + " not found. Export the models with "
+                        + Paths.get(qupathModelDir, ModelVersion.SCRIPTS_DIR, EXPORT_SCRIPT) + " " + qupathModelDir);
             }
-            zis.closeEntry();
+            models.add(path);
         }
+        return models;
     }
 
-    private static File newFile(File destinationDir, ZipEntry zipEntry) throws IOException {
-        File destFile = new File(destinationDir, zipEntry.getName());
+    public static InferenceWorkerPool getWorkerPool() {
+        return workerPool;
+    }
 
-        String destDirPath = destinationDir.getCanonicalPath();
-        String destFilePath = destFile.getCanonicalPath();
+    public static RunMetricsLog getMetricsLog() {
+        return metricsLog;
+    }
 
-        if (!destFilePath.startsWith(destDirPath + File.separator)) {
-            throw new IOException("Entry is outside of the target dir: " + zipEntry.getName());
-        }
+    // Folder holding the metrics report of each project batch
+    public Path getMetricsDirectory() throws IOException {
+        return Paths.get(getResultsDirectory(), "metrics");
+    }
 
-        return destFile;
+    // Entry of the image in the open project, or null if it isn't part of it
+    public ProjectImageEntry<BufferedImage> getProjectEntry(ImageData<BufferedImage> imageData) {
+        Project<BufferedImage> project = qupath == null ? null : qupath.getProject();
+        return project == null ? null : project.getEntry(imageData);
     }
 
-    // Method to download .pth files and Python scripts
-    public void downloadResources(String[] pthLinks, String zipFileUrl, String destinationDir) throws IOException {
-        // Download all .pth files
-        for (String modelUrl : pthLinks) {
-            String[] urlParts = modelUrl.split("/");
-            String pthFileName = urlParts[urlParts.length - 1];  // Extract the original file name from the URL
-            String destinationPath = destinationDir + "/" + pthFileName;
-            downloadFile(modelUrl, destinationPath);
-        }
+    // Column file the detections of every slide are appended to, for analysing a cohort
+    public Path getColumnFilePath() throws IOException {
+        return Paths.get(getResultsDirectory(), "cohort", "detections.gloc");
+    }
+
+    // Prepare the command starting a warm worker, the detection script is passed so the worker can run it
+    public List<String> buildWorkerCommand(String pythonPath, String qupathModelDir) {
+        return buildWorkerCommand(pythonPath, qupathModelDir, 0);
+    }
 
-    // Ensure the 'zip' directory exists
-    File zipDirectory = new File(destinationDir + "/zip");
-    if (!zipDirectory.exists()) {
-        zipDirectory.mkdirs();  // Create the directory if it doesn't exist
+    // Same, limiting torch to the given number of threads when several workers share the machine (0 for no limit)
+    public List<String> buildWorkerCommand(String pythonPath, String qupathModelDir, int nThreads) {
+        List<String> command = new ArrayList<>();
+        command.add(pythonPath);
+        command.add(qupathModelDir + "/python_scripts/" + WORKER_SCRIPT);
+        command.add(qupathModelDir + "/python_scripts/CircleNet_Zip/src/run_detection_for_scn.py");
+        if (nThreads > 0) {
+            command.add("--threads");
+            command.add(Integer.toString(nThreads));
+        }
+        return command;
     }
 
-    // Download the Python scripts as a ZIP file from GitHub
-    String zipFileDestination = destinationDir + "/zip/python_scripts.zip";
-    downloadFile(zipFileUrl, zipFileDestination);
+    // Get the WSI path from the image server, stripping the server prefix and series suffix
+    public String getWholeSlideImagePath(ImageData<BufferedImage> imageData) {
+        String rawPath = imageData.getServer().getPath();
+        String wholeSlideImagePath = rawPath.contains("file:") ? rawPath.split("file:")[1].trim() : rawPath;
 
-        // Unzip the file after download
-        unzipFile(zipFileDestination, destinationDir + "/python_scripts");
+        wholeSlideImagePath = wholeSlideImagePath.replaceAll("\\[--series, 0\\]$", ""); // removes series thing
+        logger.info("Extracted Whole Slide Image Path: {}", wholeSlideImagePath);
+        return wholeSlideImagePath;
     }
 
-    // Method to determine the Desktop directory and create 'QuPath_extension_model' folder
-    public String getDesktopDirectory() throws IOException {
-        String desktopDir = null;
-        String os = System.getProperty("os.name").toLowerCase();
+    // Generate GeoJSON file name based on WSI name
+    public String getGeoJsonName(String wholeSlideImagePath) throws IOException {
+        String wsiName = new File(wholeSlideImagePath).getName();
+        if (wsiName.endsWith(".svs")) {
+            return wsiName.replace(".svs", ".geojson");
+        } else if (wsiName.endsWith(".scn")) {
+            return wsiName.replace(".scn", ".geojson");
+        }
+        throw new IOException("Unsupported WSI format for file: " + wholeSlideImagePath);
+    }
 
+    // Method to locate the Python executable used to run CircleNet
+    public String findPythonExecutable() throws IOException, InterruptedException {
+        String os = System.getProperty("os.name").toLowerCase();
         if (os.contains("win")) {
-            // On Windows, the desktop is typically in the user's home directory
-            desktopDir = System.getProperty("user.home") + "\\Desktop";
-        } else if (os.contains("mac")) {
-            // On macOS, the desktop is in the user's home directory
-            desktopDir = System.getProperty("user.home") + "/Desktop";
-        } else if (os.contains("nix") || os.contains("nux") || os.indexOf("aix") > 0) {
-            // On Linux, the desktop is also in the user's home directory
-            desktopDir = System.getProperty("user.home") + "/Desktop";
-        } else {
-            throw new IOException("Unsupported operating system");
+            return "%PYTHONPATH%/python";
         }
 
-        // Ensure the directory exists
-        Files.createDirectories(Paths.get(desktopDir));
-        return desktopDir;
+        // Run "which python3" command
+        Process process = Runtime.getRuntime().exec("which python3");
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String pythonPath = reader.readLine(); // Get the first line of output
+            process.waitFor(); // Ensure the process completes before proceeding
+            if (pythonPath == null || pythonPath.isEmpty()) {
+                throw new IOException("Python3 not found!");
+            }
+            return pythonPath;
+        }
     }
 
-    // Submit detection task
-    public void submitDetectionTask() {
-        try {
-            String os = System.getProperty("os.name").toLowerCase();
-            // QuPath directory setup based on OS
-            String desktopDir = getDesktopDirectory();  // Get the QuPath directory based on the OS
-            String qupathModelDir = desktopDir + "/models_and_pythonfiles";  // Create a models folder in the QuPath directory
-            Files.createDirectories(Paths.get(qupathModelDir));
-
-            // Set folder permissions after creating the directory
-            setFolderPermissions(qupathModelDir);
-    
+    // Prepare Python command to run the downloaded script
+    public List<String> buildDetectionCommand(String pythonPath, String wholeSlideImagePath, String qupathModelDir, String resultsDir) {
+        List<String> command = new ArrayList<>();
+        command.add(pythonPath);
+        command.add(qupathModelDir + "/python_scripts/CircleNet_Zip/src/run_detection_for_scn.py");  // Use the downloaded Python script
+        command.add("circledet");
+        command.add("--circle_fusion");
+        command.add("--generate_geojson");
+        command.add("--arch");
+        command.add("dla_34");
+        command.add("--demo");
+        command.add(wholeSlideImagePath);
+        command.add("--load_model_dir");
+        command.add(qupathModelDir);  // Use the model directory with downloaded .pth files
+        command.add("--filter_boarder");
+        command.add("--demo_dir");
+        command.add(resultsDir + "/test_result");  // Set demo_dir as "test_result"
+        command.add("--target_dir");
+        command.add(resultsDir + "/test_only_result");  // Set target_dir as "test_only_result"
+        return command;
+    }
 
-            // Direct download links for the .pth files
-            String[] pthLinks = {
-                "https://raw.githubusercontent.com/JLY0814/qupath_wcf_extension/refs/heads/main/WCF/model/model1_best.pth",  // model1_best.pth
-                "https://raw.githubusercontent.com/JLY0814/qupath_wcf_extension/refs/heads/main/WCF/model/model2_best.pth",  // model2_best.pth
-                "https://raw.githubusercontent.com/JLY0814/qupath_wcf_extension/refs/heads/main/WCF/model/model3_best.pth",  // model3_best.pth
-                "https://raw.githubusercontent.com/JLY0814/qupath_wcf_extension/refs/heads/main/WCF/model/model4_best.pth",  // model4_best.pth
-                "https://raw.githubusercontent.com/JLY0814/qupath_wcf_extension/refs/heads/main/WCF/model/model5_best.pth"   // model5_best.pth
-            };
-
-            // URL for the Python scripts ZIP file 
-            String zipFileUrl = "https://raw.githubusercontent.com/JLY0814/qupath_wcf_extension/refs/heads/main/WCF/CircleNet_Zip.zip";
-
-            // Download resources (Python scripts and .pth files) to the QuPath models directory
-            downloadResources(pthLinks, zipFileUrl, qupathModelDir);
-
-            // Set the directory where the models and Python scripts are located
-            String loadModelDir = qupathModelDir;
-
-            // Get WSI path
-            String rawPath = qupath.getViewer().getImageData().getServer().getPath();
-            String wholeSlideImagePath = rawPath.contains("file:") ? rawPath.split("file:")[1].trim() : rawPath;
-
-            wholeSlideImagePath = wholeSlideImagePath.replaceAll("\\[--series, 0\\]$", ""); // removes series thing
-            System.out.println("Extracted Whole Slide Image Path: " + wholeSlideImagePath);
-
-            // Generate GeoJSON file path based on WSI name
-            String wsiName = new File(wholeSlideImagePath).getName();
-            if (wsiName.endsWith(".svs")) {
-                wsiName = wsiName.replace(".svs", ".geojson");
-            } else if (wsiName.endsWith(".scn")) {
-                wsiName = wsiName.replace(".scn", ".geojson");
-            } else {
-                logger.warn("Unsupported WSI format for file: " + wholeSlideImagePath);
-                return;
-            }
+    // Request for the worker to detect and stream circles in the given tiles of the grid, reading the slide itself
+    public JsonObject buildSlideRequest(String wholeSlideImagePath, String qupathModelDir, List<DownloadManager.Artifact> models,
+                                        TileGrid grid, List<DetectionTile> tiles) {
+        JsonObject request = buildModelRequest("detect_slide", qupathModelDir, models);
+        request.addProperty("slide", wholeSlideImagePath);
+        request.addProperty("tile_size", grid.getTileSize());
+        request.addProperty("overlap", grid.getOverlap());
+        request.addProperty("downsample", grid.getDownsample());
+        JsonArray whitelist = new JsonArray();
+        for (DetectionTile tile : tiles) {
+            JsonArray origin = new JsonArray();
+            origin.add(tile.getRequest().getX());
+            origin.add(tile.getRequest().getY());
+            whitelist.add(origin);
+        }
+        request.add("tiles", whitelist);
+        return request;
+    }
 
-            // Prepare Python command to run the downloaded script
-            List<String> command = new ArrayList<>();
-            if (os.contains("win")) {
-                command.add("%PYTHONPATH%/python");
-            }
+    // Request for the worker to detect and stream the circles of each model in a single tile read by QuPath
+    public JsonObject buildTileRequest(TilePrefetcher.TileImage image, String qupathModelDir, List<DownloadManager.Artifact> models) {
+        DetectionTile tile = image.getTile();
+        JsonObject request = buildModelRequest("detect_tile", qupathModelDir, models);
+        request.addProperty("x", tile.getRequest().getX());
+        request.addProperty("y", tile.getRequest().getY());
+        request.addProperty("downsample", tile.getRequest().getDownsample());
+        request.addProperty("width", image.getWidth());
+        request.addProperty("height", image.getHeight());
+        JsonArray keep = new JsonArray();
+        keep.add(tile.getKeepMinX());
+        keep.add(tile.getKeepMinY());
+        keep.add(tile.getKeepMaxX());
+        keep.add(tile.getKeepMaxY());
+        request.add("keep", keep);
+        request.addProperty("data", Base64.getEncoder().encodeToString(image.getBGR()));
+        // Raw per-model circles, fused across models and tiles by StreamingCircleFusion
+        request.addProperty("fuse", false);
+        return request;
+    }
 
-            else {
-                try {
-                    // Run "which python3" command
-                    Process process = Runtime.getRuntime().exec("which python3");
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-
-                    String pythonPath = reader.readLine(); // Get the first line of output
-                    if (pythonPath != null && !pythonPath.isEmpty()) {
-                        command.add(pythonPath);
-                    } else {
-                        System.err.println("Python3 not found!");
-                    }
-
-                    process.waitFor(); // Ensure the process completes before proceeding
-                } catch (IOException | InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-            
-            command.add(qupathModelDir + "/python_scripts/CircleNet_Zip/src/run_detection_for_scn.py");  // Use the downloaded Python script
-            command.add("circledet");
-            command.add("--circle_fusion");
-            command.add("--generate_geojson");
-            command.add("--arch");
-            command.add("dla_34");
-            command.add("--demo");
-            command.add(wholeSlideImagePath);
-            command.add("--load_model_dir");
-            command.add(loadModelDir);  // Use the model directory with downloaded .pth files
-            command.add("--filter_boarder");
-            command.add("--demo_dir");
-            command.add(qupathModelDir + "/test_result");  // Set demo_dir as "test_result"
-            command.add("--target_dir");
-            command.add(qupathModelDir + "/test_only_result");  // Set target_dir as "test_only_result"
-
-            // Run the process
-            ProcessBuilder processBuilder = new ProcessBuilder(command);
-            Map<String, String> env = processBuilder.environment();
-
-            String homeDir = System.getProperty("user.home");
-
-            // Dynamically construct paths instead of hardcoding
-            String envPythonPath = homeDir + "/.local/lib/python3.7/site-packages"; // Adjust based on user's Python version
-            String envPath = homeDir + "/miniconda3/envs/CircleNet/bin:" + env.getOrDefault("PATH", "");
-
-            env.put("PATH", envPath);
-            env.put("PYTHONPATH", envPythonPath);
-
-            processBuilder.redirectErrorStream(true);
-
-            Process process = processBuilder.start();
-
-            // Capture the output
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            StringBuilder output = new StringBuilder();
-
-            while ((line = reader.readLine()) != null) {
-                output.append(line).append("\n");
-                System.out.println(line);
-            }
+    private JsonObject buildModelRequest(String cmd, String qupathModelDir, List<DownloadManager.Artifact> models) {
+        JsonObject request = new JsonObject();
+        request.addProperty("cmd", cmd);
+        request.addProperty("arch", "dla_34");
+        JsonArray paths = new JsonArray();
+        for (DownloadManager.Artifact model : models) {
+            paths.add(Paths.get(qupathModelDir, model.getFileName()).toString());
+        }
+        request.add("models", paths);
+        return request;
+    }
 
-            int exitCode = process.waitFor();
-            if (exitCode != 0) {
-                logger.error("Python script exited with error code: " + exitCode);
-                logger.error("Python script output: " + output.toString());
-            } else {
-                logger.info("Python script executed successfully.");
-                logger.info("Python script output: " + output.toString());
-            }
+    // Where streamed detections are exported as GeoJSON
+    public Path getExportPath(String resultsDir, String wholeSlideImagePath) throws IOException {
+        Path exportDir = Paths.get(generateGeoJsonPath(resultsDir + "/test_only_result"));
+        Files.createDirectories(exportDir);
+        String name = new File(wholeSlideImagePath).getName().replaceFirst("\\.[^.]+$", "");
+        return exportDir.resolve(name + ".geojson");
+    }
 
-            // Call the method generating Geojson path
-            String targetDir= qupathModelDir + "/test_only_result";
-            String geojsonDir = generateGeoJsonPath(targetDir);  // targetDir replace xml_dir
-            // Analysis output results
-            parsePythonOutput(output.toString(), geojsonDir, wsiName);
+    // Cache of the tiles already run on this image with the current models and grid
+    public TileResultCache openTileCache(String resultsDir, ImageData<BufferedImage> imageData, String engine, TileGrid grid)
+            throws IOException {
+        // Keyed by the content of the models, since their URLs follow a branch that may change
+        return TileResultCache.open(Paths.get(resultsDir, "tile-cache"), imageData.getServer().getPath(),
+                ModelCache.getDefault().getContentKey(ModelVersion.getDefault()), engine, grid);
+    }
 
-        } catch (IOException | InterruptedException e) {
-            logger.error("Error during process execution", e);
-        }
+    // Create the process builder with the CircleNet Python environment
+    public ProcessBuilder createProcessBuilder(List<String> command) {
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        Map<String, String> env = processBuilder.environment();
+
+        String homeDir = System.getProperty("user.home");
+
+        // Dynamically construct paths instead of hardcoding
+        String envPythonPath = homeDir + "/.local/lib/python3.7/site-packages"; // Adjust based on user's Python version
+        String envPath = homeDir + "/miniconda3/envs/CircleNet/bin:" + env.getOrDefault("PATH", "");
+
+        env.put("PATH", envPath);
+        env.put("PYTHONPATH", envPythonPath);
+
+        processBuilder.redirectErrorStream(true);
+        return processBuilder;
     }
 
     // Methods to generate Geojson to save directory paths
-    private String generateGeoJsonPath(String targetDir) {
+    public String generateGeoJsonPath(String targetDir) {
         Path targetDirPath = Paths.get(targetDir);
         String baseName = targetDirPath.getFileName().toString();
         String geoJsonDir = targetDirPath.getParent().resolve(baseName + "_geojson").toString();
         return geoJsonDir;
     }
 
-    // Analyze Python output and load the Geojson file to Qupath
-    private void parsePythonOutput(String output, String geojsonDir, String wsiName) {
+    // Analyze Python output and stream the objects from the generated Geojson file in batches
+    public int parsePythonOutput(String output, String geojsonDir, String wsiName, int batchSize,
+                                 GeoJsonStreamReader.BatchConsumer consumer) throws IOException {
         // You can add analysis logic of Python output here
 
         // Load the generated Geojson file
-        loadGeoJsonToQuPath(geojsonDir, wsiName);
+        return readGeoJson(geojsonDir, wsiName, batchSize, consumer);
     }
 
-    // Methods to load the Geojson file to quPath
-    private void loadGeoJsonToQuPath(String geojsonDir, String wsiName) {
+    // Methods to read the Geojson file, the consumer is responsible for adding each batch to the hierarchy
+    private int readGeoJson(String geojsonDir, String wsiName, int batchSize, GeoJsonStreamReader.BatchConsumer consumer) throws IOException {
         File geojsonFile = new File(geojsonDir, wsiName); // Use the generated Geojson file name
-        if (geojsonFile.exists()) {
-            // Get the input stream of the file
-            try (InputStream inputStream = new FileInputStream(geojsonFile)) {
-                // Use the ReadObjectsfromgeojson method provided by Pathio to read the Geojson file
-                List<PathObject> objects = PathIO.readObjectsFromGeoJSON(inputStream);
-                // Add the object to the hierarchical structure of Qupath
-                qupath.getViewer().getImageData().getHierarchy().addPathObjects(objects);
-                logger.info("GeoJSON file loaded successfully: " + geojsonFile.getAbsolutePath());
-            } catch (IOException e) {
-                logger.error("Failed to read GeoJSON file: " + geojsonFile.getAbsolutePath(), e);
-            }
-        } else {
-            logger.warn("GeoJSON file not found: " + geojsonFile.getAbsolutePath());
+        if (!geojsonFile.exists()) {
+            throw new IOException("GeoJSON file not found: " + geojsonFile.getAbsolutePath());
+        }
+        // Get the input stream of the file
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(geojsonFile))) {
+            int count = new GeoJsonStreamReader(batchSize).read(inputStream, consumer);
+            logger.info("GeoJSON file loaded successfully: {} ({} objects)", geojsonFile.getAbsolutePath(), count);
+            return count;
         }
     }
 }
@@ -0,0 +1,129 @@
+package qupath.ext.template;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads GeoJSON features one at a time and hands them on in bounded batches,
+ * so the whole detection file never needs to be held in memory.
+ * <p>
+ * Accepts a FeatureCollection, a bare array of features, or a single feature.
+ */
+public class GeoJsonStreamReader {
+
+    /**
+     * Receives each batch of objects. The list is not reused after the call.
+     */
+    @FunctionalInterface
+    public interface BatchConsumer {
+        void accept(List<PathObject> batch) throws IOException;
+    }
+
+    private final Gson gson = GsonTools.getInstance();
+    private final int batchSize;
+
+    public GeoJsonStreamReader(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Read all features from the stream.
+     * @param inputStream GeoJSON input, closed by the caller
+     * @param consumer called with each batch of at most batchSize objects
+     * @return the total number of objects read
+     */
+    public int read(InputStream inputStream, BatchConsumer consumer) throws IOException {
+        Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
+        try (JsonReader jsonReader = new JsonReader(reader)) {
+            Batcher batcher = new Batcher(consumer);
+            JsonToken token = jsonReader.peek();
+            if (token == JsonToken.BEGIN_ARRAY) {
+                readFeatures(jsonReader, batcher);
+            } else if (token == JsonToken.BEGIN_OBJECT) {
+                readObject(jsonReader, batcher);
+            } else {
+                throw new IOException("Expected GeoJSON object or array but found " + token);
+            }
+            batcher.flush();
+            return batcher.count;
+        } catch (JsonParseException e) {
+            throw new IOException("Invalid GeoJSON: " + e.getMessage(), e);
+        }
+    }
+
+    // A FeatureCollection is recognised by its 'features' array and unpacked lazily,
+    // anything else is read as a single feature
+    private void readObject(JsonReader jsonReader, Batcher batcher) throws IOException {
+        jsonReader.beginObject();
+        boolean isCollection = false;
+        JsonObject feature = new JsonObject();
+        while (jsonReader.hasNext()) {
+            String name = jsonReader.nextName();
+            if ("features".equals(name) && jsonReader.peek() == JsonToken.BEGIN_ARRAY) {
+                isCollection = true;
+                readFeatures(jsonReader, batcher);
+            } else if (isCollection) {
+                jsonReader.skipValue();
+            } else {
+                feature.add(name, gson.fromJson(jsonReader, JsonElement.class));
+            }
+        }
+        jsonReader.endObject();
+        if (!isCollection) {
+            batcher.add(gson.fromJson(feature, PathObject.class));
+        }
+    }
+
+    private void readFeatures(JsonReader jsonReader, Batcher batcher) throws IOException {
+        jsonReader.beginArray();
+        while (jsonReader.hasNext()) {
+            batcher.add(gson.fromJson(jsonReader, PathObject.class));
+        }
+        jsonReader.endArray();
+    }
+
+    private class Batcher {
+
+        private final BatchConsumer consumer;
+        private List<PathObject> batch = new ArrayList<>(batchSize);
+        private int count;
+
+        private Batcher(BatchConsumer consumer) {
+            this.consumer = consumer;
+        }
+
+        private void add(PathObject pathObject) throws IOException {
+            if (pathObject == null) {
+                return;
+            }
+            batch.add(pathObject);
+            count++;
+            if (batch.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (!batch.isEmpty()) {
+                consumer.accept(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+
+    }
+
+}
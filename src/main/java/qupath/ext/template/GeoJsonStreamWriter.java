@@ -0,0 +1,45 @@
+package qupath.ext.template;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Writes a GeoJSON FeatureCollection incrementally, so objects can be exported as they arrive.
+ * The counterpart of {@link GeoJsonStreamReader}.
+ */
+public class GeoJsonStreamWriter implements Closeable {
+
+    private final Gson gson = GsonTools.getInstance();
+    private final JsonWriter writer;
+
+    public GeoJsonStreamWriter(OutputStream outputStream) throws IOException {
+        writer = new JsonWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        writer.beginObject();
+        writer.name("type").value("FeatureCollection");
+        writer.name("features");
+        writer.beginArray();
+    }
+
+    public void write(Collection<? extends PathObject> pathObjects) throws IOException {
+        for (PathObject pathObject : pathObjects) {
+            gson.toJson(pathObject, PathObject.class, writer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.endArray();
+        writer.endObject();
+        writer.close();
+    }
+
+}
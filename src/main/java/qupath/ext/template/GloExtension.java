@@ -3,6 +3,7 @@ package qupath.ext.template;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.Property;
+import javafx.beans.property.StringProperty;
 import javafx.scene.Scene;
 import javafx.scene.control.MenuItem;
 import javafx.stage.Stage;
@@ -73,6 +74,7 @@ public class GloExtension implements QuPathExtension, GitHubProject {
 	/**
 	 * Another 'persistent preference'.
 	 * This one will be managed using a GUI element created by the extension.
+	 * It sets the number of slides processed in parallel when running detection on a project.
 	 * We use {@link Property<Integer>} rather than {@link IntegerProperty}
 	 * because of the type of GUI element we use to manage it.
 	 */
@@ -87,6 +89,303 @@ public class GloExtension implements QuPathExtension, GitHubProject {
 		return numThreadsProperty;
 	}
 
+	/**
+	 * Whether to keep a warm Python inference worker between runs,
+	 * rather than starting a new process (and reloading all the models) for every slide.
+	 */
+	private static BooleanProperty useWorkerProperty = PathPrefs.createPersistentPreference(
+			"circlenet.worker.enabled", true);
+
+	/**
+	 * Minutes an idle inference worker is kept alive before it is shut down.
+	 */
+	private static Property<Integer> workerIdleMinutesProperty = PathPrefs.createPersistentPreference(
+			"circlenet.worker.idle.minutes", 10).asObject();
+
+	/**
+	 * Number of inference workers sharing the tiles of one slide, or 0 to choose from the cores and memory.
+	 */
+	private static Property<Integer> shardWorkersProperty = PathPrefs.createPersistentPreference(
+			"circlenet.worker.shards", 0).asObject();
+
+	/**
+	 * Minutes a CircleNet process may go without writing any output before it is treated as hung and killed.
+	 */
+	private static Property<Integer> processTimeoutMinutesProperty = PathPrefs.createPersistentPreference(
+			"circlenet.process.timeout.minutes", 30).asObject();
+
+	/**
+	 * Number of detections added to the hierarchy at a time when importing results.
+	 * Each batch fires its own hierarchy event, so smaller batches keep the viewer responsive.
+	 */
+	private static Property<Integer> importBatchSizeProperty = PathPrefs.createPersistentPreference(
+			"circlenet.import.batch.size", 500).asObject();
+
+	/**
+	 * Whether glomeruli are imported as detection objects, added in bulk with a single hierarchy update,
+	 * rather than as annotations. Detections are much cheaper to draw and to place in the hierarchy.
+	 */
+	private static BooleanProperty importAsDetectionsProperty = PathPrefs.createPersistentPreference(
+			"circlenet.import.detections", false);
+
+	/**
+	 * Whether the warm worker streams circles straight back to QuPath,
+	 * rather than writing a GeoJSON file that is then read back in.
+	 */
+	private static BooleanProperty streamResultsProperty = PathPrefs.createPersistentPreference(
+			"circlenet.stream.results", true);
+
+	/**
+	 * Whether streamed detections are also exported as GeoJSON.
+	 */
+	private static BooleanProperty exportGeoJsonProperty = PathPrefs.createPersistentPreference(
+			"circlenet.export.geojson", false);
+
+	/**
+	 * Whether QuPath reads and tiles the image itself and sends the tiles to the worker,
+	 * rather than the worker opening the slide file. This works for any image QuPath can open.
+	 */
+	private static BooleanProperty tileInQuPathProperty = PathPrefs.createPersistentPreference(
+			"circlenet.tiling.enabled", true);
+
+	/**
+	 * Width and height of the tiles sent for inference, in pixels at the inference downsample.
+	 */
+	private static Property<Integer> tileSizeProperty = PathPrefs.createPersistentPreference(
+			"circlenet.tiling.size", 512).asObject();
+
+	/**
+	 * Overlap between neighbouring tiles, in pixels at the inference downsample.
+	 * It should be larger than the biggest glomerulus so that every one is seen whole by some tile.
+	 */
+	private static Property<Integer> tileOverlapProperty = PathPrefs.createPersistentPreference(
+			"circlenet.tiling.overlap", 64).asObject();
+
+	/**
+	 * Downsample of the full-resolution image at which inference runs.
+	 */
+	private static Property<Double> tileDownsampleProperty = PathPrefs.createPersistentPreference(
+			"circlenet.tiling.downsample", 1.0).asObject();
+
+	/**
+	 * Number of models of the ensemble to run, or 0 to run all of them.
+	 * Fewer models are faster, at the cost of missing more glomeruli.
+	 */
+	private static Property<Integer> ensembleSizeProperty = PathPrefs.createPersistentPreference(
+			"circlenet.ensemble.size", 0).asObject();
+
+	/**
+	 * Whether size, shape and intensity measurements are added to each glomerulus after detection.
+	 */
+	private static BooleanProperty measureProperty = PathPrefs.createPersistentPreference(
+			"circlenet.measure.enabled", false);
+
+	/**
+	 * Whether the detections of every run are appended to a column file in the results directory,
+	 * for analysing a whole cohort.
+	 */
+	private static BooleanProperty exportColumnsProperty = PathPrefs.createPersistentPreference(
+			"circlenet.export.columns", false);
+
+	/**
+	 * Whether a quick pass over a downsampled image finds candidate glomeruli first,
+	 * so that only the tiles around them are run at the inference downsample.
+	 */
+	private static BooleanProperty coarseToFineProperty = PathPrefs.createPersistentPreference(
+			"circlenet.coarse.enabled", false);
+
+	/**
+	 * Downsample of the full-resolution image at which the candidate pass runs.
+	 */
+	private static Property<Double> coarseDownsampleProperty = PathPrefs.createPersistentPreference(
+			"circlenet.coarse.downsample", 4.0).asObject();
+
+	/**
+	 * Class of the annotations detection is restricted to when no annotations are selected,
+	 * e.g. "Cortex". Empty to detect in the whole image.
+	 */
+	private static StringProperty regionClassProperty = PathPrefs.createPersistentPreference(
+			"circlenet.region.class", "");
+
+	/**
+	 * @return The preference controlling the annotation class detection is restricted to.
+	 */
+	public static StringProperty regionClassProperty() {
+		return regionClassProperty;
+	}
+
+	/**
+	 * Whether tiles that are only glass are skipped, using a coarse tissue mask computed first.
+	 */
+	private static BooleanProperty tissueFilterProperty = PathPrefs.createPersistentPreference(
+			"circlenet.tissue.enabled", true);
+
+	/**
+	 * Minimum saturation, between 0 and 1, for a pixel of the tissue mask to count as tissue.
+	 */
+	private static Property<Double> tissueThresholdProperty = PathPrefs.createPersistentPreference(
+			"circlenet.tissue.threshold", 0.07).asObject();
+
+	/**
+	 * @return The preference controlling whether background tiles are skipped.
+	 */
+	public static BooleanProperty tissueFilterProperty() {
+		return tissueFilterProperty;
+	}
+
+	/**
+	 * @return The preference controlling the saturation threshold of the tissue mask.
+	 */
+	public static Property<Double> tissueThresholdProperty() {
+		return tissueThresholdProperty;
+	}
+
+	/**
+	 * Whether to run the models inside QuPath with ONNX Runtime instead of in Python.
+	 * The models need to be exported to ONNX once with the bundled export script.
+	 */
+	private static BooleanProperty useOnnxEngineProperty = PathPrefs.createPersistentPreference(
+			"circlenet.engine.onnx", false);
+
+	/**
+	 * @return The preference controlling whether the in-QuPath ONNX engine is used.
+	 */
+	public static BooleanProperty useOnnxEngineProperty() {
+		return useOnnxEngineProperty;
+	}
+
+	/**
+	 * Whether the circles of every tile are kept, so re-running detection on an image only runs new tiles.
+	 */
+	private static BooleanProperty tileCacheProperty = PathPrefs.createPersistentPreference(
+			"circlenet.cache.tiles", true);
+
+	/**
+	 * @return The preference controlling whether tile results are reused between runs.
+	 */
+	public static BooleanProperty tileCacheProperty() {
+		return tileCacheProperty;
+	}
+
+	/**
+	 * @return The preference controlling whether images are tiled in QuPath.
+	 */
+	public static BooleanProperty tileInQuPathProperty() {
+		return tileInQuPathProperty;
+	}
+
+	/**
+	 * @return The preference controlling the inference tile size.
+	 */
+	public static Property<Integer> tileSizeProperty() {
+		return tileSizeProperty;
+	}
+
+	/**
+	 * @return The preference controlling the overlap between inference tiles.
+	 */
+	public static Property<Integer> tileOverlapProperty() {
+		return tileOverlapProperty;
+	}
+
+	/**
+	 * @return The preference controlling the inference downsample.
+	 */
+	public static Property<Double> tileDownsampleProperty() {
+		return tileDownsampleProperty;
+	}
+
+	/**
+	 * @return The preference controlling how many models of the ensemble are run.
+	 */
+	public static Property<Integer> ensembleSizeProperty() {
+		return ensembleSizeProperty;
+	}
+
+	/**
+	 * @return The preference controlling whether glomeruli are measured after detection.
+	 */
+	public static BooleanProperty measureProperty() {
+		return measureProperty;
+	}
+
+	/**
+	 * @return The preference controlling whether detections are appended to the cohort column file.
+	 */
+	public static BooleanProperty exportColumnsProperty() {
+		return exportColumnsProperty;
+	}
+
+	/**
+	 * @return The preference controlling whether a coarse pass chooses the tiles to run.
+	 */
+	public static BooleanProperty coarseToFineProperty() {
+		return coarseToFineProperty;
+	}
+
+	/**
+	 * @return The preference controlling the downsample of the coarse pass.
+	 */
+	public static Property<Double> coarseDownsampleProperty() {
+		return coarseDownsampleProperty;
+	}
+
+	/**
+	 * @return The preference controlling whether results are streamed from the worker.
+	 */
+	public static BooleanProperty streamResultsProperty() {
+		return streamResultsProperty;
+	}
+
+	/**
+	 * @return The preference controlling whether streamed results are exported as GeoJSON.
+	 */
+	public static BooleanProperty exportGeoJsonProperty() {
+		return exportGeoJsonProperty;
+	}
+
+	/**
+	 * @return The preference controlling the number of detections imported per batch.
+	 */
+	public static Property<Integer> importBatchSizeProperty() {
+		return importBatchSizeProperty;
+	}
+
+	/**
+	 * @return The preference controlling whether glomeruli are imported as detections.
+	 */
+	public static BooleanProperty importAsDetectionsProperty() {
+		return importAsDetectionsProperty;
+	}
+
+	/**
+	 * @return The preference controlling whether a persistent inference worker is used.
+	 */
+	public static BooleanProperty useWorkerProperty() {
+		return useWorkerProperty;
+	}
+
+	/**
+	 * @return The preference controlling the idle timeout of inference workers, in minutes.
+	 */
+	public static Property<Integer> workerIdleMinutesProperty() {
+		return workerIdleMinutesProperty;
+	}
+
+	/**
+	 * @return The preference controlling how many inference workers run the tiles of one slide.
+	 */
+	public static Property<Integer> shardWorkersProperty() {
+		return shardWorkersProperty;
+	}
+
+	/**
+	 * @return The preference controlling how long a silent CircleNet process is left running, in minutes.
+	 */
+	public static Property<Integer> processTimeoutMinutesProperty() {
+		return processTimeoutMinutesProperty;
+	}
+
 	/**
 	 * Create a stage for the extension to display
 	 */
@@ -116,10 +415,127 @@ public class GloExtension implements QuPathExtension, GitHubProject {
 				.category("Glo extension")
 				.description("Enable the Glo extension")
 				.build();
+		var workerItem = new PropertyItemBuilder<>(useWorkerProperty, Boolean.class)
+				.name("Use persistent inference worker")
+				.category("Glo extension")
+				.description("Keep the Python models loaded between runs instead of starting a new process for every slide")
+				.build();
+		var idleItem = new PropertyItemBuilder<>(workerIdleMinutesProperty, Integer.class)
+				.name("Worker idle timeout (minutes)")
+				.category("Glo extension")
+				.description("Shut down the inference worker after it has been idle for this long")
+				.build();
+		var shardItem = new PropertyItemBuilder<>(shardWorkersProperty, Integer.class)
+				.name("Workers per slide")
+				.category("Glo extension")
+				.description("Number of inference workers running the tiles of one slide in parallel when QuPath reads the tiles (0 to choose from the available cores and memory)")
+				.build();
+		var timeoutItem = new PropertyItemBuilder<>(processTimeoutMinutesProperty, Integer.class)
+				.name("Hung process timeout (minutes)")
+				.category("Glo extension")
+				.description("Stop CircleNet if it writes no output for this long (0 to wait indefinitely)")
+				.build();
+		var batchItem = new PropertyItemBuilder<>(importBatchSizeProperty, Integer.class)
+				.name("Import batch size")
+				.category("Glo extension")
+				.description("Number of detections added to the hierarchy at a time")
+				.build();
+		var detectionsItem = new PropertyItemBuilder<>(importAsDetectionsProperty, Boolean.class)
+				.name("Import glomeruli as detections")
+				.category("Glo extension")
+				.description("Create lightweight detections rather than annotations, added in bulk with one update; "
+						+ "much smoother on slides with many glomeruli, but they can't be edited by hand")
+				.build();
+		var streamItem = new PropertyItemBuilder<>(streamResultsProperty, Boolean.class)
+				.name("Stream results from worker")
+				.category("Glo extension")
+				.description("Send detections straight from the inference worker instead of via a GeoJSON file")
+				.build();
+		var exportItem = new PropertyItemBuilder<>(exportGeoJsonProperty, Boolean.class)
+				.name("Export streamed results as GeoJSON")
+				.category("Glo extension")
+				.description("Also write streamed detections to a GeoJSON file in the results directory")
+				.build();
+		var tilingItem = new PropertyItemBuilder<>(tileInQuPathProperty, Boolean.class)
+				.name("Tile images in QuPath")
+				.category("Glo extension")
+				.description("Read tiles through QuPath and send them to the worker, so any image QuPath can open can be used")
+				.build();
+		var tileSizeItem = new PropertyItemBuilder<>(tileSizeProperty, Integer.class)
+				.name("Tile size (px)")
+				.category("Glo extension")
+				.description("Width and height of the tiles sent for inference, at the inference downsample")
+				.build();
+		var overlapItem = new PropertyItemBuilder<>(tileOverlapProperty, Integer.class)
+				.name("Tile overlap (px)")
+				.category("Glo extension")
+				.description("Overlap between neighbouring tiles, at the inference downsample")
+				.build();
+		var downsampleItem = new PropertyItemBuilder<>(tileDownsampleProperty, Double.class)
+				.name("Inference downsample")
+				.category("Glo extension")
+				.description("Downsample of the full-resolution image at which detection runs; not used by the GeoJSON script")
+				.build();
+		var ensembleItem = new PropertyItemBuilder<>(ensembleSizeProperty, Integer.class)
+				.name("Models in ensemble")
+				.category("Glo extension")
+				.description("Number of models run on each tile, fewer is faster but finds fewer glomeruli (0 for all); "
+						+ "not used by the GeoJSON script")
+				.build();
+		var coarseItem = new PropertyItemBuilder<>(coarseToFineProperty, Boolean.class)
+				.name("Coarse-to-fine detection")
+				.category("Glo extension")
+				.description("Find candidate glomeruli on a downsampled image first and only run the tiles around them; "
+						+ "not used by the GeoJSON script")
+				.build();
+		var coarseDownsampleItem = new PropertyItemBuilder<>(coarseDownsampleProperty, Double.class)
+				.name("Coarse pass downsample")
+				.category("Glo extension")
+				.description("Downsample of the full-resolution image at which candidates are found")
+				.build();
+		var measureItem = new PropertyItemBuilder<>(measureProperty, Boolean.class)
+				.name("Measure glomeruli")
+				.category("Glo extension")
+				.description("After detection, add the area, perimeter, radius, circularity and the intensity of each channel "
+						+ "to every glomerulus, measured at the inference downsample")
+				.build();
+		var columnsItem = new PropertyItemBuilder<>(exportColumnsProperty, Boolean.class)
+				.name("Export results for cohort analysis")
+				.category("Glo extension")
+				.description("Append the detections and measurements of every slide to cohort/detections.gloc in the results directory, "
+						+ "a compact column file that can be read with DetectionColumnReader")
+				.build();
+		var regionItem = new PropertyItemBuilder<>(regionClassProperty, String.class)
+				.name("Detect in annotation class")
+				.category("Glo extension")
+				.description("Only detect inside annotations with this class when none are selected (empty for the whole image)")
+				.build();
+		var tissueItem = new PropertyItemBuilder<>(tissueFilterProperty, Boolean.class)
+				.name("Skip background tiles")
+				.category("Glo extension")
+				.description("Compute a coarse tissue mask first and skip tiles that are only glass")
+				.build();
+		var tissueThresholdItem = new PropertyItemBuilder<>(tissueThresholdProperty, Double.class)
+				.name("Tissue saturation threshold")
+				.category("Glo extension")
+				.description("Minimum saturation (0-1) for a pixel to count as tissue; lower it for pale stains")
+				.build();
+		var onnxItem = new PropertyItemBuilder<>(useOnnxEngineProperty, Boolean.class)
+				.name("Run models in QuPath (ONNX)")
+				.category("Glo extension")
+				.description("Run the ONNX exports of the models on the CPU inside QuPath, without Python")
+				.build();
+		var cacheItem = new PropertyItemBuilder<>(tileCacheProperty, Boolean.class)
+				.name("Reuse tiles from earlier runs")
+				.category("Glo extension")
+				.description("Keep the results of every tile, so re-running detection only runs tiles that haven't been run before")
+				.build();
 		qupath.getPreferencePane()
 				.getPropertySheet()
 				.getItems()
-				.add(propertyItem);
+				.addAll(propertyItem, onnxItem, workerItem, idleItem, shardItem, timeoutItem, batchItem, detectionsItem, streamItem, exportItem,
+						tilingItem, tileSizeItem, overlapItem, downsampleItem, ensembleItem, coarseItem, coarseDownsampleItem,
+						measureItem, columnsItem, regionItem, tissueItem, tissueThresholdItem, cacheItem);
 	}
 
 	/**
@@ -159,6 +575,14 @@ public class GloExtension implements QuPathExtension, GitHubProject {
 		    }
 		});
 		menu.getItems().add(menuItem);
+
+		MenuItem projectMenuItem = new MenuItem("Run Glo Detection on project");
+		projectMenuItem.setOnAction(e -> new GLOMainCommand(qupath).submitProjectDetectionTask());
+		menu.getItems().add(projectMenuItem);
+
+		MenuItem metricsMenuItem = new MenuItem("Show Glo run metrics");
+		metricsMenuItem.setOnAction(e -> createStage());
+		menu.getItems().add(metricsMenuItem);
 	}
 
 
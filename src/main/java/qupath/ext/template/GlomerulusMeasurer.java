@@ -0,0 +1,231 @@
+package qupath.ext.template;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntConsumer;
+
+/**
+ * Adds size, shape and intensity measurements to glomeruli once they have been detected.
+ * <p>
+ * Objects are grouped by where they are, and each group is measured from a single read of the region
+ * around it, so neighbouring glomeruli share the pixels they need and nothing else is read.
+ * Groups are measured in parallel. Each object's measurement list is only written by the thread measuring it,
+ * and no hierarchy event is fired, so the caller can announce every change at once.
+ */
+public class GlomerulusMeasurer {
+
+    private static final Logger logger = LoggerFactory.getLogger(GlomerulusMeasurer.class);
+
+    // Side of the cells objects are grouped by, in pixels at the measuring downsample
+    private static final int GROUP_SIZE = 2048;
+
+    private final ImageServer<BufferedImage> server;
+    private final double downsample;
+    private final int nThreads;
+
+    // Measure on every core
+    public GlomerulusMeasurer(ImageServer<BufferedImage> server, double downsample) {
+        this(server, downsample, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param downsample downsample of the full-resolution image the intensities are measured at
+     * @param nThreads number of groups measured at once
+     */
+    public GlomerulusMeasurer(ImageServer<BufferedImage> server, double downsample, int nThreads) {
+        if (downsample < 1) {
+            throw new IllegalArgumentException("Downsample must be at least 1, but was " + downsample);
+        }
+        this.server = server;
+        this.downsample = downsample;
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    /**
+     * Measure the objects, adding to their measurement lists.
+     * @param progress told how many objects have been measured after each group, may be null
+     * @throws IOException if part of the image can't be read
+     * @throws InterruptedException if the thread is interrupted, some objects may already have been measured
+     */
+    public void measure(Collection<? extends PathObject> pathObjects, IntConsumer progress) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        List<List<PathObject>> groups = group(pathObjects);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(nThreads, Math.max(1, groups.size())),
+                ThreadTools.createThreadFactory("circlenet-measure-", true));
+        try {
+            CompletionService<Integer> completion = new ExecutorCompletionService<>(pool);
+            for (List<PathObject> group : groups) {
+                completion.submit(() -> measureGroup(group));
+            }
+            int done = 0;
+            for (int i = 0; i < groups.size(); i++) {
+                try {
+                    done += completion.take().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof IOException ? (IOException) cause : new IOException("Unable to measure glomeruli", cause);
+                }
+                if (progress != null) {
+                    progress.accept(done);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        logger.info("Measured {} objects in {} groups in {} s", pathObjects.size(), groups.size(),
+                String.format("%.1f", (System.nanoTime() - start) / 1e9));
+    }
+
+    // Objects whose centres are in the same cell of a coarse grid, in row order
+    private List<List<PathObject>> group(Collection<? extends PathObject> pathObjects) {
+        double cellSize = GROUP_SIZE * downsample;
+        Map<Long, List<PathObject>> cells = new LinkedHashMap<>();
+        for (PathObject pathObject : pathObjects) {
+            ROI roi = pathObject.getROI();
+            long row = (long) Math.floor(roi.getCentroidY() / cellSize);
+            long column = (long) Math.floor(roi.getCentroidX() / cellSize);
+            cells.computeIfAbsent((row << 32) | (column & 0xffffffffL), k -> new ArrayList<>()).add(pathObject);
+        }
+        return new ArrayList<>(cells.values());
+    }
+
+    // Read the region covering every object of the group once, and measure each of them in it
+    private int measureGroup(List<PathObject> group) throws IOException {
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (PathObject pathObject : group) {
+            ROI roi = pathObject.getROI();
+            minX = Math.min(minX, roi.getBoundsX());
+            minY = Math.min(minY, roi.getBoundsY());
+            maxX = Math.max(maxX, roi.getBoundsX() + roi.getBoundsWidth());
+            maxY = Math.max(maxY, roi.getBoundsY() + roi.getBoundsHeight());
+        }
+        int x = (int) Math.max(0, Math.floor(minX));
+        int y = (int) Math.max(0, Math.floor(minY));
+        int width = (int) Math.min(server.getWidth(), Math.ceil(maxX)) - x;
+        int height = (int) Math.min(server.getHeight(), Math.ceil(maxY)) - y;
+        BufferedImage image = null;
+        RegionRequest request = null;
+        if (width > 0 && height > 0) {
+            request = RegionRequest.createInstance(server.getPath(), downsample, x, y, width, height);
+            image = server.readRegion(request);
+            if (image == null) {
+                throw new IOException("Unable to read " + request);
+            }
+        }
+        for (PathObject pathObject : group) {
+            if (Thread.currentThread().isInterrupted()) {
+                return 0;
+            }
+            try (MeasurementList measurements = pathObject.getMeasurementList()) {
+                putShape(pathObject.getROI(), measurements);
+                if (image != null) {
+                    putIntensities(pathObject.getROI(), request, image, measurements);
+                }
+            }
+        }
+        return group.size();
+    }
+
+    // Calibrated in microns when the pixel size is known, in pixels otherwise
+    private void putShape(ROI roi, MeasurementList measurements) {
+        PixelCalibration calibration = server.getPixelCalibration();
+        boolean microns = calibration.hasPixelSizeMicrons();
+        double pixelWidth = microns ? calibration.getPixelWidthMicrons() : 1;
+        double pixelHeight = microns ? calibration.getPixelHeightMicrons() : 1;
+        String unit = microns ? "µm" : "px";
+        double area = roi.getScaledArea(pixelWidth, pixelHeight);
+        double perimeter = roi.getScaledLength(pixelWidth, pixelHeight);
+        measurements.put("Area " + unit + "^2", area);
+        measurements.put("Perimeter " + unit, perimeter);
+        // Radius of the circle with the same area
+        measurements.put("Radius " + unit, Math.sqrt(area / Math.PI));
+        measurements.put("Circularity", perimeter > 0 ? Math.min(1, 4 * Math.PI * area / (perimeter * perimeter)) : Double.NaN);
+    }
+
+    // Mean, standard deviation, minimum and maximum of each channel over the pixels inside the ROI
+    private void putIntensities(ROI roi, RegionRequest request, BufferedImage image, MeasurementList measurements) {
+        int x0 = clamp((int) Math.floor((roi.getBoundsX() - request.getX()) / downsample), image.getWidth());
+        int y0 = clamp((int) Math.floor((roi.getBoundsY() - request.getY()) / downsample), image.getHeight());
+        int x1 = clamp((int) Math.ceil((roi.getBoundsX() + roi.getBoundsWidth() - request.getX()) / downsample), image.getWidth());
+        int y1 = clamp((int) Math.ceil((roi.getBoundsY() + roi.getBoundsHeight() - request.getY()) / downsample), image.getHeight());
+        int width = x1 - x0;
+        int height = y1 - y0;
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        // Rasterize the ROI at the measuring downsample, so any shape of ROI works
+        BufferedImage mask = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g2d = mask.createGraphics();
+        g2d.scale(1.0 / downsample, 1.0 / downsample);
+        g2d.translate(-(request.getX() + x0 * downsample), -(request.getY() + y0 * downsample));
+        g2d.setColor(Color.WHITE);
+        g2d.fill(roi.getShape());
+        g2d.dispose();
+        byte[] inside = ((DataBufferByte) mask.getRaster().getDataBuffer()).getData();
+
+        Raster raster = image.getRaster();
+        float[] row = new float[width];
+        // An alpha band isn't a channel of the image
+        int nBands = Math.min(raster.getNumBands(), server.nChannels());
+        for (int band = 0; band < nBands; band++) {
+            long n = 0;
+            double sum = 0, sumSquares = 0;
+            double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            for (int y = 0; y < height; y++) {
+                raster.getSamples(x0, y0 + y, width, 1, band, row);
+                for (int x = 0; x < width; x++) {
+                    if (inside[y * width + x] == 0) {
+                        continue;
+                    }
+                    double value = row[x];
+                    n++;
+                    sum += value;
+                    sumSquares += value * value;
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            }
+            String name = getChannelName(band);
+            double mean = n == 0 ? Double.NaN : sum / n;
+            measurements.put(name + ": Mean", mean);
+            measurements.put(name + ": Std.Dev.", n == 0 ? Double.NaN : Math.sqrt(Math.max(0, sumSquares / n - mean * mean)));
+            measurements.put(name + ": Min", n == 0 ? Double.NaN : min);
+            measurements.put(name + ": Max", n == 0 ? Double.NaN : max);
+        }
+    }
+
+    private String getChannelName(int band) {
+        String name = server.getChannel(band) == null ? null : server.getChannel(band).getName();
+        return name == null ? "Channel " + (band + 1) : name;
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(max, value));
+    }
+
+}
@@ -0,0 +1,339 @@
+package qupath.ext.template;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A long-lived Python process running circlenet_worker.py, which keeps torch and the
+ * model checkpoints resident between slides.
+ * <p>
+ * Requests and replies are single-line JSON objects sent over stdin/stdout;
+ * streaming jobs also send tab-separated circle records ahead of their reply.
+ * The Python stderr is forwarded to the log, and its last lines are kept for error reports.
+ * Replies are read on a dedicated thread so that requests can time out,
+ * and a worker that writes nothing at all for too long is killed.
+ */
+public class InferenceWorker implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(InferenceWorker.class);
+
+    private static final long STARTUP_TIMEOUT_SECONDS = 300;
+    private static final long PING_TIMEOUT_SECONDS = 10;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+    private static final long POLL_MILLIS = 1000;
+
+    // Queued when the worker's stdout closes, so waiting requests fail rather than hang
+    private static final JsonObject EOF = new JsonObject();
+
+    private static final Gson gson = new Gson();
+
+    private final List<String> command;
+    private final Process process;
+    private final ProcessOutputPump stderr;
+    private final BufferedWriter writer;
+    private final BlockingQueue<JsonObject> replies = new LinkedBlockingQueue<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, RecordHandler> recordHandlers = new ConcurrentHashMap<>();
+
+    private volatile long lastUsed = System.currentTimeMillis();
+    private volatile long lastStdoutNanos = System.nanoTime();
+    private volatile long outputTimeoutMillis;
+
+    private InferenceWorker(List<String> command, Process process, ProcessOutputPump stderr) {
+        this.command = List.copyOf(command);
+        this.process = process;
+        this.stderr = stderr;
+        this.writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    // Start a worker and wait until it reports that it is ready
+    public static InferenceWorker start(ProcessBuilder processBuilder) throws IOException, InterruptedException {
+        processBuilder.redirectErrorStream(false);
+        Process process = processBuilder.start();
+        ProcessOutputPump stderr = ProcessOutputPump.start("circlenet-worker-stderr-" + process.pid(), process.getErrorStream(),
+                ProcessOutputPump.DEFAULT_TAIL_LINES, line -> logger.debug("[worker {}] {}", process.pid(), line));
+        InferenceWorker worker = new InferenceWorker(processBuilder.command(), process, stderr);
+        startDaemon("circlenet-worker-stdout-" + process.pid(), () -> {
+            pumpLines(process.getInputStream(), worker::handleLine);
+            worker.replies.add(EOF);
+        });
+
+        JsonObject ready;
+        try {
+            ready = worker.replies.poll(STARTUP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            worker.destroy();
+            throw e;
+        }
+        if (ready == null || ready == EOF || !"ready".equals(getString(ready, "status"))) {
+            worker.destroy();
+            logger.error("Inference worker output:{}{}", System.lineSeparator(), stderr.getTail());
+            throw new IOException("Inference worker failed to start");
+        }
+        logger.info("Started inference worker {}", process.pid());
+        return worker;
+    }
+
+    // Run one detection job, args are the run_detection_for_scn.py arguments
+    public void detect(List<String> args) throws IOException, InterruptedException {
+        JsonObject message = new JsonObject();
+        message.addProperty("cmd", "detect");
+        message.add("args", gson.toJsonTree(args));
+        JsonObject reply = request(message, 0);
+        if (!"ok".equals(getString(reply, "status"))) {
+            throw new IOException("Inference worker error: " + getString(reply, "message"));
+        }
+    }
+
+    /**
+     * Receives circles streamed by the worker. Called on the worker's reader thread, in the order they were sent.
+     */
+    @FunctionalInterface
+    public interface CircleConsumer {
+        void accept(CircleDetection circle) throws IOException;
+    }
+
+    // Tracks the consumer for one streaming request, and the first error it threw
+    private static class RecordHandler {
+
+        private final CircleConsumer consumer;
+        private volatile Exception failure;
+
+        private RecordHandler(CircleConsumer consumer) {
+            this.consumer = consumer;
+        }
+
+    }
+
+    /**
+     * Run a job that streams circle records back before its final reply, e.g. 'detect_slide'.
+     * The records are passed straight to the consumer, without any intermediate file.
+     * @param message the request, without an id
+     * @param consumer receives each circle; if it throws, the remaining records are dropped and the error is rethrown
+     */
+    public void detectStream(JsonObject message, CircleConsumer consumer) throws IOException, InterruptedException {
+        RecordHandler handler = new RecordHandler(consumer);
+        JsonObject reply = request(message, 0, handler);
+        if (handler.failure != null) {
+            if (handler.failure instanceof RuntimeException) {
+                throw (RuntimeException) handler.failure;
+            }
+            throw new IOException("Unable to handle detections: " + handler.failure.getMessage(), handler.failure);
+        }
+        if (!"ok".equals(getString(reply, "status"))) {
+            throw new IOException("Inference worker error: " + getString(reply, "message"));
+        }
+    }
+
+    // Health check, returns false if the worker doesn't reply in time
+    public boolean ping() {
+        if (!isAlive()) {
+            return false;
+        }
+        try {
+            JsonObject message = new JsonObject();
+            message.addProperty("cmd", "ping");
+            return "ok".equals(getString(request(message, PING_TIMEOUT_SECONDS), "status"));
+        } catch (IOException e) {
+            logger.warn("Inference worker {} failed health check: {}", process.pid(), e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Send a request and wait for the reply with the same id, a timeout of 0 waits indefinitely
+    private JsonObject request(JsonObject message, long timeoutSeconds) throws IOException, InterruptedException {
+        return request(message, timeoutSeconds, null);
+    }
+
+    private synchronized JsonObject request(JsonObject message, long timeoutSeconds, RecordHandler handler)
+            throws IOException, InterruptedException {
+        long id = nextId.incrementAndGet();
+        message.addProperty("id", id);
+        if (handler != null) {
+            recordHandlers.put(id, handler);
+        }
+        writer.write(gson.toJson(message));
+        writer.newLine();
+        writer.flush();
+        lastUsed = System.currentTimeMillis();
+
+        try {
+            while (true) {
+                JsonObject reply = timeoutSeconds > 0 ? replies.poll(timeoutSeconds, TimeUnit.SECONDS) : pollWhileActive();
+                if (reply == null) {
+                    throw new IOException("Inference worker did not reply within " + timeoutSeconds + " seconds");
+                }
+                if (reply == EOF) {
+                    replies.add(EOF);
+                    logger.error("Inference worker output:{}{}", System.lineSeparator(), stderr.getTail());
+                    throw new IOException("Inference worker exited unexpectedly");
+                }
+                if (reply.has("id") && reply.get("id").getAsLong() == id) {
+                    return reply;
+                }
+                logger.debug("Ignoring stale worker reply {}", reply);
+            }
+        } finally {
+            recordHandlers.remove(id);
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    // Wait for the next reply for as long as the worker keeps writing something, killing it once it has been silent too long
+    private JsonObject pollWhileActive() throws IOException, InterruptedException {
+        while (true) {
+            JsonObject reply = replies.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (reply != null) {
+                return reply;
+            }
+            long timeout = outputTimeoutMillis;
+            if (timeout > 0 && getMillisSinceOutput() > timeout) {
+                destroy();
+                logger.error("Inference worker output:{}{}", System.lineSeparator(), stderr.getTail());
+                throw new IOException(String.format("Inference worker wrote nothing for %d seconds and was stopped",
+                        TimeUnit.MILLISECONDS.toSeconds(timeout)));
+            }
+        }
+    }
+
+    private long getMillisSinceOutput() {
+        long stdoutMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastStdoutNanos);
+        return Math.min(stdoutMillis, stderr.getMillisSinceOutput());
+    }
+
+    private void handleLine(String line) {
+        lastStdoutNanos = System.nanoTime();
+        if (line.startsWith("C\t")) {
+            handleRecord(line);
+            return;
+        }
+        try {
+            JsonObject reply = gson.fromJson(line, JsonObject.class);
+            if (reply != null) {
+                replies.add(reply);
+            }
+        } catch (JsonParseException e) {
+            logger.debug("[worker {}] {}", process.pid(), line);
+        }
+    }
+
+    private void handleRecord(String line) {
+        RecordHandler handler;
+        try {
+            handler = recordHandlers.get(CircleDetection.parseRecordId(line));
+        } catch (RuntimeException e) {
+            logger.warn("Invalid worker record: {}", line);
+            return;
+        }
+        if (handler == null || handler.failure != null) {
+            return;
+        }
+        try {
+            handler.consumer.accept(CircleDetection.parseRecord(line));
+        } catch (Exception e) {
+            handler.failure = e;
+        }
+    }
+
+    private static void pumpLines(InputStream stream, Consumer<String> consumer) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                consumer.accept(line);
+            }
+        } catch (IOException e) {
+            logger.debug("Worker stream closed: {}", e.getMessage());
+        }
+    }
+
+    private static void startDaemon(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static String getString(JsonObject object, String key) {
+        return object.has(key) && !object.get(key).isJsonNull() ? object.get(key).getAsString() : null;
+    }
+
+    public List<String> getCommand() {
+        return command;
+    }
+
+    public Process getProcess() {
+        return process;
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    // Kill the worker if a request gets no output at all for this long, 0 waits indefinitely
+    public void setOutputTimeout(long millis) {
+        this.outputTimeoutMillis = millis;
+    }
+
+    // Receives progress reported on stderr, e.g. by the detection script; null to stop
+    public void setProgressListener(ProcessOutputPump.ProgressListener listener) {
+        stderr.setProgressListener(listener);
+    }
+
+    // The last lines the worker wrote to stderr
+    public String getOutputTail() {
+        return stderr.getTail();
+    }
+
+    // Kill the worker and anything it started
+    public void destroy() {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    // Ask the worker to exit cleanly, killing it if it doesn't
+    @Override
+    public void close() {
+        if (isAlive()) {
+            try {
+                writer.write("{\"cmd\": \"shutdown\"}");
+                writer.newLine();
+                writer.flush();
+                if (!process.waitFor(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    destroy();
+                }
+            } catch (IOException e) {
+                destroy();
+            } catch (InterruptedException e) {
+                destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+        logger.info("Stopped inference worker {}", process.pid());
+    }
+
+}
@@ -0,0 +1,140 @@
+package qupath.ext.template;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps warm {@link InferenceWorker}s between detection runs.
+ * <p>
+ * A task acquires a worker for the duration of its inference stage and releases it afterwards,
+ * or discards it if the request was stopped part way through.
+ * Idle workers are health-checked before reuse, replaced if they have died,
+ * and shut down once they have been idle for longer than the timeout.
+ * Once the pool is shut down, workers released to it are closed rather than kept.
+ */
+public class InferenceWorkerPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(InferenceWorkerPool.class);
+
+    private static final long REAPER_INTERVAL_SECONDS = 30;
+
+    // Both guarded by idleWorkers
+    private final Deque<InferenceWorker> idleWorkers = new ArrayDeque<>();
+    private final Set<InferenceWorker> busyWorkers = new HashSet<>();
+    private boolean closed;
+
+    private final LongSupplier idleTimeoutMillis;
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(
+            ThreadTools.createThreadFactory("circlenet-worker-reaper-", true));
+
+    public InferenceWorkerPool(LongSupplier idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        reaper.scheduleWithFixedDelay(this::closeIdleWorkers, REAPER_INTERVAL_SECONDS, REAPER_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // Get a healthy idle worker started with the same command, or start a new one
+    public InferenceWorker acquire(ProcessBuilder processBuilder) throws IOException, InterruptedException {
+        InferenceWorker worker;
+        while ((worker = pollIdle(processBuilder.command())) != null) {
+            if (worker.ping()) {
+                return markBusy(worker);
+            }
+            logger.warn("Replacing unresponsive inference worker {}", worker.getProcess().pid());
+            worker.destroy();
+        }
+        return markBusy(InferenceWorker.start(processBuilder));
+    }
+
+    private InferenceWorker markBusy(InferenceWorker worker) throws IOException {
+        synchronized (idleWorkers) {
+            if (!closed) {
+                busyWorkers.add(worker);
+                return worker;
+            }
+        }
+        worker.destroy();
+        throw new IOException("Inference workers have been shut down");
+    }
+
+    // Return a worker after use, dead workers are dropped so the next acquire starts a fresh one
+    public void release(InferenceWorker worker) {
+        synchronized (idleWorkers) {
+            busyWorkers.remove(worker);
+            if (!closed) {
+                if (worker.isAlive()) {
+                    idleWorkers.push(worker);
+                }
+                return;
+            }
+        }
+        worker.close();
+    }
+
+    // Kill a worker that can't be reused, e.g. one stopped part way through a request
+    public void discard(InferenceWorker worker) {
+        synchronized (idleWorkers) {
+            busyWorkers.remove(worker);
+        }
+        worker.destroy();
+    }
+
+    private InferenceWorker pollIdle(List<String> command) {
+        synchronized (idleWorkers) {
+            Iterator<InferenceWorker> iterator = idleWorkers.iterator();
+            while (iterator.hasNext()) {
+                InferenceWorker worker = iterator.next();
+                if (worker.getCommand().equals(command)) {
+                    iterator.remove();
+                    return worker;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void closeIdleWorkers() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis.getAsLong();
+        List<InferenceWorker> expired = new ArrayList<>();
+        synchronized (idleWorkers) {
+            idleWorkers.removeIf(worker -> {
+                if (!worker.isAlive() || worker.getLastUsed() < cutoff) {
+                    expired.add(worker);
+                    return true;
+                }
+                return false;
+            });
+        }
+        expired.forEach(InferenceWorker::close);
+    }
+
+    // Stop every worker: idle ones are asked to exit, those in use are killed, since nothing will wait for them
+    public void shutdown() {
+        List<InferenceWorker> idle;
+        List<InferenceWorker> busy;
+        synchronized (idleWorkers) {
+            closed = true;
+            idle = new ArrayList<>(idleWorkers);
+            busy = new ArrayList<>(busyWorkers);
+            idleWorkers.clear();
+            busyWorkers.clear();
+        }
+        reaper.shutdownNow();
+        busy.forEach(InferenceWorker::destroy);
+        idle.forEach(InferenceWorker::close);
+    }
+
+}
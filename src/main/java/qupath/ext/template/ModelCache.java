@@ -0,0 +1,255 @@
+package qupath.ext.template;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.gui.prefs.PathPrefs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Local cache of CircleNet model versions, kept under the QuPath user directory.
+ * <p>
+ * Each {@link ModelVersion} gets its own directory named by its cache key, so several versions
+ * can sit side by side. A manifest records whether each version is complete, the hash of the
+ * scripts archive that was unpacked, a key derived from the hashes of the files that were downloaded,
+ * and when the version was last used.
+ * Resolving a complete version only reads the manifest and checks its files are still there, with no network,
+ * hashing or unzip work;
+ * least recently used versions are deleted once there are more than the configured maximum.
+ */
+public class ModelCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ModelCache.class);
+
+    public static final String MANIFEST_NAME = "cache-manifest.json";
+
+    private static final int DEFAULT_MAX_VERSIONS = 3;
+    private static final int MAX_CONCURRENT_DOWNLOADS = 4;
+    // Eviction only needs a rough order, so a warm hit within this long of the last recorded use writes nothing
+    private static final long LAST_USED_RESOLUTION_MS = 60L * 60 * 1000;
+
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    private static ModelCache defaultCache;
+
+    private final Path root;
+    private final int maxVersions;
+
+    /**
+     * Manifest record for a cached version.
+     */
+    static class VersionEntry {
+        String name;
+        boolean complete;
+        String scriptsSha256;
+        String contentKey;
+        long lastUsed;
+    }
+
+    public ModelCache(Path root, int maxVersions) {
+        this.root = root;
+        this.maxVersions = Math.max(1, maxVersions);
+    }
+
+    // Cache in the QuPath user directory, or the home directory if that hasn't been set
+    public static synchronized ModelCache getDefault() {
+        if (defaultCache == null) {
+            String userPath = PathPrefs.getUserPath();
+            Path base = userPath == null ? Paths.get(System.getProperty("user.home"), "QuPath") : Paths.get(userPath);
+            defaultCache = new ModelCache(base.resolve("circlenet").resolve("models"), DEFAULT_MAX_VERSIONS);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Get the directory for a model version, downloading and unpacking it if needed.
+     * @param version the version required
+     * @param onDownloaded called as each artifact becomes available on a cache miss
+     * @return the version directory, containing the checkpoints and the unpacked scripts
+     */
+    public Path resolve(ModelVersion version, Consumer<DownloadManager.Artifact> onDownloaded) throws IOException {
+        return resolve(version, onDownloaded, null);
+    }
+
+    /**
+     * Get the directory for a model version as above, recording the download and unzip time in the metrics.
+     * @param metrics metrics of the current run, or null
+     */
+    public synchronized Path resolve(ModelVersion version, Consumer<DownloadManager.Artifact> onDownloaded,
+                                     RunMetrics metrics) throws IOException {
+        String key = version.getKey();
+        Path dir = root.resolve(key);
+        Map<String, VersionEntry> manifest = readManifest();
+        VersionEntry entry = manifest.get(key);
+
+        // Fast path: nothing to do apart from recording the use
+        if (entry != null && entry.complete && entry.contentKey != null && isPresent(version, dir)) {
+            long now = System.currentTimeMillis();
+            if (now - entry.lastUsed >= LAST_USED_RESOLUTION_MS) {
+                entry.lastUsed = now;
+                writeManifest(manifest);
+            }
+            return dir;
+        }
+
+        logger.info("Preparing model version {} in {}", version, dir);
+        if (entry == null) {
+            entry = new VersionEntry();
+            entry.name = version.getName();
+            manifest.put(key, entry);
+        }
+        entry.complete = false;
+
+        DownloadManager downloadManager = new DownloadManager(MAX_CONCURRENT_DOWNLOADS);
+        long downloadStart = System.nanoTime();
+        try {
+            downloadManager.downloadAll(version.getArtifacts(), dir, onDownloaded);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download interrupted");
+        } finally {
+            if (metrics != null) {
+                metrics.addStageNanos(RunMetrics.Stage.DOWNLOAD, System.nanoTime() - downloadStart);
+                metrics.addBytesDownloaded(downloadManager.getBytesDownloaded());
+            }
+        }
+
+        // Only unpack if the archive differs from the one already extracted
+        long unzipStart = System.nanoTime();
+        Path zip = dir.resolve(ModelVersion.SCRIPTS_ZIP);
+        Path scriptsDir = dir.resolve(ModelVersion.SCRIPTS_DIR);
+        String scriptsSha256 = DownloadManager.sha256(zip);
+        if (!scriptsSha256.equals(entry.scriptsSha256) || !Files.isDirectory(scriptsDir)) {
+            ScriptArchive.extract(zip.toString(), scriptsDir.toString());
+            entry.scriptsSha256 = scriptsSha256;
+        }
+        if (metrics != null) {
+            metrics.addStageNanos(RunMetrics.Stage.UNZIP, System.nanoTime() - unzipStart);
+        }
+
+        entry.contentKey = computeContentKey(version, dir);
+        entry.complete = true;
+        entry.lastUsed = System.currentTimeMillis();
+        evictLeastRecentlyUsed(manifest, key);
+        writeManifest(manifest);
+        return dir;
+    }
+
+    // Whether the unpacked scripts and every downloaded file are still there at the size downloaded, without hashing them
+    private static boolean isPresent(ModelVersion version, Path dir) {
+        if (!Files.isDirectory(dir.resolve(ModelVersion.SCRIPTS_DIR))) {
+            return false;
+        }
+        for (DownloadManager.Artifact artifact : version.getArtifacts()) {
+            if (!DownloadManager.hasRecordedSize(dir, artifact)) {
+                logger.warn("{} is missing or changed in the model cache, checking the version again", artifact.getFileName());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Key identifying the files of a resolved version by their content, for caching results computed with them.
+     * Unlike {@link ModelVersion#getKey()} it changes if a URL that isn't pinned starts serving other files.
+     * @return the content key, or the version key if the version hasn't been resolved
+     */
+    public synchronized String getContentKey(ModelVersion version) throws IOException {
+        VersionEntry entry = readManifest().get(version.getKey());
+        return entry == null || entry.contentKey == null ? version.getKey() : entry.contentKey;
+    }
+
+    private static String computeContentKey(ModelVersion version, Path dir) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (DownloadManager.Artifact artifact : version.getArtifacts()) {
+                String sha256 = DownloadManager.getRecordedHash(dir, artifact);
+                if (sha256 == null) {
+                    sha256 = DownloadManager.sha256(dir.resolve(artifact.getFileName()));
+                }
+                digest.update(sha256.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return version.getName() + "-" + HexFormat.of().formatHex(digest.digest()).substring(0, 12);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Keys of the versions currently in the cache
+    public synchronized List<String> getCachedVersions() throws IOException {
+        return new ArrayList<>(readManifest().keySet());
+    }
+
+    private void evictLeastRecentlyUsed(Map<String, VersionEntry> manifest, String keep) throws IOException {
+        List<String> keys = new ArrayList<>(manifest.keySet());
+        keys.remove(keep);
+        keys.sort(Comparator.comparingLong(k -> manifest.get(k).lastUsed));
+        while (keys.size() + 1 > maxVersions) {
+            String key = keys.remove(0);
+            logger.info("Evicting cached model version {}", key);
+            deleteRecursively(root.resolve(key));
+            manifest.remove(key);
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private Map<String, VersionEntry> readManifest() throws IOException {
+        Path path = root.resolve(MANIFEST_NAME);
+        if (Files.isRegularFile(path)) {
+            try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                Map<String, VersionEntry> manifest = gson.fromJson(reader, new TypeToken<Map<String, VersionEntry>>() {}.getType());
+                if (manifest != null) {
+                    return new HashMap<>(manifest);
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Unable to read model cache manifest, versions will be verified: {}", e.getMessage());
+            }
+        }
+        return new HashMap<>();
+    }
+
+    private void writeManifest(Map<String, VersionEntry> manifest) throws IOException {
+        Files.createDirectories(root);
+        Path temp = root.resolve(MANIFEST_NAME + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            gson.toJson(manifest, writer);
+        }
+        DownloadManager.moveAtomically(temp, root.resolve(MANIFEST_NAME));
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+}
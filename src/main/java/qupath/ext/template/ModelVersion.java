@@ -0,0 +1,117 @@
+package qupath.ext.template;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * A set of CircleNet checkpoints together with the Python scripts that run them.
+ * <p>
+ * The cache key is derived from the name and every source URL (and hash, when known),
+ * so changing any artifact gives a new cache entry rather than overwriting the old one.
+ * Files that aren't pinned by a hash are checked against the hash recorded when they were first downloaded,
+ * and results computed with them are keyed by {@link ModelCache#getContentKey(ModelVersion)}.
+ */
+public class ModelVersion {
+
+    // Path of the scripts archive relative to the version directory
+    public static final String SCRIPTS_ZIP = "zip/python_scripts.zip";
+
+    // Directory the scripts archive is extracted to
+    public static final String SCRIPTS_DIR = "python_scripts";
+
+    /**
+     * The WCF glomerulus models, as published with the original extension.
+     * The URLs follow the main branch, so the files aren't pinned and a change upstream is refused
+     * by an existing cache rather than silently replacing the models.
+     */
+    public static final ModelVersion WCF_MAIN = new ModelVersion("wcf-main",
+            List.of(
+                    "https://raw.githubusercontent.com/JLY0814/qupath_wcf_extension/refs/heads/main/WCF/model/model1_best.pth",
+                    "https://raw.githubusercontent.com/JLY0814/qupath_wcf_extension/refs/heads/main/WCF/model/model2_best.pth",
+                    "https://raw.githubusercontent.com/JLY0814/qupath_wcf_extension/refs/heads/main/WCF/model/model3_best.pth",
+                    "https://raw.githubusercontent.com/JLY0814/qupath_wcf_extension/refs/heads/main/WCF/model/model4_best.pth",
+                    "https://raw.githubusercontent.com/JLY0814/qupath_wcf_extension/refs/heads/main/WCF/model/model5_best.pth"),
+            "https://raw.githubusercontent.com/JLY0814/qupath_wcf_extension/refs/heads/main/WCF/CircleNet_Zip.zip");
+
+    private final String name;
+    private final List<DownloadManager.Artifact> models;
+    private final DownloadManager.Artifact scripts;
+
+    // A version whose files are checked against the hashes recorded when they are first downloaded
+    public ModelVersion(String name, List<String> modelUrls, String scriptsUrl) {
+        this(name, modelUrls, null, scriptsUrl, null);
+    }
+
+    /**
+     * A version with pinned files.
+     * @param modelSha256 SHA-256 of each checkpoint, in the same order as the URLs, or null to record them on first download
+     * @param scriptsSha256 SHA-256 of the scripts archive, or null to record it on first download
+     */
+    public ModelVersion(String name, List<String> modelUrls, List<String> modelSha256, String scriptsUrl, String scriptsSha256) {
+        if (modelSha256 != null && modelSha256.size() != modelUrls.size()) {
+            throw new IllegalArgumentException("Expected " + modelUrls.size() + " model hashes, but got " + modelSha256.size());
+        }
+        this.name = name;
+        List<DownloadManager.Artifact> models = new ArrayList<>();
+        for (int i = 0; i < modelUrls.size(); i++) {
+            String url = modelUrls.get(i);
+            String[] urlParts = url.split("/");
+            models.add(new DownloadManager.Artifact(url, urlParts[urlParts.length - 1], modelSha256 == null ? null : modelSha256.get(i)));
+        }
+        this.models = List.copyOf(models);
+        this.scripts = new DownloadManager.Artifact(scriptsUrl, SCRIPTS_ZIP, scriptsSha256);
+    }
+
+    public static ModelVersion getDefault() {
+        return WCF_MAIN;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // The checkpoint files, in model order
+    public List<DownloadManager.Artifact> getModels() {
+        return models;
+    }
+
+    // The first models, which are the ones run by a smaller ensemble, or all of them if count is 0 or more than there are
+    public List<DownloadManager.Artifact> getModels(int count) {
+        return count <= 0 || count >= models.size() ? models : models.subList(0, count);
+    }
+
+    // Everything that needs to be downloaded for this version
+    public List<DownloadManager.Artifact> getArtifacts() {
+        List<DownloadManager.Artifact> artifacts = new ArrayList<>(models);
+        artifacts.add(scripts);
+        return artifacts;
+    }
+
+    // Directory name used in the cache, e.g. 'wcf-main-1a2b3c4d5e6f'
+    public String getKey() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (DownloadManager.Artifact artifact : getArtifacts()) {
+                digest.update(artifact.getUri().toString().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                if (artifact.getSha256() != null) {
+                    digest.update(artifact.getSha256().getBytes(StandardCharsets.UTF_8));
+                }
+                digest.update((byte) 0);
+            }
+            return name + "-" + HexFormat.of().formatHex(digest.digest()).substring(0, 12);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
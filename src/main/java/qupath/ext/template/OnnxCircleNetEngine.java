@@ -0,0 +1,243 @@
+package qupath.ext.template;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the CircleNet models inside QuPath with ONNX Runtime on the CPU, without a Python process.
+ * <p>
+ * The models are exported by {@code export_onnx.py} with a normalised BGR input and the
+ * {@code hm}, {@code cl} and {@code reg} heads as outputs, at a quarter of the input resolution.
+ * Decoding follows CircleNet: peaks of the heatmap (3x3 max pooling), the top {@value #MAX_CIRCLES},
+ * with the centre offset and radius read at each peak.
+ * <p>
+ * Sessions are expensive to create, so the engine for the current models is kept between runs
+ * and shared by the slides running at the same time. Engines are counted as they are handed out,
+ * and one replaced by other models is only closed once the last run using it has closed it.
+ */
+public class OnnxCircleNetEngine implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(OnnxCircleNetEngine.class);
+
+    // Output stride of the network
+    private static final int DOWN_RATIO = 4;
+
+    // Input sizes must be a multiple of this for the DLA-34 up-sampling to line up
+    private static final int SIZE_DIVISOR = 32;
+
+    // Peaks kept per tile and model, as CircleNet's default K
+    private static final int MAX_CIRCLES = 100;
+
+    // Normalisation used in training, in BGR order
+    private static final float[] MEAN = {0.408f, 0.447f, 0.470f};
+    private static final float[] STD = {0.289f, 0.274f, 0.278f};
+
+    private static OnnxCircleNetEngine shared;
+
+    private final OrtEnvironment environment;
+    private final List<Path> modelPaths;
+    private final int nThreads;
+    private final List<OrtSession> sessions = new ArrayList<>();
+
+    // Runs using the engine, and whether it has been replaced as the shared one, guarded by the class
+    private int users;
+    private boolean replaced;
+
+    private OnnxCircleNetEngine(List<Path> modelPaths, int nThreads) throws IOException {
+        this.environment = OrtEnvironment.getEnvironment();
+        this.modelPaths = List.copyOf(modelPaths);
+        this.nThreads = nThreads;
+        try (OrtSession.SessionOptions options = new OrtSession.SessionOptions()) {
+            options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+            options.setIntraOpNumThreads(nThreads);
+            for (Path path : modelPaths) {
+                logger.info("Loading ONNX model {}", path);
+                sessions.add(environment.createSession(path.toString(), options));
+            }
+        } catch (OrtException e) {
+            closeSessions();
+            throw new IOException("Unable to load ONNX model: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the engine for these models, reusing the previous one if the models and threads haven't changed.
+     * The engine must be closed when the run is done with it.
+     * @param nThreads threads used by each model, e.g. the cores divided between the slides running at once
+     */
+    public static OnnxCircleNetEngine getInstance(List<Path> modelPaths, int nThreads) throws IOException {
+        synchronized (OnnxCircleNetEngine.class) {
+            if (shared != null && shared.modelPaths.equals(modelPaths) && shared.nThreads == nThreads) {
+                shared.users++;
+                return shared;
+            }
+            if (shared != null) {
+                shared.replaced = true;
+                if (shared.users == 0) {
+                    shared.closeSessions();
+                }
+                shared = null;
+            }
+            shared = new OnnxCircleNetEngine(modelPaths, nThreads);
+            shared.users = 1;
+            return shared;
+        }
+    }
+
+    public int getModelCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Detect circles in a tile with every model.
+     * @param threshold minimum heatmap score
+     * @return one list per model, in full-resolution image coordinates
+     */
+    public List<List<CircleDetection>> detect(TilePrefetcher.TileImage image, double threshold) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int paddedWidth = roundUp(width);
+        int paddedHeight = roundUp(height);
+        float[] input = normalize(image.getBGR(), width, height, paddedWidth, paddedHeight);
+        long[] shape = {1, 3, paddedHeight, paddedWidth};
+        List<List<CircleDetection>> perModel = new ArrayList<>(sessions.size());
+        try (OnnxTensor tensor = OnnxTensor.createTensor(environment, FloatBuffer.wrap(input), shape)) {
+            for (int m = 0; m < sessions.size(); m++) {
+                OrtSession session = sessions.get(m);
+                String inputName = session.getInputNames().iterator().next();
+                try (OrtSession.Result result = session.run(Map.of(inputName, tensor))) {
+                    perModel.add(decode(result, image, m, threshold));
+                }
+            }
+        } catch (OrtException e) {
+            throw new IOException("ONNX inference failed: " + e.getMessage(), e);
+        }
+        return perModel;
+    }
+
+    private static int roundUp(int size) {
+        return (size + SIZE_DIVISOR - 1) / SIZE_DIVISOR * SIZE_DIVISOR;
+    }
+
+    // Interleaved BGR bytes to normalised planar floats, padding with the mean colour (zero after normalising)
+    private static float[] normalize(byte[] bgr, int width, int height, int paddedWidth, int paddedHeight) {
+        int plane = paddedWidth * paddedHeight;
+        float[] input = new float[3 * plane];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int src = (y * width + x) * 3;
+                int dst = y * paddedWidth + x;
+                for (int c = 0; c < 3; c++) {
+                    input[c * plane + dst] = ((bgr[src + c] & 0xff) / 255f - MEAN[c]) / STD[c];
+                }
+            }
+        }
+        return input;
+    }
+
+    private List<CircleDetection> decode(OrtSession.Result result, TilePrefetcher.TileImage image, int model, double threshold)
+            throws OrtException, IOException {
+        OnnxTensor hm = getOutput(result, "hm", 0);
+        OnnxTensor cl = getOutput(result, "cl", 1);
+        OnnxTensor reg = getOutput(result, "reg", 2);
+        long[] shape = hm.getInfo().getShape();
+        int h = (int) shape[2];
+        int w = (int) shape[3];
+        FloatBuffer heat = hm.getFloatBuffer();
+        FloatBuffer radius = cl.getFloatBuffer();
+        FloatBuffer offset = reg.getFloatBuffer();
+
+        // Local maxima above the threshold, the equivalent of CircleNet's max pooling NMS
+        List<Integer> peaks = new ArrayList<>();
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                float value = heat.get(y * w + x);
+                if (value >= threshold && isPeak(heat, w, h, x, y, value)) {
+                    peaks.add(y * w + x);
+                }
+            }
+        }
+        peaks.sort(Collections.reverseOrder((a, b) -> Float.compare(heat.get(a), heat.get(b))));
+
+        double downsample = image.getTile().getRequest().getDownsample();
+        double x0 = image.getTile().getRequest().getX();
+        double y0 = image.getTile().getRequest().getY();
+        List<CircleDetection> circles = new ArrayList<>();
+        for (int index : peaks.subList(0, Math.min(MAX_CIRCLES, peaks.size()))) {
+            double cx = (index % w + offset.get(index)) * DOWN_RATIO;
+            double cy = (index / w + offset.get(h * w + index)) * DOWN_RATIO;
+            // Centres in the padding aren't part of the tile
+            if (cx >= image.getWidth() || cy >= image.getHeight()) {
+                continue;
+            }
+            double r = radius.get(index) * DOWN_RATIO;
+            circles.add(new CircleDetection(x0 + cx * downsample, y0 + cy * downsample, r * downsample,
+                    heat.get(index), model, 1));
+        }
+        return circles;
+    }
+
+    private static boolean isPeak(FloatBuffer heat, int w, int h, int x, int y, float value) {
+        for (int dy = -1; dy <= 1; dy++) {
+            int yy = y + dy;
+            if (yy < 0 || yy >= h) {
+                continue;
+            }
+            for (int dx = -1; dx <= 1; dx++) {
+                int xx = x + dx;
+                if (xx >= 0 && xx < w && heat.get(yy * w + xx) > value) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Look outputs up by name, falling back to their position for exports with other names
+    private static OnnxTensor getOutput(OrtSession.Result result, String name, int index) throws IOException {
+        OnnxValue value = result.get(name).orElseGet(() -> index < result.size() ? result.get(index) : null);
+        if (!(value instanceof OnnxTensor)) {
+            throw new IOException("ONNX model has no '" + name + "' output");
+        }
+        return (OnnxTensor) value;
+    }
+
+    // Done with the engine; the shared engine keeps its sessions for the next run, a replaced one closes them
+    @Override
+    public void close() {
+        synchronized (OnnxCircleNetEngine.class) {
+            if (users == 0) {
+                return;
+            }
+            users--;
+            if (users == 0 && replaced) {
+                closeSessions();
+            }
+        }
+    }
+
+    private synchronized void closeSessions() {
+        for (OrtSession session : sessions) {
+            try {
+                session.close();
+            } catch (OrtException e) {
+                logger.warn("Unable to close ONNX session: {}", e.getMessage());
+            }
+        }
+        sessions.clear();
+    }
+
+}
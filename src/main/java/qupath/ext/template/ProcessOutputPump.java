@@ -0,0 +1,191 @@
+package qupath.ext.template;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the output of a Python process on its own daemon thread, so the process never blocks on a full pipe
+ * and the caller is free to watch for cancellation and timeouts.
+ * <p>
+ * Only the last lines are kept, in a bounded ring buffer, so memory stays flat however long the process runs.
+ * Lines that look like progress reports, e.g. tqdm bars or "tile 12 of 340", are parsed and passed to a listener.
+ */
+public class ProcessOutputPump {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProcessOutputPump.class);
+
+    // Lines kept for error reports
+    public static final int DEFAULT_TAIL_LINES = 200;
+
+    // Long lines, e.g. a dumped tensor, are cut so the tail stays small
+    private static final int MAX_LINE_LENGTH = 1000;
+
+    // tqdm: " 12%|█▏        | 41/340 [00:30<03:39,  1.36it/s]"
+    private static final Pattern TQDM = Pattern.compile(
+            "(\\d+)/(\\d+) \\[[\\d:]+<(?:(\\d+):)?(\\d+):(\\d+)");
+    // "tile 41 of 340", "Patches: 41/340", "image 3/12"
+    private static final Pattern COUNT = Pattern.compile(
+            "(?i)\\b(?:tile|patch|image|slide|batch)(?:s|es)?\\b\\W{0,3}(\\d+)\\s*(?:/|of)\\s*(\\d+)");
+
+    /**
+     * Receives progress parsed from the output, on the pump thread.
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+        /**
+         * @param etaSeconds estimated seconds remaining, or NaN before a rate is known
+         */
+        void progress(long done, long total, double etaSeconds);
+    }
+
+    private final Deque<String> tail = new ArrayDeque<>();
+    private final int maxLines;
+    private final Consumer<String> lineConsumer;
+    private final Thread thread;
+
+    private volatile ProgressListener progressListener;
+    private volatile long lastOutputNanos = System.nanoTime();
+
+    // Start of the current progress sequence, used to estimate the time left when the process doesn't report it
+    private long progressTotal = -1;
+    private long progressStartNanos;
+    private long progressStartDone;
+
+    private ProcessOutputPump(String name, InputStream stream, int maxLines, Consumer<String> lineConsumer) {
+        this.maxLines = maxLines;
+        this.lineConsumer = lineConsumer;
+        this.thread = new Thread(() -> pump(stream), name);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Start reading a stream.
+     * @param name name of the reader thread
+     * @param maxLines number of lines to keep for {@link #getTail()}
+     * @param lineConsumer also receives every line, on the pump thread; may be null
+     */
+    public static ProcessOutputPump start(String name, InputStream stream, int maxLines, Consumer<String> lineConsumer) {
+        ProcessOutputPump pump = new ProcessOutputPump(name, stream, maxLines, lineConsumer);
+        pump.thread.start();
+        return pump;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    private void pump(InputStream stream) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            // readLine also splits on '\r', so each redraw of a progress bar is a line of its own
+            while ((line = reader.readLine()) != null) {
+                lastOutputNanos = System.nanoTime();
+                if (line.isBlank()) {
+                    continue;
+                }
+                if (line.length() > MAX_LINE_LENGTH) {
+                    line = line.substring(0, MAX_LINE_LENGTH) + "...";
+                }
+                synchronized (tail) {
+                    if (tail.size() >= maxLines) {
+                        tail.removeFirst();
+                    }
+                    tail.addLast(line);
+                }
+                parseProgress(line);
+                if (lineConsumer != null) {
+                    lineConsumer.accept(line);
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Process stream closed: {}", e.getMessage());
+        }
+    }
+
+    private void parseProgress(String line) {
+        ProgressListener listener = progressListener;
+        if (listener == null) {
+            return;
+        }
+        Matcher matcher = TQDM.matcher(line);
+        if (matcher.find()) {
+            long done = Long.parseLong(matcher.group(1));
+            long total = Long.parseLong(matcher.group(2));
+            long hours = matcher.group(3) == null ? 0 : Long.parseLong(matcher.group(3));
+            long eta = hours * 3600 + Long.parseLong(matcher.group(4)) * 60 + Long.parseLong(matcher.group(5));
+            trackProgress(done, total);
+            listener.progress(done, total, eta);
+            return;
+        }
+        matcher = COUNT.matcher(line);
+        if (matcher.find()) {
+            long done = Long.parseLong(matcher.group(1));
+            long total = Long.parseLong(matcher.group(2));
+            if (done <= total && total > 0) {
+                listener.progress(done, total, estimateSecondsLeft(done, total));
+            }
+        }
+    }
+
+    // A new total, or a count going backwards, starts a new sequence
+    private boolean trackProgress(long done, long total) {
+        if (total != progressTotal || done < progressStartDone) {
+            progressTotal = total;
+            progressStartDone = done;
+            progressStartNanos = System.nanoTime();
+            return false;
+        }
+        return true;
+    }
+
+    private double estimateSecondsLeft(long done, long total) {
+        if (!trackProgress(done, total) || done == progressStartDone) {
+            return Double.NaN;
+        }
+        double seconds = (System.nanoTime() - progressStartNanos) / 1e9;
+        return seconds / (done - progressStartDone) * (total - done);
+    }
+
+    // Milliseconds since the process last wrote anything
+    public long getMillisSinceOutput() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastOutputNanos);
+    }
+
+    // The last lines written, oldest first
+    public String getTail() {
+        synchronized (tail) {
+            return String.join(System.lineSeparator(), tail);
+        }
+    }
+
+    // Wait for the stream to be read to the end, which happens soon after the process exits
+    public void awaitEnd(long timeoutMillis) throws InterruptedException {
+        thread.join(timeoutMillis);
+    }
+
+    /**
+     * Format a number of seconds as e.g. "1h 05m", "3m 20s" or "42s".
+     */
+    public static String formatDuration(double seconds) {
+        long s = Math.round(seconds);
+        if (s >= 3600) {
+            return String.format("%dh %02dm", s / 3600, (s % 3600) / 60);
+        } else if (s >= 60) {
+            return String.format("%dm %02ds", s / 60, s % 60);
+        }
+        return s + "s";
+    }
+
+}
@@ -0,0 +1,124 @@
+package qupath.ext.template;
+
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.concurrent.Worker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs a queue of detection tasks (one per slide) across a fixed pool of workers,
+ * keeping track of how many slides have finished and the overall throughput.
+ * <p>
+ * The counters are only updated on the FX thread, so they can be bound directly to the UI.
+ * Once every task has finished, the metrics of the batch are written as CSV and JSON.
+ */
+public class ProjectDetectionScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProjectDetectionScheduler.class);
+
+    private final ObservableList<DetectionTask> tasks;
+    private final ExecutorService pool;
+    private final Path metricsDir;
+    private final String batchName = "batch-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+
+    private final ReadOnlyIntegerWrapper nSucceeded = new ReadOnlyIntegerWrapper();
+    private final ReadOnlyIntegerWrapper nFailed = new ReadOnlyIntegerWrapper();
+    private final ReadOnlyDoubleWrapper slidesPerHour = new ReadOnlyDoubleWrapper();
+
+    private long startTime;
+    private int nFinished;
+
+    /**
+     * @param metricsDir folder for the metrics report of the batch, or null to not write one
+     */
+    public ProjectDetectionScheduler(List<? extends DetectionTask> tasks, int nThreads, Path metricsDir) {
+        this.metricsDir = metricsDir;
+        this.tasks = FXCollections.unmodifiableObservableList(FXCollections.observableArrayList(tasks));
+        this.pool = Executors.newFixedThreadPool(nThreads,
+                ThreadTools.createThreadFactory("circlenet-project-", true));
+    }
+
+    // Queue all the tasks; the pool is shut down once they have been submitted so the threads exit when done
+    public void start() {
+        startTime = System.nanoTime();
+        for (DetectionTask task : tasks) {
+            task.stateProperty().addListener((v, o, n) -> handleStateChange(task, n));
+            pool.execute(task);
+        }
+        pool.shutdown();
+    }
+
+    // Cancel everything that is queued or running, killing any Python processes
+    public void cancel() {
+        for (DetectionTask task : tasks) {
+            task.cancel(true);
+        }
+        pool.shutdownNow();
+    }
+
+    private void handleStateChange(DetectionTask task, Worker.State state) {
+        if (state == Worker.State.SUCCEEDED) {
+            nSucceeded.set(nSucceeded.get() + 1);
+            double hours = (System.nanoTime() - startTime) / 3.6e12;
+            slidesPerHour.set(nSucceeded.get() / hours);
+        } else if (state == Worker.State.FAILED) {
+            logger.error("Detection failed for " + task.getTitle(), task.getException());
+            nFailed.set(nFailed.get() + 1);
+        }
+        if (state == Worker.State.SUCCEEDED || state == Worker.State.FAILED || state == Worker.State.CANCELLED) {
+            nFinished++;
+            if (nFinished == tasks.size()) {
+                writeMetrics();
+            }
+        }
+    }
+
+    private void writeMetrics() {
+        if (metricsDir == null) {
+            return;
+        }
+        List<RunMetrics> metrics = new ArrayList<>();
+        for (DetectionTask task : tasks) {
+            if (task.getMetrics() != null) {
+                metrics.add(task.getMetrics());
+            }
+        }
+        try {
+            RunMetricsLog.writeReport(metrics, metricsDir, batchName);
+        } catch (IOException e) {
+            logger.error("Unable to write batch metrics", e);
+        }
+    }
+
+    public ObservableList<DetectionTask> getTasks() {
+        return tasks;
+    }
+
+    public ReadOnlyIntegerProperty succeededProperty() {
+        return nSucceeded.getReadOnlyProperty();
+    }
+
+    public ReadOnlyIntegerProperty failedProperty() {
+        return nFailed.getReadOnlyProperty();
+    }
+
+    public ReadOnlyDoubleProperty slidesPerHourProperty() {
+        return slidesPerHour.getReadOnlyProperty();
+    }
+
+}
@@ -0,0 +1,67 @@
+package qupath.ext.template;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Detection task for a project entry that isn't open in a viewer.
+ * The image data is read from the project on the worker thread, and the hierarchy
+ * is updated on the worker thread and saved back to the entry once the import is complete.
+ */
+public class ProjectEntryDetectionTask extends DetectionTask {
+
+    private final ProjectImageEntry<BufferedImage> entry;
+
+    private ImageData<BufferedImage> imageData;
+
+    public ProjectEntryDetectionTask(GLOMainCommand command, ProjectImageEntry<BufferedImage> entry) {
+        this(command, entry, DetectionOptions.fromPreferences());
+    }
+
+    public ProjectEntryDetectionTask(GLOMainCommand command, ProjectImageEntry<BufferedImage> entry, DetectionOptions options) {
+        super(command, null, entry.getImageName(), options);
+        this.entry = entry;
+    }
+
+    @Override
+    protected Integer call() throws Exception {
+        try {
+            return super.call();
+        } finally {
+            if (imageData != null) {
+                imageData.getServer().close();
+            }
+        }
+    }
+
+    @Override
+    protected ImageData<BufferedImage> loadImageData() throws IOException {
+        imageData = entry.readImageData();
+        return imageData;
+    }
+
+    @Override
+    protected String getSlideId(ImageData<BufferedImage> imageData) {
+        return DetectionColumnWriter.getSlideId(entry);
+    }
+
+    @Override
+    protected void updateHierarchy(Runnable update) {
+        update.run();
+    }
+
+    // Not open anywhere, so there is nobody to show the detections to before it is saved
+    @Override
+    protected boolean isShownLive() {
+        return false;
+    }
+
+    @Override
+    protected void importComplete(ImageData<BufferedImage> imageData, int count) throws IOException {
+        entry.saveImageData(imageData);
+    }
+
+}
@@ -0,0 +1,205 @@
+package qupath.ext.template;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and counters for one detection run on one image.
+ * <p>
+ * Stage times are wall-clock and accumulate, so a stage entered several times (e.g. each import batch)
+ * is summed. Stages can nest: when results are streamed, {@link Stage#IMPORT} and {@link Stage#WORKER_START}
+ * time is also part of {@link Stage#INFERENCE}. Peak heap is sampled at stage boundaries and progress updates, so it is a lower bound.
+ * All methods are thread-safe.
+ */
+public class RunMetrics {
+
+    /**
+     * The timed parts of a run.
+     */
+    public enum Stage {
+        DOWNLOAD("download"),
+        UNZIP("unzip"),
+        PREPARE("prepare"),
+        WORKER_START("worker_start"),
+        INFERENCE("inference"),
+        PARSE("parse"),
+        IMPORT("import"),
+        MEASURE("measure");
+
+        private final String key;
+
+        Stage(String key) {
+            this.key = key;
+        }
+
+        // Name used in the CSV and JSON exports
+        public String getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * Ends a timed stage when closed, for use with try-with-resources.
+     */
+    public interface Timer extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    private final String imageName;
+    private final String modelVersion;
+    private final Instant started = Instant.now();
+    private final long startNanos = System.nanoTime();
+
+    private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final AtomicInteger objectsImported = new AtomicInteger();
+    private final AtomicInteger tilesInferred = new AtomicInteger();
+    private final AtomicInteger tilesCached = new AtomicInteger();
+    private final AtomicLong peakHeapBytes = new AtomicLong();
+
+    private volatile String engine = "";
+    private volatile String profile = "";
+    private volatile String status = "running";
+    private volatile long wallNanos = -1;
+    private volatile long detectionNanos;
+
+    public RunMetrics(String imageName, String modelVersion) {
+        this.imageName = imageName;
+        this.modelVersion = modelVersion;
+        sampleHeap();
+    }
+
+    // Start timing a stage, the time is added when the timer is closed
+    public Timer time(Stage stage) {
+        long start = System.nanoTime();
+        return () -> {
+            addStageNanos(stage, System.nanoTime() - start);
+            sampleHeap();
+        };
+    }
+
+    public void addStageNanos(Stage stage, long nanos) {
+        stageNanos.addAndGet(stage.ordinal(), nanos);
+    }
+
+    public void addBytesDownloaded(long bytes) {
+        bytesDownloaded.addAndGet(bytes);
+    }
+
+    public void addObjectsImported(int count) {
+        objectsImported.addAndGet(count);
+    }
+
+    public void addTiles(int inferred, int cached) {
+        tilesInferred.addAndGet(inferred);
+        tilesCached.addAndGet(cached);
+    }
+
+    // Time from the start of inference until the last object was imported
+    public void setDetectionNanos(long nanos) {
+        this.detectionNanos = nanos;
+    }
+
+    public void setEngine(String engine) {
+        this.engine = engine;
+    }
+
+    // Speed profile the run used, see SpeedProfile
+    public void setProfile(String profile) {
+        this.profile = profile;
+    }
+
+    // Record the heap currently in use if it is the highest seen so far
+    public void sampleHeap() {
+        peakHeapBytes.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+    }
+
+    // Stop the wall clock, status is e.g. 'succeeded', 'failed' or 'cancelled'
+    public void finish(String status) {
+        this.status = status;
+        sampleHeap();
+        wallNanos = System.nanoTime() - startNanos;
+    }
+
+    public String getImageName() {
+        return imageName;
+    }
+
+    public String getModelVersion() {
+        return modelVersion;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public Instant getStarted() {
+        return started;
+    }
+
+    // Total wall time, or the time so far if the run hasn't finished
+    public double getWallSeconds() {
+        long nanos = wallNanos;
+        return (nanos < 0 ? System.nanoTime() - startNanos : nanos) / 1e9;
+    }
+
+    public long getStageNanos(Stage stage) {
+        return stageNanos.get(stage.ordinal());
+    }
+
+    public double getStageSeconds(Stage stage) {
+        return getStageNanos(stage) / 1e9;
+    }
+
+    public Map<Stage, Double> getStageSeconds() {
+        Map<Stage, Double> map = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            map.put(stage, getStageSeconds(stage));
+        }
+        return map;
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    public int getObjectsImported() {
+        return objectsImported.get();
+    }
+
+    public int getTilesInferred() {
+        return tilesInferred.get();
+    }
+
+    public int getTilesCached() {
+        return tilesCached.get();
+    }
+
+    public long getPeakHeapBytes() {
+        return peakHeapBytes.get();
+    }
+
+    // Objects imported per second, from the start of inference until the import is complete
+    public double getDetectionsPerSecond() {
+        double seconds = detectionNanos / 1e9;
+        return seconds > 0 ? getObjectsImported() / seconds : 0;
+    }
+
+}
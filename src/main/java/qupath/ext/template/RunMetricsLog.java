@@ -0,0 +1,140 @@
+package qupath.ext.template;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Metrics of the detection runs finished in this session, and their export as CSV or JSON.
+ * <p>
+ * The list is only changed on the FX thread, so it can be shown directly in a table,
+ * unless there is no FX thread at all, as when running headless. Only the most recent runs are kept.
+ */
+public class RunMetricsLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(RunMetricsLog.class);
+
+    private static final int MAX_RUNS = 1000;
+
+    private final ObservableList<RunMetrics> runs = FXCollections.observableArrayList();
+
+    // Add a finished run, from any thread
+    public void add(RunMetrics metrics) {
+        logger.info("{}: {} objects in {} s, {} detections/s, peak heap {} MB", metrics.getImageName(),
+                metrics.getObjectsImported(), format(metrics.getWallSeconds()),
+                format(metrics.getDetectionsPerSecond()), metrics.getPeakHeapBytes() / (1024 * 1024));
+        try {
+            Platform.runLater(() -> addRun(metrics));
+        } catch (IllegalStateException e) {
+            // The FX toolkit was never started, so nothing can be showing the list
+            synchronized (runs) {
+                addRun(metrics);
+            }
+        }
+    }
+
+    private void addRun(RunMetrics metrics) {
+        runs.add(metrics);
+        if (runs.size() > MAX_RUNS) {
+            runs.remove(0, runs.size() - MAX_RUNS);
+        }
+    }
+
+    public ObservableList<RunMetrics> getRuns() {
+        return runs;
+    }
+
+    // One row per run, with a column for every stage
+    public static void writeCsv(Collection<RunMetrics> metrics, Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            List<String> header = new ArrayList<>(List.of("image", "model_version", "engine", "profile", "status", "started", "wall_seconds"));
+            for (RunMetrics.Stage stage : RunMetrics.Stage.values()) {
+                header.add(stage.getKey() + "_seconds");
+            }
+            header.addAll(List.of("bytes_downloaded", "objects_imported", "tiles_inferred", "tiles_cached",
+                    "peak_heap_bytes", "detections_per_second"));
+            writer.write(String.join(",", header));
+            writer.newLine();
+            for (RunMetrics m : metrics) {
+                List<String> row = new ArrayList<>(List.of(quote(m.getImageName()), quote(m.getModelVersion()),
+                        quote(m.getEngine()), quote(m.getProfile()), m.getStatus(), m.getStarted().toString(), format(m.getWallSeconds())));
+                for (RunMetrics.Stage stage : RunMetrics.Stage.values()) {
+                    row.add(format(m.getStageSeconds(stage)));
+                }
+                row.addAll(List.of(Long.toString(m.getBytesDownloaded()), Integer.toString(m.getObjectsImported()),
+                        Integer.toString(m.getTilesInferred()), Integer.toString(m.getTilesCached()),
+                        Long.toString(m.getPeakHeapBytes()), format(m.getDetectionsPerSecond())));
+                writer.write(String.join(",", row));
+                writer.newLine();
+            }
+        }
+    }
+
+    // An array of runs, each with a nested object of stage times
+    public static void writeJson(Collection<RunMetrics> metrics, Path path) throws IOException {
+        JsonArray array = new JsonArray();
+        for (RunMetrics m : metrics) {
+            JsonObject json = new JsonObject();
+            json.addProperty("image", m.getImageName());
+            json.addProperty("model_version", m.getModelVersion());
+            json.addProperty("engine", m.getEngine());
+            json.addProperty("profile", m.getProfile());
+            json.addProperty("status", m.getStatus());
+            json.addProperty("started", m.getStarted().toString());
+            json.addProperty("wall_seconds", m.getWallSeconds());
+            JsonObject stages = new JsonObject();
+            for (RunMetrics.Stage stage : RunMetrics.Stage.values()) {
+                stages.addProperty(stage.getKey(), m.getStageSeconds(stage));
+            }
+            json.add("stage_seconds", stages);
+            json.addProperty("bytes_downloaded", m.getBytesDownloaded());
+            json.addProperty("objects_imported", m.getObjectsImported());
+            json.addProperty("tiles_inferred", m.getTilesInferred());
+            json.addProperty("tiles_cached", m.getTilesCached());
+            json.addProperty("peak_heap_bytes", m.getPeakHeapBytes());
+            json.addProperty("detections_per_second", m.getDetectionsPerSecond());
+            array.add(json);
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(array, writer);
+        }
+    }
+
+    // Write both formats next to each other, e.g. for a finished batch
+    public static void writeReport(Collection<RunMetrics> metrics, Path directory, String baseName) throws IOException {
+        Files.createDirectories(directory);
+        writeCsv(metrics, directory.resolve(baseName + ".csv"));
+        writeJson(metrics, directory.resolve(baseName + ".json"));
+        logger.info("Wrote metrics for {} runs to {}", metrics.size(), directory.resolve(baseName + ".csv"));
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return '"' + value.replace("\"", "\"\"") + '"';
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,222 @@
+package qupath.ext.template;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts the downloaded CircleNet Python scripts.
+ * <p>
+ * Entries are extracted in parallel, and files that are already up to date are skipped:
+ * a small manifest records the CRC, size and modification time of every file written, so an
+ * unchanged file is recognised without being read. Files missing from the manifest, or changed since,
+ * are checked against the CRC stored in the archive before being rewritten.
+ */
+public final class ScriptArchive {
+
+    private static final Logger logger = LoggerFactory.getLogger(ScriptArchive.class);
+
+    // Kept in the destination directory; entries are 'name<TAB>crc<TAB>size<TAB>modified'
+    private static final String MANIFEST_NAME = ".extract-manifest";
+
+    private static final int MAX_THREADS = 8;
+
+    private ScriptArchive() {
+    }
+
+    /**
+     * What the manifest knows about one extracted file.
+     */
+    private static class ExtractedFile {
+        private final long crc;
+        private final long size;
+        private final long modified;
+
+        private ExtractedFile(long crc, long size, long modified) {
+            this.crc = crc;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    // Method to unzip a .zip file, only writing the files that have changed
+    public static void extract(String zipFilePath, String destDir) throws IOException {
+        File dir = new File(destDir);
+        if (!dir.exists()) dir.mkdirs();
+        Path manifestPath = dir.toPath().resolve(MANIFEST_NAME);
+        Map<String, ExtractedFile> manifest = readManifest(manifestPath);
+        Map<String, ExtractedFile> extracted = new ConcurrentHashMap<>();
+
+        try (ZipFile zipFile = new ZipFile(zipFilePath)) {
+            // Check every entry and create the directories first, so the parallel part only writes files
+            List<ZipEntry> files = new ArrayList<>();
+            Map<ZipEntry, File> targets = new HashMap<>();
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry zipEntry = entries.nextElement();
+                File newFile = newFile(dir, zipEntry);
+                File directory = zipEntry.isDirectory() ? newFile : newFile.getParentFile();
+                // fix for Windows-created archives, which don't always list directories
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Failed to create directory " + directory);
+                }
+                if (!zipEntry.isDirectory()) {
+                    files.add(zipEntry);
+                    targets.put(zipEntry, newFile);
+                }
+            }
+
+            AtomicInteger written = new AtomicInteger();
+            int nThreads = Math.max(1, Math.min(files.size(), Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors())));
+            ExecutorService pool = Executors.newFixedThreadPool(nThreads, ThreadTools.createThreadFactory("circlenet-unzip-", true));
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (ZipEntry zipEntry : files) {
+                    futures.add(pool.submit(() -> {
+                        Path target = targets.get(zipEntry).toPath();
+                        if (!isUpToDate(zipEntry, target, manifest.get(zipEntry.getName()))) {
+                            // ZipFile can be read from several threads, each entry gets its own stream
+                            try (InputStream inputStream = zipFile.getInputStream(zipEntry)) {
+                                Files.copy(inputStream, target, StandardCopyOption.REPLACE_EXISTING);
+                            }
+                            written.incrementAndGet();
+                        }
+                        extracted.put(zipEntry.getName(), new ExtractedFile(zipEntry.getCrc(), Files.size(target),
+                                Files.getLastModifiedTime(target).toMillis()));
+                        return null;
+                    }));
+                }
+                waitForAll(futures);
+            } finally {
+                pool.shutdownNow();
+                // Record whatever was extracted, even if some entries failed, so the next attempt can skip it
+                writeManifest(manifestPath, extracted);
+            }
+            logger.debug("Extracted {} of {} files from {}", written.get(), files.size(), zipFilePath);
+        }
+    }
+
+    // Unchanged since it was last extracted, or, failing that, with the same size and CRC as the entry
+    private static boolean isUpToDate(ZipEntry zipEntry, Path target, ExtractedFile previous) throws IOException {
+        if (!Files.isRegularFile(target) || zipEntry.getCrc() < 0 || zipEntry.getSize() < 0) {
+            return false;
+        }
+        long size = Files.size(target);
+        if (size != zipEntry.getSize()) {
+            return false;
+        }
+        if (previous != null && previous.crc == zipEntry.getCrc() && previous.size == size
+                && previous.modified == Files.getLastModifiedTime(target).toMillis()) {
+            return true;
+        }
+        return crc32(target) == zipEntry.getCrc();
+    }
+
+    private static long crc32(Path path) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            int len;
+            while ((len = inputStream.read(buffer)) > 0) {
+                crc.update(buffer, 0, len);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void waitForAll(List<Future<?>> futures) throws IOException {
+        IOException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                            : new IOException("Failed to extract scripts", e.getCause());
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Extraction interrupted");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // A damaged manifest only means files are checked by CRC instead
+    private static Map<String, ExtractedFile> readManifest(Path path) {
+        if (!Files.isRegularFile(path)) {
+            return Collections.emptyMap();
+        }
+        Map<String, ExtractedFile> manifest = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length == 4) {
+                    manifest.put(parts[0], new ExtractedFile(Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.warn("Ignoring unreadable extract manifest {}", path);
+            return Collections.emptyMap();
+        }
+        return manifest;
+    }
+
+    private static void writeManifest(Path path, Map<String, ExtractedFile> extracted) throws IOException {
+        Path temp = path.resolveSibling(MANIFEST_NAME + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, ExtractedFile> entry : extracted.entrySet()) {
+                ExtractedFile file = entry.getValue();
+                writer.write(entry.getKey() + "\t" + file.crc + "\t" + file.size + "\t" + file.modified);
+                writer.newLine();
+            }
+        }
+        DownloadManager.moveAtomically(temp, path);
+    }
+
+    // Zip-slip protection: entries must stay inside the destination directory
+    private static File newFile(File destinationDir, ZipEntry zipEntry) throws IOException {
+        File destFile = new File(destinationDir, zipEntry.getName());
+
+        String destDirPath = destinationDir.getCanonicalPath();
+        String destFilePath = destFile.getCanonicalPath();
+
+        if (!destFilePath.startsWith(destDirPath + File.separator)) {
+            throw new IOException("Entry is outside of the target dir: " + zipEntry.getName());
+        }
+
+        return destFile;
+    }
+
+}
@@ -0,0 +1,77 @@
+package qupath.ext.template;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Shares shards of work between a fixed number of workers, with work stealing.
+ * <p>
+ * Shards are dealt out in turn before any work starts, so every worker begins near the start of the list
+ * and results finish roughly in order. A worker that runs out takes the last shard of the worker with the most left,
+ * which is the work its owner would have reached last.
+ */
+public class ShardQueue<T> {
+
+    private final List<Deque<List<T>>> queues = new ArrayList<>();
+    private int stolen;
+
+    public ShardQueue(List<List<T>> shards, int nWorkers) {
+        if (nWorkers < 1) {
+            throw new IllegalArgumentException("Number of workers must be at least 1, but was " + nWorkers);
+        }
+        for (int i = 0; i < nWorkers; i++) {
+            queues.add(new ArrayDeque<>());
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            queues.get(i % nWorkers).addLast(shards.get(i));
+        }
+    }
+
+    /**
+     * Split items into shards of consecutive items with the same key, e.g. tiles in the same row,
+     * with at most {@code maxSize} items in each.
+     */
+    public static <T> List<List<T>> split(List<T> items, int maxSize, ToIntFunction<T> key) {
+        List<List<T>> shards = new ArrayList<>();
+        List<T> shard = new ArrayList<>();
+        for (T item : items) {
+            if (!shard.isEmpty() && (shard.size() >= maxSize || key.applyAsInt(item) != key.applyAsInt(shard.get(0)))) {
+                shards.add(shard);
+                shard = new ArrayList<>();
+            }
+            shard.add(item);
+        }
+        if (!shard.isEmpty()) {
+            shards.add(shard);
+        }
+        return shards;
+    }
+
+    // The next shard for a worker, stolen from another worker if it has none left, or null once all work is taken
+    public synchronized List<T> next(int worker) {
+        List<T> shard = queues.get(worker).pollFirst();
+        if (shard != null) {
+            return shard;
+        }
+        Deque<List<T>> victim = null;
+        for (Deque<List<T>> queue : queues) {
+            if (victim == null || queue.size() > victim.size()) {
+                victim = queue;
+            }
+        }
+        shard = victim.pollLast();
+        if (shard != null) {
+            stolen++;
+        }
+        return shard;
+    }
+
+    // Shards taken from another worker's queue
+    public synchronized int getStolenCount() {
+        return stolen;
+    }
+
+}
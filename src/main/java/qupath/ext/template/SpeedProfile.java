@@ -0,0 +1,72 @@
+package qupath.ext.template;
+
+/**
+ * Trade-offs between speed and sensitivity offered in the extension pane, each a number of models
+ * and an inference downsample.
+ * <p>
+ * A preview runs one model at half resolution, which is several times faster than the full ensemble
+ * and good enough to triage a project before the slides worth it are run in full.
+ */
+public enum SpeedProfile {
+
+    PREVIEW("Preview", 1, 2.0),
+    STANDARD("Standard", 3, 1.0),
+    FULL("Full ensemble", 0, 1.0);
+
+    // Name recorded in the metrics of runs that don't match a profile
+    public static final String CUSTOM = "Custom";
+
+    private final String displayName;
+    private final int ensembleSize;
+    private final double downsample;
+
+    SpeedProfile(String displayName, int ensembleSize, double downsample) {
+        this.displayName = displayName;
+        this.ensembleSize = ensembleSize;
+        this.downsample = downsample;
+    }
+
+    // Number of models run, 0 for all of them
+    public int getEnsembleSize() {
+        return ensembleSize;
+    }
+
+    public double getDownsample() {
+        return downsample;
+    }
+
+    public void applyTo(DetectionOptions options) {
+        options.setEnsembleSize(ensembleSize);
+        options.setTileDownsample(downsample);
+    }
+
+    // Set the preferences, so the next runs use this profile
+    public void applyToPreferences() {
+        GloExtension.ensembleSizeProperty().setValue(ensembleSize);
+        GloExtension.tileDownsampleProperty().setValue(downsample);
+    }
+
+    // The profile the options run with, or null if the models or downsample were set by hand
+    public static SpeedProfile of(DetectionOptions options) {
+        int nModels = options.getModels().size();
+        for (SpeedProfile profile : values()) {
+            if (ModelVersion.getDefault().getModels(profile.ensembleSize).size() == nModels
+                    && profile.downsample == options.getTileDownsample()) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    // Name of the profile of the options, for the metrics; the script always runs the full ensemble whatever is set
+    public static String describe(DetectionOptions options) {
+        SpeedProfile profile = options.isScriptEngine() ? FULL : of(options);
+        return profile == null ? CUSTOM : profile.toString();
+    }
+
+    @Override
+    public String toString() {
+        return displayName;
+    }
+
+}
@@ -0,0 +1,143 @@
+package qupath.ext.template;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fuses the raw per-model circles of each tile as tiles complete, passing on fused circles
+ * as soon as no later tile can change them.
+ * <p>
+ * Tiles overlap, so the same glomerulus can be found in several of them. A circle cut by an edge
+ * the tile shares with a neighbour is dropped when that neighbour is part of the job, since the
+ * neighbour sees it whole (replacing CircleNet's {@code --filter_boarder}). The remaining duplicates
+ * are fused with the other models' circles, counting each model once.
+ * <p>
+ * Tiles must be added in row order. Once every tile above a line has been added, clusters lying
+ * entirely above it (allowing for the largest radius seen) are final and are fused and emitted.
+ */
+public class StreamingCircleFusion {
+
+    private final CircleFusion fusion;
+    private final InferenceWorker.CircleConsumer consumer;
+    private final Set<Long> tilesInJob = new HashSet<>();
+    private final int imageWidth;
+    private final int imageHeight;
+
+    private List<CircleDetection> pending = new ArrayList<>();
+    private double maxRadius;
+    private double lastAdvance = Double.NEGATIVE_INFINITY;
+    private int droppedAtBorder;
+
+    /**
+     * @param tiles every tile in the job, in the order they will be added
+     * @param consumer receives fused circles, in no particular order
+     */
+    public StreamingCircleFusion(CircleFusion fusion, List<DetectionTile> tiles, int imageWidth, int imageHeight,
+                                 InferenceWorker.CircleConsumer consumer) {
+        this.fusion = fusion;
+        this.consumer = consumer;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        for (DetectionTile tile : tiles) {
+            tilesInJob.add(key(tile.getRow(), tile.getColumn()));
+        }
+    }
+
+    private static long key(int row, int column) {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+
+    // Add the raw circles of one tile, in full-resolution image coordinates
+    public void add(DetectionTile tile, Collection<CircleDetection> circles) {
+        for (CircleDetection circle : circles) {
+            if (isCutByNeighbour(tile, circle)) {
+                droppedAtBorder++;
+                continue;
+            }
+            pending.add(circle);
+            maxRadius = Math.max(maxRadius, circle.getRadius());
+        }
+    }
+
+    // Whether the circle crosses an edge of the tile and the neighbour beyond that edge will see it
+    private boolean isCutByNeighbour(DetectionTile tile, CircleDetection circle) {
+        int minX = tile.getRequest().getX();
+        int minY = tile.getRequest().getY();
+        int maxX = tile.getRequest().getMaxX();
+        int maxY = tile.getRequest().getMaxY();
+        int dx = 0;
+        int dy = 0;
+        if (minX > 0 && circle.getX() - circle.getRadius() < minX) {
+            dx = -1;
+        } else if (maxX < imageWidth && circle.getX() + circle.getRadius() > maxX) {
+            dx = 1;
+        }
+        if (minY > 0 && circle.getY() - circle.getRadius() < minY) {
+            dy = -1;
+        } else if (maxY < imageHeight && circle.getY() + circle.getRadius() > maxY) {
+            dy = 1;
+        }
+        if (dx == 0 && dy == 0) {
+            return false;
+        }
+        return tilesInJob.contains(key(tile.getRow() + dy, tile.getColumn() + dx));
+    }
+
+    /**
+     * Emit every cluster that can't be changed by tiles starting at or below this y coordinate.
+     * @param nextTileY top of the next tile to be added
+     */
+    public void advance(double nextTileY) throws IOException {
+        // Nothing new can be final until the next row starts
+        if (pending.isEmpty() || nextTileY <= lastAdvance) {
+            return;
+        }
+        lastAdvance = nextTileY;
+        // Circles from later tiles are centred at or below nextTileY, so anything that ends at least
+        // one radius above it can't overlap them
+        double limit = nextTileY - maxRadius;
+        List<List<CircleDetection>> finished = new ArrayList<>();
+        List<CircleDetection> remaining = new ArrayList<>();
+        for (List<CircleDetection> cluster : fusion.findClusters(pending)) {
+            if (isBefore(cluster, limit)) {
+                finished.add(cluster);
+            } else {
+                remaining.addAll(cluster);
+            }
+        }
+        pending = remaining;
+        emit(fusion.fuseClusters(finished));
+    }
+
+    private static boolean isBefore(List<CircleDetection> cluster, double limit) {
+        for (CircleDetection circle : cluster) {
+            if (circle.getY() + circle.getRadius() > limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Fuse and emit everything still pending, once every tile has been added
+    public void finish() throws IOException {
+        List<CircleDetection> remaining = pending;
+        pending = new ArrayList<>();
+        emit(fusion.fuse(remaining));
+    }
+
+    private void emit(List<CircleDetection> circles) throws IOException {
+        for (CircleDetection circle : circles) {
+            consumer.accept(circle);
+        }
+    }
+
+    // Circles dropped because a neighbouring tile sees them whole
+    public int getDroppedAtBorder() {
+        return droppedAtBorder;
+    }
+
+}
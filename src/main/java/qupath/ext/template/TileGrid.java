@@ -0,0 +1,86 @@
+package qupath.ext.template;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits an image into overlapping tiles for inference.
+ * <p>
+ * Tile size and overlap are given in pixels at the requested downsample,
+ * i.e. the size of the image the model actually sees.
+ */
+public class TileGrid {
+
+    private final int tileSize;
+    private final int overlap;
+    private final double downsample;
+
+    public TileGrid(int tileSize, int overlap, double downsample) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("Tile size must be positive, but was " + tileSize);
+        }
+        if (overlap < 0 || overlap >= tileSize) {
+            throw new IllegalArgumentException("Tile overlap must be between 0 and the tile size, but was " + overlap);
+        }
+        if (!(downsample >= 1)) {
+            throw new IllegalArgumentException("Downsample must be at least 1, but was " + downsample);
+        }
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+        this.downsample = downsample;
+    }
+
+    // Create a grid from the tiling preferences
+    public static TileGrid fromPreferences() {
+        return new TileGrid(
+                GloExtension.tileSizeProperty().getValue(),
+                GloExtension.tileOverlapProperty().getValue(),
+                GloExtension.tileDownsampleProperty().getValue());
+    }
+
+    // Tiles covering the whole image, in row order
+    public List<DetectionTile> createTiles(ImageServer<?> server) {
+        return createTiles(server.getPath(), server.getWidth(), server.getHeight());
+    }
+
+    // Tiles covering an image of the given size, in row order
+    public List<DetectionTile> createTiles(String path, int width, int height) {
+        int fullTile = (int) Math.round(tileSize * downsample);
+        int step = Math.max(1, (int) Math.round((tileSize - overlap) * downsample));
+        double margin = overlap * downsample / 2;
+        List<DetectionTile> tiles = new ArrayList<>();
+        int row = 0;
+        for (int y = 0; y < height; y += step, row++) {
+            int h = Math.min(fullTile, height - y);
+            boolean lastRow = y + step >= height;
+            int column = 0;
+            for (int x = 0; x < width; x += step, column++) {
+                int w = Math.min(fullTile, width - x);
+                boolean lastColumn = x + step >= width;
+                RegionRequest request = RegionRequest.createInstance(path, downsample, x, y, w, h);
+                tiles.add(new DetectionTile(request, row, column,
+                        x == 0 ? 0 : x + margin,
+                        y == 0 ? 0 : y + margin,
+                        lastColumn ? width : x + fullTile - margin,
+                        lastRow ? height : y + fullTile - margin));
+            }
+        }
+        return tiles;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getOverlap() {
+        return overlap;
+    }
+
+    public double getDownsample() {
+        return downsample;
+    }
+
+}
@@ -0,0 +1,154 @@
+package qupath.ext.template;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.ImageServer;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads and decodes tiles from an {@link ImageServer} on a small thread pool, ahead of inference.
+ * <p>
+ * Tiles are returned in order, with at most a fixed number read ahead, so decoding the next tiles
+ * overlaps with inference on the current one without holding the whole slide in memory.
+ */
+public class TilePrefetcher implements AutoCloseable {
+
+    /**
+     * A decoded tile, as interleaved 8-bit BGR pixels in row order.
+     */
+    public static class TileImage {
+
+        private final DetectionTile tile;
+        private final int width;
+        private final int height;
+        private final byte[] bgr;
+
+        private TileImage(DetectionTile tile, int width, int height, byte[] bgr) {
+            this.tile = tile;
+            this.width = width;
+            this.height = height;
+            this.bgr = bgr;
+        }
+
+        public DetectionTile getTile() {
+            return tile;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public byte[] getBGR() {
+            return bgr;
+        }
+
+    }
+
+    private final ImageServer<BufferedImage> server;
+    private final List<DetectionTile> tiles;
+    private final int readAhead;
+    private final ExecutorService pool;
+    private final Deque<Future<TileImage>> pending = new ArrayDeque<>();
+    private int nextSubmit;
+
+    public TilePrefetcher(ImageServer<BufferedImage> server, List<DetectionTile> tiles, int nThreads) {
+        this.server = server;
+        this.tiles = tiles;
+        this.readAhead = Math.max(1, nThreads) * 2;
+        this.pool = Executors.newFixedThreadPool(Math.max(1, nThreads),
+                ThreadTools.createThreadFactory("circlenet-tiles-", true));
+    }
+
+    // Threads used for reading when none is given, leaving the rest of the CPU for inference
+    public static int getDefaultThreads() {
+        return Math.max(2, ThreadTools.getParallelism() / 2);
+    }
+
+    public boolean hasNext() {
+        return !pending.isEmpty() || nextSubmit < tiles.size();
+    }
+
+    // Wait for the next tile, keeping the read-ahead queue full
+    public TileImage next() throws IOException {
+        fill();
+        Future<TileImage> future = pending.poll();
+        if (future == null) {
+            throw new IllegalStateException("No more tiles");
+        }
+        try {
+            TileImage image = future.get();
+            fill();
+            return image;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading tiles");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to read tile: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    public int getTileCount() {
+        return tiles.size();
+    }
+
+    private void fill() {
+        while (pending.size() < readAhead && nextSubmit < tiles.size()) {
+            DetectionTile tile = tiles.get(nextSubmit++);
+            pending.add(pool.submit(() -> read(tile)));
+        }
+    }
+
+    private TileImage read(DetectionTile tile) throws IOException {
+        return read(server, tile);
+    }
+
+    // Read and decode a single tile on the calling thread
+    public static TileImage read(ImageServer<BufferedImage> server, DetectionTile tile) throws IOException {
+        BufferedImage image = server.readRegion(tile.getRequest());
+        if (image == null) {
+            throw new IOException("No pixels returned for " + tile);
+        }
+        return new TileImage(tile, image.getWidth(), image.getHeight(), toBGR(image));
+    }
+
+    // The detector expects the same BGR layout OpenCV would give it
+    private static byte[] toBGR(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+        byte[] bgr = new byte[rgb.length * 3];
+        for (int i = 0, j = 0; i < rgb.length; i++) {
+            int pixel = rgb[i];
+            bgr[j++] = (byte) pixel;
+            bgr[j++] = (byte) (pixel >> 8);
+            bgr[j++] = (byte) (pixel >> 16);
+        }
+        return bgr;
+    }
+
+    @Override
+    public void close() {
+        for (Future<TileImage> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        pool.shutdownNow();
+    }
+
+}
@@ -0,0 +1,161 @@
+package qupath.ext.template;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Raw per-model circles of every tile already run on an image, so a re-run only infers new tiles.
+ * <p>
+ * There is one file per image, model version, engine and tile grid, since a change to any of them
+ * changes the circles. Each finished tile is appended as one JSON line, so an interrupted run
+ * keeps every tile it completed; a partly written last line is ignored.
+ */
+public class TileResultCache implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TileResultCache.class);
+
+    private static final Gson gson = new Gson();
+
+    /**
+     * One line of the cache file: a tile origin and its circles as [x, y, radius, score, model].
+     */
+    private static class TileRecord {
+        int x;
+        int y;
+        double[][] circles;
+    }
+
+    private final Path path;
+    private final Map<Long, List<CircleDetection>> tiles = new HashMap<>();
+    private BufferedWriter writer;
+
+    private TileResultCache(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Open the cache for an image, reading any tiles already stored.
+     * @param root folder holding the caches of all images
+     * @param imageId identifies the image, e.g. its server path
+     * @param modelKey identifies the models, e.g. {@link ModelCache#getContentKey(ModelVersion)}
+     * @param engine name of the engine producing the circles
+     */
+    public static TileResultCache open(Path root, String imageId, String modelKey, String engine, TileGrid grid)
+            throws IOException {
+        String name = String.format(Locale.ROOT, "%s-%s-%d-%d-%s.jsonl",
+                modelKey, engine, grid.getTileSize(), grid.getOverlap(), Double.toString(grid.getDownsample()));
+        TileResultCache cache = new TileResultCache(root.resolve(hash(imageId)).resolve(name));
+        cache.read();
+        return cache;
+    }
+
+    private static String hash(String imageId) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = digest.digest(imageId.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(bytes).substring(0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void read() throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    TileRecord record = gson.fromJson(line, TileRecord.class);
+                    List<CircleDetection> circles = new ArrayList<>(record.circles.length);
+                    for (double[] c : record.circles) {
+                        circles.add(new CircleDetection(c[0], c[1], c[2], c[3], (int) c[4], 1));
+                    }
+                    tiles.put(key(record.x, record.y), circles);
+                } catch (JsonParseException | NullPointerException | ArrayIndexOutOfBoundsException e) {
+                    logger.warn("Ignoring damaged line in tile cache {}", path);
+                }
+            }
+        }
+        logger.info("Loaded {} cached tiles from {}", tiles.size(), path);
+    }
+
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    private static long key(DetectionTile tile) {
+        return key(tile.getRequest().getX(), tile.getRequest().getY());
+    }
+
+    // Circles of a tile that has already been run, or null
+    public List<CircleDetection> get(DetectionTile tile) {
+        return tiles.get(key(tile));
+    }
+
+    public boolean contains(DetectionTile tile) {
+        return tiles.containsKey(key(tile));
+    }
+
+    // Store the raw circles of a finished tile
+    public void put(DetectionTile tile, List<CircleDetection> circles) throws IOException {
+        TileRecord record = new TileRecord();
+        record.x = tile.getRequest().getX();
+        record.y = tile.getRequest().getY();
+        record.circles = new double[circles.size()][];
+        for (int i = 0; i < circles.size(); i++) {
+            CircleDetection c = circles.get(i);
+            record.circles[i] = new double[]{c.getX(), c.getY(), c.getRadius(), c.getScore(), c.getModel()};
+        }
+        if (writer == null) {
+            Files.createDirectories(path.getParent());
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            // Start on a fresh line in case the last run stopped part way through one
+            writer.newLine();
+        }
+        writer.write(gson.toJson(record));
+        writer.newLine();
+        writer.flush();
+        tiles.put(key(tile), List.copyOf(circles));
+    }
+
+    public int size() {
+        return tiles.size();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+}
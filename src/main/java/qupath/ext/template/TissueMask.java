@@ -0,0 +1,114 @@
+package qupath.ext.template;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A coarse tissue mask, used to skip tiles that are only glass before they are sent for inference.
+ * <p>
+ * The whole image is read once at a low resolution and each pixel is called tissue if it is
+ * coloured enough (glass and background are close to grey) and not black (scanner padding).
+ * The mask is stored as a summed-area table, so the tissue fraction of any tile is four lookups.
+ */
+public class TissueMask {
+
+    // Longest side of the low resolution image the mask is computed from
+    private static final int MASK_SIZE = 2048;
+
+    // Pixels darker than this are padding rather than tissue
+    private static final int MIN_BRIGHTNESS = 20;
+
+    private final double downsample;
+    private final int width;
+    private final int height;
+    private final int[] integral;
+
+    private TissueMask(double downsample, int width, int height, int[] integral) {
+        this.downsample = downsample;
+        this.width = width;
+        this.height = height;
+        this.integral = integral;
+    }
+
+    /**
+     * Compute the mask for an image.
+     * @param saturationThreshold minimum HSV saturation, between 0 and 1, for a pixel to count as tissue
+     */
+    public static TissueMask create(ImageServer<BufferedImage> server, double saturationThreshold) throws IOException {
+        double downsample = Math.max(1, Math.max(server.getWidth(), server.getHeight()) / (double) MASK_SIZE);
+        RegionRequest request = RegionRequest.createInstance(server.getPath(), downsample, 0, 0, server.getWidth(), server.getHeight());
+        BufferedImage image = server.readRegion(request);
+        if (image == null) {
+            throw new IOException("Unable to read image for the tissue mask");
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+        // One row and column of padding so the table needs no bounds checks
+        int[] integral = new int[(width + 1) * (height + 1)];
+        for (int y = 0; y < height; y++) {
+            int rowSum = 0;
+            for (int x = 0; x < width; x++) {
+                if (isTissue(rgb[y * width + x], saturationThreshold)) {
+                    rowSum++;
+                }
+                integral[(y + 1) * (width + 1) + x + 1] = integral[y * (width + 1) + x + 1] + rowSum;
+            }
+        }
+        return new TissueMask(downsample, width, height, integral);
+    }
+
+    private static boolean isTissue(int pixel, double saturationThreshold) {
+        int r = (pixel >> 16) & 0xff;
+        int g = (pixel >> 8) & 0xff;
+        int b = pixel & 0xff;
+        int max = Math.max(r, Math.max(g, b));
+        if (max < MIN_BRIGHTNESS) {
+            return false;
+        }
+        int min = Math.min(r, Math.min(g, b));
+        return (max - min) >= saturationThreshold * max;
+    }
+
+    // Fraction of a full-resolution region covered by tissue
+    public double getTissueFraction(ImageRegion region) {
+        int x0 = clamp((int) Math.floor(region.getX() / downsample), width);
+        int y0 = clamp((int) Math.floor(region.getY() / downsample), height);
+        int x1 = clamp((int) Math.ceil(region.getMaxX() / downsample), width);
+        int y1 = clamp((int) Math.ceil(region.getMaxY() / downsample), height);
+        int area = (x1 - x0) * (y1 - y0);
+        if (area <= 0) {
+            return 0;
+        }
+        int stride = width + 1;
+        int sum = integral[y1 * stride + x1] - integral[y0 * stride + x1] - integral[y1 * stride + x0] + integral[y0 * stride + x0];
+        return sum / (double) area;
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(max, value));
+    }
+
+    // Tiles with at least this fraction of tissue
+    public List<DetectionTile> filterTiles(List<DetectionTile> tiles, double minFraction) {
+        List<DetectionTile> filtered = new ArrayList<>();
+        for (DetectionTile tile : tiles) {
+            if (getTissueFraction(tile.getRequest()) >= minFraction) {
+                filtered.add(tile);
+            }
+        }
+        return filtered;
+    }
+
+    // Fraction of the whole image covered by tissue
+    public double getTissueFraction() {
+        return integral[integral.length - 1] / (double) (width * height);
+    }
+
+}
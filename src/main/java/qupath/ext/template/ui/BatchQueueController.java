@@ -0,0 +1,96 @@
+package qupath.ext.template.ui;
+
+import javafx.beans.binding.Bindings;
+import javafx.concurrent.Worker;
+import javafx.fxml.FXML;
+import javafx.fxml.FXMLLoader;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.control.cell.ProgressBarTableCell;
+import javafx.scene.layout.VBox;
+import qupath.ext.template.DetectionTask;
+import qupath.ext.template.ProjectDetectionScheduler;
+
+import java.io.IOException;
+import java.util.ResourceBundle;
+
+/**
+ * Controller for the project detection queue contained in batch.fxml
+ */
+public class BatchQueueController extends VBox {
+    private static final ResourceBundle resources = ResourceBundle.getBundle("qupath.ext.template.ui.strings");
+
+    @FXML
+    private TableView<DetectionTask> taskTable;
+
+    @FXML
+    private TableColumn<DetectionTask, String> nameColumn;
+
+    @FXML
+    private TableColumn<DetectionTask, String> statusColumn;
+
+    @FXML
+    private TableColumn<DetectionTask, String> messageColumn;
+
+    @FXML
+    private TableColumn<DetectionTask, Double> progressColumn;
+
+    @FXML
+    private Label throughputLabel;
+
+    private final ProjectDetectionScheduler scheduler;
+
+    public static BatchQueueController createInstance(ProjectDetectionScheduler scheduler) throws IOException {
+        return new BatchQueueController(scheduler);
+    }
+
+    private BatchQueueController(ProjectDetectionScheduler scheduler) throws IOException {
+        this.scheduler = scheduler;
+        var url = BatchQueueController.class.getResource("batch.fxml");
+        FXMLLoader loader = new FXMLLoader(url, resources);
+        loader.setRoot(this);
+        loader.setController(this);
+        loader.load();
+
+        taskTable.setItems(scheduler.getTasks());
+        nameColumn.setCellValueFactory(c -> c.getValue().titleProperty());
+        statusColumn.setCellValueFactory(c -> Bindings.createStringBinding(
+                () -> formatState(c.getValue().getState()), c.getValue().stateProperty()));
+        messageColumn.setCellValueFactory(c -> c.getValue().messageProperty());
+        progressColumn.setCellValueFactory(c -> c.getValue().progressProperty().asObject());
+        progressColumn.setCellFactory(ProgressBarTableCell.forTableColumn());
+
+        throughputLabel.textProperty().bind(Bindings.createStringBinding(
+                () -> String.format(resources.getString("batch.throughput"),
+                        scheduler.succeededProperty().get(),
+                        scheduler.getTasks().size(),
+                        scheduler.failedProperty().get(),
+                        scheduler.slidesPerHourProperty().get()),
+                scheduler.succeededProperty(), scheduler.failedProperty(), scheduler.slidesPerHourProperty()));
+    }
+
+    private static String formatState(Worker.State state) {
+        switch (state) {
+            case READY:
+            case SCHEDULED:
+                return "Queued";
+            case RUNNING:
+                return "Running";
+            case SUCCEEDED:
+                return "Done";
+            case CANCELLED:
+                return "Cancelled";
+            case FAILED:
+                return "Failed";
+            default:
+                return state.toString();
+        }
+    }
+
+    @FXML
+    private void cancelAll() {
+        scheduler.cancel();
+    }
+
+}
@@ -1,27 +1,86 @@
 package qupath.ext.template.ui;
 
+import javafx.beans.InvalidationListener;
+import javafx.beans.property.ReadOnlyStringWrapper;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.control.ChoiceBox;
+import javafx.scene.control.Label;
 import javafx.scene.control.Spinner;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
 import javafx.scene.control.TextField;
 import javafx.scene.layout.VBox;
+import javafx.stage.FileChooser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.template.DetectionOptions;
+import qupath.ext.template.GLOMainCommand;
 import qupath.ext.template.GloExtension;
+import qupath.ext.template.RunMetrics;
+import qupath.ext.template.RunMetricsLog;
+import qupath.ext.template.SpeedProfile;
 import qupath.fx.dialogs.Dialogs;
+import qupath.lib.gui.QuPathGUI;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
 import java.util.ResourceBundle;
+import java.util.StringJoiner;
+import java.util.function.Function;
 
 /**
  * Controller for UI pane contained in interface.fxml
  */
 
 public class InterfaceController extends VBox {
+    private static final Logger logger = LoggerFactory.getLogger(InterfaceController.class);
     private static final ResourceBundle resources = ResourceBundle.getBundle("qupath.ext.template.ui.strings");
 
     @FXML
     private Spinner<Integer> threadSpinner;
 
+    @FXML
+    private ChoiceBox<SpeedProfile> profileChoice;
+
+    @FXML
+    private Label profileTimesLabel;
+
+    @FXML
+    private TableView<RunMetrics> metricsTable;
+
+    @FXML
+    private TableColumn<RunMetrics, String> imageColumn;
+
+    @FXML
+    private TableColumn<RunMetrics, String> engineColumn;
+
+    @FXML
+    private TableColumn<RunMetrics, String> profileColumn;
+
+    @FXML
+    private TableColumn<RunMetrics, String> totalColumn;
+
+    @FXML
+    private TableColumn<RunMetrics, String> downloadColumn;
+
+    @FXML
+    private TableColumn<RunMetrics, String> inferenceColumn;
+
+    @FXML
+    private TableColumn<RunMetrics, String> importColumn;
+
+    @FXML
+    private TableColumn<RunMetrics, String> objectsColumn;
+
+    @FXML
+    private TableColumn<RunMetrics, String> rateColumn;
+
+    @FXML
+    private TableColumn<RunMetrics, String> heapColumn;
+
     public static InterfaceController createInstance() throws IOException {
         return new InterfaceController();
     }
@@ -44,11 +103,103 @@ public class InterfaceController extends VBox {
                     resources.getString("title"),
                     String.format(resources.getString("threads"), newValue));
         });
+
+        // The profile only sets the preferences, so changing them by hand shows which profile they match, if any
+        profileChoice.getItems().setAll(SpeedProfile.values());
+        InvalidationListener showProfile = o -> profileChoice.setValue(SpeedProfile.of(DetectionOptions.fromPreferences()));
+        GloExtension.ensembleSizeProperty().addListener(showProfile);
+        GloExtension.tileDownsampleProperty().addListener(showProfile);
+        showProfile.invalidated(null);
+        profileChoice.valueProperty().addListener((observableValue, oldValue, newValue) -> {
+            if (newValue != null) {
+                newValue.applyToPreferences();
+            }
+        });
+
+        // Runs are only added once they have finished, so the values never change after a row is shown
+        metricsTable.setItems(GLOMainCommand.getMetricsLog().getRuns());
+        setCellValues(imageColumn, RunMetrics::getImageName);
+        setCellValues(engineColumn, RunMetrics::getEngine);
+        setCellValues(profileColumn, RunMetrics::getProfile);
+        setCellValues(totalColumn, m -> formatNumber(m.getWallSeconds()));
+        setCellValues(downloadColumn, m -> formatNumber(
+                m.getStageSeconds(RunMetrics.Stage.DOWNLOAD) + m.getStageSeconds(RunMetrics.Stage.UNZIP)));
+        setCellValues(inferenceColumn, m -> formatNumber(m.getStageSeconds(RunMetrics.Stage.INFERENCE)));
+        setCellValues(importColumn, m -> formatNumber(m.getStageSeconds(RunMetrics.Stage.IMPORT)));
+        setCellValues(objectsColumn, m -> Integer.toString(m.getObjectsImported()));
+        setCellValues(rateColumn, m -> formatNumber(m.getDetectionsPerSecond()));
+        setCellValues(heapColumn, m -> Long.toString(m.getPeakHeapBytes() / (1024 * 1024)));
+        metricsTable.getItems().addListener((InvalidationListener) o -> updateProfileTimes());
+        updateProfileTimes();
+    }
+
+    // Mean time per slide of the successful runs with each profile
+    private void updateProfileTimes() {
+        StringJoiner text = new StringJoiner("\n");
+        for (SpeedProfile profile : SpeedProfile.values()) {
+            List<RunMetrics> runs = metricsTable.getItems().stream()
+                    .filter(m -> "succeeded".equals(m.getStatus()) && profile.toString().equals(m.getProfile()))
+                    .toList();
+            if (runs.isEmpty()) {
+                text.add(String.format(resources.getString("profile.none"), profile));
+            } else {
+                double seconds = runs.stream().mapToDouble(RunMetrics::getWallSeconds).average().orElse(0);
+                text.add(String.format(Locale.ROOT, resources.getString("profile.time"), profile, seconds, runs.size()));
+            }
+        }
+        profileTimesLabel.setText(text.toString());
+    }
+
+    private static void setCellValues(TableColumn<RunMetrics, String> column, Function<RunMetrics, String> value) {
+        column.setCellValueFactory(c -> new ReadOnlyStringWrapper(value.apply(c.getValue())));
+    }
+
+    private static String formatNumber(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
     }
 
     @FXML
     private void runGloExtension() {
-        System.out.println("Glo extension run");
+        new GLOMainCommand(QuPathGUI.getInstance()).submitDetectionTask();
+    }
+
+    @FXML
+    private void runProject() {
+        new GLOMainCommand(QuPathGUI.getInstance()).submitProjectDetectionTask();
+    }
+
+    @FXML
+    private void exportCsv() {
+        exportMetrics("csv");
+    }
+
+    @FXML
+    private void exportJson() {
+        exportMetrics("json");
+    }
+
+    private void exportMetrics(String extension) {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle(resources.getString("metrics.title"));
+        chooser.setInitialFileName("circlenet-metrics." + extension);
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter(extension.toUpperCase(Locale.ROOT), "*." + extension));
+        File file = chooser.showSaveDialog(getScene().getWindow());
+        if (file == null) {
+            return;
+        }
+        List<RunMetrics> runs = List.copyOf(metricsTable.getItems());
+        try {
+            if ("csv".equals(extension)) {
+                RunMetricsLog.writeCsv(runs, file.toPath());
+            } else {
+                RunMetricsLog.writeJson(runs, file.toPath());
+            }
+            Dialogs.showInfoNotification(resources.getString("title"),
+                    String.format(resources.getString("metrics.exported"), runs.size()));
+        } catch (IOException e) {
+            logger.error("Unable to export metrics", e);
+            Dialogs.showErrorMessage(resources.getString("title"), "Unable to export metrics: " + e.getMessage());
+        }
     }
 
 
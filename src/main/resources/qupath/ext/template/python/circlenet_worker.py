@@ -0,0 +1,254 @@
+"""
+Long-lived CircleNet inference worker used by the QuPath extension.
+
+The worker imports torch once and keeps every checkpoint loaded with torch.load
+in memory, so repeated jobs don't pay the start-up cost.
+
+Protocol: one JSON object per line.
+  stdin:  {"id": 1, "cmd": "ping" | "detect" | "detect_slide" | "detect_tile" | "shutdown", ...}
+  stdout: {"id": 1, "status": "ok" | "error", "message": "..."}
+A {"status": "ready"} line is written once the worker has started.
+Usage: circlenet_worker.py <detection script> [--threads N]
+
+"detect" runs run_detection_for_scn.py with the given "args", writing GeoJSON as before.
+"detect_slide" runs the models directly and streams each fused circle before the final reply as
+  C <tab> id <tab> x <tab> y <tab> radius <tab> score <tab> model <tab> n_models
+in full-resolution slide coordinates, where model is -1 for circles fused across models.
+If "tiles" is given, only tiles whose [x, y] origin is listed are run; the grid matches QuPath's TileGrid.
+"detect_tile" does the same for a single tile read by QuPath, sent as base64 BGR pixels in "data",
+keeping only circles centred inside its "keep" bounds [min_x, min_y, max_x, max_y].
+With "fuse": false it instead streams every model's circles unfiltered, with model set to the
+model index and n_models to 1, so QuPath can fuse them across models and tiles.
+Anything printed by CircleNet itself is sent to stderr so it can't corrupt the protocol.
+"""
+import base64
+import json
+import math
+import os
+import runpy
+import sys
+import traceback
+
+protocol_out = sys.stdout
+sys.stdout = sys.stderr
+
+import numpy as np
+import torch
+
+_torch_load = torch.load
+_checkpoints = {}
+_detectors = {}
+
+
+def cached_load(f, *args, **kwargs):
+    # load_state_dict copies the tensors into the model, so the cached checkpoint is never modified
+    if isinstance(f, (str, os.PathLike)):
+        path = os.path.abspath(f)
+        key = (path, os.path.getmtime(path))
+        if key not in _checkpoints:
+            _checkpoints[key] = _torch_load(f, *args, **kwargs)
+        return _checkpoints[key]
+    return _torch_load(f, *args, **kwargs)
+
+
+torch.load = cached_load
+
+
+def reply(message):
+    protocol_out.write(json.dumps(message) + "\n")
+    protocol_out.flush()
+
+
+def emit_circle(request_id, circle, model=-1):
+    x, y, r, score, n = circle
+    protocol_out.write("C\t{}\t{:.2f}\t{:.2f}\t{:.2f}\t{:.4f}\t{}\t{}\n".format(request_id, x, y, r, score, model, int(n)))
+
+
+def run_detection(script, args):
+    sys.argv = [script] + list(args)
+    try:
+        runpy.run_path(script, run_name="__main__")
+    except SystemExit as e:
+        if e.code not in (None, 0):
+            raise RuntimeError("Detection exited with code {}".format(e.code))
+
+
+def get_detector(model_path, arch):
+    # One CircleNet detector per checkpoint, kept for the lifetime of the worker
+    key = (os.path.abspath(model_path), arch)
+    if key not in _detectors:
+        from opts import opts
+        from detectors.detector_factory import detector_factory
+        opt = opts().init(["circledet", "--arch", arch, "--load_model", model_path])
+        _detectors[key] = detector_factory[opt.task](opt)
+    return _detectors[key]
+
+
+def detect_image(detectors, image_bgr, threshold):
+    # Returns one list of (x, y, r, score) per model, in image coordinates
+    per_model = []
+    for detector in detectors:
+        results = detector.run(image_bgr)["results"]
+        circles = []
+        for rows in results.values():
+            for row in rows:
+                if row[3] >= threshold:
+                    circles.append((float(row[0]), float(row[1]), float(row[2]), float(row[3])))
+        per_model.append(circles)
+    return per_model
+
+
+def circle_iou(a, b):
+    d = np.hypot(a[0] - b[0], a[1] - b[1])
+    r1, r2 = a[2], b[2]
+    if d >= r1 + r2:
+        return 0.0
+    if d <= abs(r1 - r2):
+        inter = np.pi * min(r1, r2) ** 2
+    else:
+        a1 = r1 * r1 * np.arccos((d * d + r1 * r1 - r2 * r2) / (2 * d * r1))
+        a2 = r2 * r2 * np.arccos((d * d + r2 * r2 - r1 * r1) / (2 * d * r2))
+        a3 = 0.5 * np.sqrt(max(0.0, (-d + r1 + r2) * (d + r1 - r2) * (d - r1 + r2) * (d + r1 + r2)))
+        inter = a1 + a2 - a3
+    union = np.pi * (r1 * r1 + r2 * r2) - inter
+    return inter / union if union > 0 else 0.0
+
+
+def fuse_circles(per_model, iou_threshold):
+    # Weighted circle fusion: cluster overlapping circles across models and average them by score
+    n_models = max(1, len(per_model))
+    candidates = sorted(((c, m) for m, circles in enumerate(per_model) for c in circles), key=lambda t: -t[0][3])
+    clusters = []
+    for circle, model in candidates:
+        for cluster in clusters:
+            if circle_iou(cluster["fused"], circle) > iou_threshold:
+                cluster["members"].append(circle)
+                cluster["models"].add(model)
+                w = np.array([c[3] for c in cluster["members"]])
+                xyr = np.array([c[:3] for c in cluster["members"]])
+                fused = (xyr * w[:, None]).sum(axis=0) / w.sum()
+                cluster["fused"] = (fused[0], fused[1], fused[2], w.mean())
+                break
+        else:
+            clusters.append({"fused": circle, "members": [circle], "models": {model}})
+    fused = []
+    for cluster in clusters:
+        x, y, r, score = cluster["fused"]
+        n = len(cluster["models"])
+        fused.append((x, y, r, score * min(n, n_models) / n_models, n))
+    return fused
+
+
+def round_half_up(value):
+    # Same rounding as Java's Math.round, so the grid matches the one built in QuPath
+    return int(math.floor(value + 0.5))
+
+
+def detect_slide(request):
+    import openslide
+    slide = openslide.OpenSlide(request["slide"])
+    detectors = [get_detector(path, request.get("arch", "dla_34")) for path in request["models"]]
+    downsample = float(request.get("downsample", 1.0))
+    tile = int(request.get("tile_size", 512))
+    overlap = int(request.get("overlap", 64))
+    threshold = float(request.get("threshold", 0.3))
+    iou_threshold = float(request.get("iou_threshold", 0.3))
+    level = slide.get_best_level_for_downsample(downsample)
+    level_downsample = slide.level_downsamples[level]
+    width, height = slide.dimensions
+    whitelist = request.get("tiles")
+    whitelist = None if whitelist is None else {(int(x), int(y)) for x, y in whitelist}
+    # Size of the tile when read at full resolution
+    step = max(1, round_half_up((tile - overlap) * downsample))
+    full_tile = round_half_up(tile * downsample)
+    margin = overlap * downsample / 2
+    for y0 in range(0, height, step):
+        for x0 in range(0, width, step):
+            if whitelist is not None and (x0, y0) not in whitelist:
+                continue
+            w = min(full_tile, width - x0)
+            h = min(full_tile, height - y0)
+            region = slide.read_region((x0, y0), level, (int(w / level_downsample), int(h / level_downsample)))
+            image = region.convert("RGB")
+            if level_downsample != downsample:
+                image = image.resize((max(1, int(w / downsample)), max(1, int(h / downsample))))
+            image_bgr = np.array(image)[:, :, ::-1].copy()
+            for x, y, r, score, n in fuse_circles(detect_image(detectors, image_bgr, threshold), iou_threshold):
+                cx = x0 + x * downsample
+                cy = y0 + y * downsample
+                # Each tile only keeps circles centred in the part it doesn't share with its neighbours
+                if (x0 > 0 and cx < x0 + margin) or (y0 > 0 and cy < y0 + margin):
+                    continue
+                if (x0 + step < width and cx >= x0 + full_tile - margin) or (y0 + step < height and cy >= y0 + full_tile - margin):
+                    continue
+                emit_circle(request["id"], (cx, cy, r * downsample, score, n))
+            protocol_out.flush()
+
+
+def detect_tile(request):
+    detectors = [get_detector(path, request.get("arch", "dla_34")) for path in request["models"]]
+    width = int(request["width"])
+    height = int(request["height"])
+    pixels = np.frombuffer(base64.b64decode(request["data"]), dtype=np.uint8)
+    image_bgr = pixels.reshape(height, width, 3).copy()
+    x0 = float(request["x"])
+    y0 = float(request["y"])
+    downsample = float(request.get("downsample", 1.0))
+    threshold = float(request.get("threshold", 0.3))
+    iou_threshold = float(request.get("iou_threshold", 0.3))
+    per_model = detect_image(detectors, image_bgr, threshold)
+    if not request.get("fuse", True):
+        for model, circles in enumerate(per_model):
+            for x, y, r, score in circles:
+                emit_circle(request["id"], (x0 + x * downsample, y0 + y * downsample, r * downsample, score, 1), model)
+        protocol_out.flush()
+        return
+    min_x, min_y, max_x, max_y = request.get("keep", (float("-inf"), float("-inf"), float("inf"), float("inf")))
+    for x, y, r, score, n in fuse_circles(per_model, iou_threshold):
+        cx = x0 + x * downsample
+        cy = y0 + y * downsample
+        if min_x <= cx < max_x and min_y <= cy < max_y:
+            emit_circle(request["id"], (cx, cy, r * downsample, score, n))
+    protocol_out.flush()
+
+
+def main():
+    script = os.path.abspath(sys.argv[1])
+    # "--threads N" limits torch when several workers share the tiles of a slide
+    if len(sys.argv) > 3 and sys.argv[2] == "--threads":
+        torch.set_num_threads(int(sys.argv[3]))
+    sys.path.insert(0, os.path.dirname(script))
+    sys.path.insert(0, os.path.join(os.path.dirname(script), "lib"))
+    reply({"status": "ready", "pid": os.getpid()})
+
+    for line in sys.stdin:
+        line = line.strip()
+        if not line:
+            continue
+        request = json.loads(line)
+        request_id = request.get("id")
+        cmd = request.get("cmd")
+        try:
+            if cmd == "ping":
+                reply({"id": request_id, "status": "ok", "checkpoints": len(_checkpoints)})
+            elif cmd == "detect":
+                run_detection(script, request.get("args", []))
+                reply({"id": request_id, "status": "ok"})
+            elif cmd == "detect_slide":
+                detect_slide(request)
+                reply({"id": request_id, "status": "ok"})
+            elif cmd == "detect_tile":
+                detect_tile(request)
+                reply({"id": request_id, "status": "ok"})
+            elif cmd == "shutdown":
+                reply({"id": request_id, "status": "ok"})
+                break
+            else:
+                reply({"id": request_id, "status": "error", "message": "Unknown command: {}".format(cmd)})
+        except Exception as e:
+            traceback.print_exc()
+            reply({"id": request_id, "status": "error", "message": str(e)})
+
+
+if __name__ == "__main__":
+    main()
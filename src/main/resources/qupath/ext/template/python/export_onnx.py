@@ -0,0 +1,64 @@
+"""
+Export the CircleNet checkpoints to ONNX for the in-QuPath engine.
+
+Usage: python export_onnx.py <model_dir> [arch] [opset]
+
+Every .pth file in <model_dir> is written to <model_dir>/onnx/<name>.onnx with one input
+("input", normalised BGR in NCHW order) and three outputs at 1/4 of the input size:
+"hm" (sigmoid heatmap), "cl" (radius) and "reg" (centre offset).
+The deformable convolutions in dla_34 need an opset with DeformConv (19 or later).
+"""
+import os
+import sys
+
+import torch
+
+script_dir = os.path.dirname(os.path.abspath(__file__))
+sys.path.insert(0, os.path.join(script_dir, "CircleNet_Zip", "src", "lib"))
+
+from models.model import create_model, load_model
+
+HEADS = {"hm": 1, "cl": 1, "reg": 2}
+
+
+class CircleNetOutputs(torch.nn.Module):
+
+    def __init__(self, model):
+        super().__init__()
+        self.model = model
+
+    def forward(self, x):
+        output = self.model(x)[-1]
+        return output["hm"].sigmoid(), output["cl"], output["reg"]
+
+
+def export(model_path, onnx_path, arch, opset):
+    model = load_model(create_model(arch, HEADS, 256), model_path)
+    model.eval()
+    dummy = torch.zeros(1, 3, 512, 512)
+    spatial = {2: "height", 3: "width"}
+    torch.onnx.export(CircleNetOutputs(model), dummy, onnx_path,
+                      input_names=["input"], output_names=["hm", "cl", "reg"],
+                      dynamic_axes={"input": spatial, "hm": spatial, "cl": spatial, "reg": spatial},
+                      opset_version=opset)
+
+
+def main():
+    if len(sys.argv) < 2:
+        print(__doc__)
+        sys.exit(1)
+    model_dir = sys.argv[1]
+    arch = sys.argv[2] if len(sys.argv) > 2 else "dla_34"
+    opset = int(sys.argv[3]) if len(sys.argv) > 3 else 19
+    onnx_dir = os.path.join(model_dir, "onnx")
+    os.makedirs(onnx_dir, exist_ok=True)
+    for name in sorted(os.listdir(model_dir)):
+        if name.endswith(".pth"):
+            onnx_path = os.path.join(onnx_dir, name[:-len(".pth")] + ".onnx")
+            print("Exporting {} to {}".format(name, onnx_path))
+            with torch.no_grad():
+                export(os.path.join(model_dir, name), onnx_path, arch, opset)
+
+
+if __name__ == "__main__":
+    main()
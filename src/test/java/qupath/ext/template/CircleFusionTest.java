@@ -0,0 +1,228 @@
+package qupath.ext.template;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.regions.RegionRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CircleFusionTest {
+
+    private static final double IOU = 0.5;
+    private static final int N_MODELS = 3;
+
+    private static final int TILE_SIZE = 512;
+    private static final int TILE_OVERLAP = 64;
+    private static final int N_TILES = 4;
+
+    @Test
+    public void test_emptyInput() {
+        CircleFusion fusion = new CircleFusion(IOU, N_MODELS);
+        assertTrue(fusion.fuse(List.of()).isEmpty());
+        assertTrue(fusion.findClusters(List.of()).isEmpty());
+        assertTrue(fusion.fuseClusters(List.of()).isEmpty());
+    }
+
+    @Test
+    public void test_mergeAcrossModels() {
+        CircleFusion fusion = new CircleFusion(IOU, N_MODELS);
+        List<CircleDetection> fused = fusion.fuse(List.of(
+                new CircleDetection(100, 100, 20, 0.8, 0, 1),
+                new CircleDetection(102, 100, 20, 0.4, 1, 1)));
+        assertEquals(1, fused.size());
+        CircleDetection circle = fused.get(0);
+        assertEquals(-1, circle.getModel());
+        assertEquals(2, circle.getModelCount());
+        // Score-weighted mean position, and the mean score scaled by the models agreeing
+        assertEquals((100 * 0.8 + 102 * 0.4) / 1.2, circle.getX(), 1e-9);
+        assertEquals(100, circle.getY(), 1e-9);
+        assertEquals(20, circle.getRadius(), 1e-9);
+        assertEquals(0.6 * 2 / N_MODELS, circle.getScore(), 1e-9);
+    }
+
+    @Test
+    public void test_keepSeparateCircles() {
+        CircleFusion fusion = new CircleFusion(IOU, N_MODELS);
+        List<CircleDetection> fused = fusion.fuse(List.of(
+                new CircleDetection(100, 100, 20, 0.8, 0, 1),
+                new CircleDetection(125, 100, 20, 0.8, 1, 1),
+                new CircleDetection(500, 500, 20, 0.8, 2, 1)));
+        assertEquals(3, fused.size());
+        for (CircleDetection circle : fused) {
+            assertEquals(1, circle.getModelCount());
+            assertEquals(0.8 / N_MODELS, circle.getScore(), 1e-9);
+        }
+    }
+
+    @Test
+    public void test_mergeAcrossTileBorder() {
+        // The same model sees a glomerulus in the overlap of two tiles, which is one circle found by one model
+        CircleFusion fusion = new CircleFusion(IOU, N_MODELS);
+        List<CircleDetection> fused = fusion.fuse(List.of(
+                new CircleDetection(480, 200, 25, 0.9, 0, 1),
+                new CircleDetection(481, 201, 25, 0.7, 0, 1)));
+        assertEquals(1, fused.size());
+        assertEquals(1, fused.get(0).getModelCount());
+        assertEquals(0.8 / N_MODELS, fused.get(0).getScore(), 1e-9);
+    }
+
+    @Test
+    public void test_agreementCountsEachModelOnce() {
+        CircleFusion fusion = new CircleFusion(IOU, N_MODELS);
+        List<CircleDetection> fused = fusion.fuse(List.of(
+                new CircleDetection(300, 300, 30, 0.9, 0, 1),
+                new CircleDetection(301, 300, 30, 0.6, 2, 1),
+                new CircleDetection(300, 301, 30, 0.3, 0, 1)));
+        assertEquals(1, fused.size());
+        assertEquals(2, fused.get(0).getModelCount());
+        assertEquals(0.6 * 2 / N_MODELS, fused.get(0).getScore(), 1e-9);
+
+        // Circles fused earlier keep their agreement
+        List<CircleDetection> refused = fusion.fuse(List.of(fused.get(0), new CircleDetection(300, 300, 30, 0.5, 1, 1)));
+        assertEquals(1, refused.size());
+        assertEquals(2, refused.get(0).getModelCount());
+    }
+
+    @Test
+    public void test_clustersMatchBruteForce() {
+        Random random = new Random(42);
+        List<CircleDetection> circles = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            circles.add(new CircleDetection(random.nextDouble() * 5000, random.nextDouble() * 5000,
+                    10 + random.nextDouble() * 20, random.nextDouble(), random.nextInt(N_MODELS), 1));
+        }
+        // Outsized circles, which mustn't set the grid size nor be missed by it
+        circles.add(new CircleDetection(2500, 2500, 2000, 0.9, 0, 1));
+        circles.add(new CircleDetection(2600, 2450, 1900, 0.8, 1, 1));
+        circles.add(new CircleDetection(1000, 4000, 300, 0.7, 2, 1));
+        circles.add(new CircleDetection(1020, 4010, 290, 0.6, 0, 1));
+        circles.add(new CircleDetection(4000, 1000, 400, 0.5, 1, 1));
+        for (int i = 0; i < 20; i++) {
+            CircleDetection small = circles.get(random.nextInt(2000));
+            circles.add(new CircleDetection(small.getX() + 1, small.getY(), small.getRadius() * 1.05, 0.5, 2, 1));
+        }
+        assertEquals(toSets(circles, bruteForceClusters(circles, IOU)),
+                toSets(circles, new CircleFusion(IOU, N_MODELS).findClusters(circles)));
+    }
+
+    @Test
+    public void test_streamingMatchesOneShot() throws IOException {
+        Random random = new Random(7);
+        int step = TILE_SIZE - TILE_OVERLAP;
+        int imageSize = step * (N_TILES - 1) + TILE_SIZE;
+        Map<DetectionTile, List<CircleDetection>> tiles = new LinkedHashMap<>();
+        for (int row = 0; row < N_TILES; row++) {
+            for (int column = 0; column < N_TILES; column++) {
+                RegionRequest request = RegionRequest.createInstance("test", 1, column * step, row * step, TILE_SIZE, TILE_SIZE);
+                tiles.put(new DetectionTile(request, row, column, request.getX(), request.getY(),
+                        request.getMaxX(), request.getMaxY()), new ArrayList<>());
+            }
+        }
+        // Each glomerulus is found by some of the models in every tile that sees it whole
+        for (int i = 0; i < 300; i++) {
+            double radius = 10 + random.nextDouble() * 30;
+            double x = radius + random.nextDouble() * (imageSize - 2 * radius);
+            double y = radius + random.nextDouble() * (imageSize - 2 * radius);
+            for (Map.Entry<DetectionTile, List<CircleDetection>> entry : tiles.entrySet()) {
+                RegionRequest request = entry.getKey().getRequest();
+                for (int model = 0; model < N_MODELS; model++) {
+                    CircleDetection circle = new CircleDetection(x + random.nextGaussian(), y + random.nextGaussian(),
+                            radius * (1 + 0.02 * random.nextGaussian()), 0.1 + 0.9 * random.nextDouble(), model, 1);
+                    boolean whole = circle.getX() - circle.getRadius() >= request.getX()
+                            && circle.getX() + circle.getRadius() <= request.getMaxX()
+                            && circle.getY() - circle.getRadius() >= request.getY()
+                            && circle.getY() + circle.getRadius() <= request.getMaxY();
+                    if (whole && random.nextDouble() < 0.7) {
+                        entry.getValue().add(circle);
+                    }
+                }
+            }
+        }
+
+        CircleFusion fusion = new CircleFusion(IOU, N_MODELS);
+        List<CircleDetection> streamed = new ArrayList<>();
+        StreamingCircleFusion streaming = new StreamingCircleFusion(fusion, new ArrayList<>(tiles.keySet()),
+                imageSize, imageSize, streamed::add);
+        List<CircleDetection> all = new ArrayList<>();
+        for (Map.Entry<DetectionTile, List<CircleDetection>> entry : tiles.entrySet()) {
+            streaming.advance(entry.getKey().getRequest().getY());
+            streaming.add(entry.getKey(), entry.getValue());
+            all.addAll(entry.getValue());
+        }
+        streaming.finish();
+        assertEquals(0, streaming.getDroppedAtBorder());
+
+        List<CircleDetection> oneShot = fusion.fuse(all);
+        assertTrue(oneShot.size() < all.size());
+        assertEquals(describe(oneShot), describe(streamed));
+    }
+
+    // Every pair compared, for checking the grid
+    private static List<List<CircleDetection>> bruteForceClusters(List<CircleDetection> circles, double iouThreshold) {
+        int n = circles.size();
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++) {
+            parent[i] = i;
+        }
+        for (int i = 0; i < n; i++) {
+            CircleDetection circle = circles.get(i);
+            for (int j = i + 1; j < n; j++) {
+                if (CircleFusion.iou(circle.getX(), circle.getY(), circle.getRadius(), circles.get(j)) > iouThreshold) {
+                    parent[root(parent, i)] = root(parent, j);
+                }
+            }
+        }
+        Map<Integer, List<CircleDetection>> clusters = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            clusters.computeIfAbsent(root(parent, i), k -> new ArrayList<>()).add(circles.get(i));
+        }
+        return new ArrayList<>(clusters.values());
+    }
+
+    private static int root(int[] parent, int i) {
+        while (parent[i] != i) {
+            i = parent[i];
+        }
+        return i;
+    }
+
+    // Clusters as sets of the indices of their circles
+    private static Set<Set<Integer>> toSets(List<CircleDetection> circles, List<List<CircleDetection>> clusters) {
+        Map<CircleDetection, Integer> ids = new IdentityHashMap<>();
+        for (int i = 0; i < circles.size(); i++) {
+            ids.put(circles.get(i), i);
+        }
+        Set<Set<Integer>> sets = new HashSet<>();
+        for (List<CircleDetection> cluster : clusters) {
+            Set<Integer> set = new HashSet<>();
+            for (CircleDetection circle : cluster) {
+                set.add(ids.get(circle));
+            }
+            sets.add(set);
+        }
+        return sets;
+    }
+
+    private static List<String> describe(List<CircleDetection> circles) {
+        List<CircleDetection> sorted = new ArrayList<>(circles);
+        sorted.sort(Comparator.comparingDouble(CircleDetection::getX).thenComparingDouble(CircleDetection::getY));
+        List<String> descriptions = new ArrayList<>();
+        for (CircleDetection circle : sorted) {
+            descriptions.add(String.format("%.6f %.6f %.6f %.6f %d",
+                    circle.getX(), circle.getY(), circle.getRadius(), circle.getScore(), circle.getModelCount()));
+        }
+        return descriptions;
+    }
+
+}
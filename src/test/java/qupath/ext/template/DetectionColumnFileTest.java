@@ -0,0 +1,197 @@
+package qupath.ext.template;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DetectionColumnFileTest {
+
+    private static final List<String> FIXED_COLUMNS = List.of(DetectionColumnWriter.COLUMN_X, DetectionColumnWriter.COLUMN_Y,
+            DetectionColumnWriter.COLUMN_RADIUS, DetectionColumnWriter.COLUMN_SCORE, DetectionColumnWriter.COLUMN_AGREEMENT);
+
+    // Ids of different lengths, so the header padding differs between chunks
+    private static final String SLIDE_A = "project/1/a.svs";
+    private static final String SLIDE_B = "project/22/slide-b.ndpi";
+    private static final String SLIDE_C = "project/333/c.tif";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void test_rerunReplacesEarlierChunk() throws IOException {
+        Path path = directory.resolve("cohort.glc");
+        DetectionColumnWriter.append(path, SLIDE_A, List.of(circle(100, 200, 20, 0.9, 3), circle(300, 400, 25, 0.5, 1)));
+        DetectionColumnWriter.append(path, SLIDE_B, List.of(circle(10, 20, 5, 0.1, 1), circle(30, 40, 6, 0.2, 2), circle(50, 60, 7, 0.3, 3)));
+        DetectionColumnWriter.append(path, SLIDE_A, List.of(circle(1000, 2000, 30, 0.8, 2)));
+
+        try (DetectionColumnReader reader = DetectionColumnReader.open(path)) {
+            List<DetectionColumnReader.Chunk> chunks = reader.getChunks();
+            assertEquals(2, chunks.size());
+            assertEquals(4, reader.getRowCount());
+
+            // The re-run replaces the first run of the slide but keeps its place
+            DetectionColumnReader.Chunk a = chunks.get(0);
+            assertEquals(SLIDE_A, a.getSlideId());
+            assertEquals(FIXED_COLUMNS, a.getColumnNames());
+            assertColumn(a, DetectionColumnWriter.COLUMN_X, 1000);
+            assertColumn(a, DetectionColumnWriter.COLUMN_Y, 2000);
+            assertColumn(a, DetectionColumnWriter.COLUMN_RADIUS, 30);
+            assertColumn(a, DetectionColumnWriter.COLUMN_SCORE, 0.8);
+            assertColumn(a, DetectionColumnWriter.COLUMN_AGREEMENT, 2);
+
+            DetectionColumnReader.Chunk b = chunks.get(1);
+            assertEquals(SLIDE_B, b.getSlideId());
+            assertColumn(b, DetectionColumnWriter.COLUMN_X, 10, 30, 50);
+            assertColumn(b, DetectionColumnWriter.COLUMN_Y, 20, 40, 60);
+            assertColumn(b, DetectionColumnWriter.COLUMN_RADIUS, 5, 6, 7);
+            assertColumn(b, DetectionColumnWriter.COLUMN_SCORE, 0.1, 0.2, 0.3);
+            assertColumn(b, DetectionColumnWriter.COLUMN_AGREEMENT, 1, 2, 3);
+        }
+    }
+
+    @Test
+    public void test_truncatedChunk() throws IOException {
+        Path path = directory.resolve("cohort.glc");
+        DetectionColumnWriter.append(path, SLIDE_A, List.of(circle(100, 200, 20, 0.9, 3)));
+        long sizeA = Files.size(path);
+        DetectionColumnWriter.append(path, SLIDE_B, List.of(circle(10, 20, 5, 0.1, 1), circle(30, 40, 6, 0.2, 2)));
+        long sizeB = Files.size(path) - sizeA;
+
+        // Cut off in the chunk prefix, in the header and in the values
+        for (long cut : new long[] {5, 20, sizeB - 3}) {
+            Path truncated = directory.resolve("truncated-" + cut + ".glc");
+            Files.copy(path, truncated);
+            try (FileChannel channel = FileChannel.open(truncated, StandardOpenOption.WRITE)) {
+                channel.truncate(sizeA + cut);
+            }
+
+            try (DetectionColumnReader reader = DetectionColumnReader.open(truncated)) {
+                assertEquals(List.of(SLIDE_A), getSlideIds(reader));
+                assertColumn(reader.getChunks().get(0), DetectionColumnWriter.COLUMN_X, 100);
+            }
+
+            // The next append drops the partial chunk before writing its own
+            DetectionColumnWriter.append(truncated, SLIDE_C, List.of(circle(7, 8, 9, 0.4, 2)));
+            try (DetectionColumnReader reader = DetectionColumnReader.open(truncated)) {
+                assertEquals(List.of(SLIDE_A, SLIDE_C), getSlideIds(reader));
+                assertColumn(reader.getChunks().get(1), DetectionColumnWriter.COLUMN_X, 7);
+                assertColumn(reader.getChunks().get(1), DetectionColumnWriter.COLUMN_RADIUS, 9);
+            }
+            try (FileChannel channel = FileChannel.open(truncated, StandardOpenOption.READ)) {
+                assertEquals(channel.size(), DetectionColumnWriter.findEnd(channel));
+            }
+        }
+    }
+
+    @Test
+    public void test_extraMeasurements() throws IOException {
+        Path path = directory.resolve("cohort.glc");
+        PathObject both = circle(100, 100, 10, 0.9, 3, Map.of("Area", 314.0, "Mean", 0.5));
+        PathObject areaOnly = circle(200, 200, 20, 0.7, 2, Map.of("Area", 1256.0));
+        PathObject none = circle(300, 300, 30, 0.5, 1);
+        // Drawn by hand, so without the CircleNet measurements
+        PathObject drawn = PathObjects.createDetectionObject(
+                ROIs.createEllipseROI(380, 380, 40, 40, ImagePlane.getDefaultPlane()), null,
+                measurements(Map.of("Mean", 0.25)));
+        DetectionColumnWriter.append(path, SLIDE_A, List.of(both, areaOnly, none, drawn));
+
+        try (DetectionColumnReader reader = DetectionColumnReader.open(path)) {
+            DetectionColumnReader.Chunk chunk = reader.getChunks().get(0);
+            List<String> columns = new ArrayList<>(FIXED_COLUMNS);
+            columns.add("Area");
+            columns.add("Mean");
+            assertEquals(columns, chunk.getColumnNames());
+            assertTrue(chunk.hasColumn("Area"));
+            assertFalse(chunk.hasColumn(CircleDetection.MEASUREMENT_SCORE));
+            assertNull(chunk.getColumn("Missing"));
+
+            assertColumn(chunk, DetectionColumnWriter.COLUMN_X, 100, 200, 300, 400);
+            assertColumn(chunk, DetectionColumnWriter.COLUMN_RADIUS, 10, 20, 30, 20);
+            assertColumn(chunk, DetectionColumnWriter.COLUMN_SCORE, 0.9, 0.7, 0.5, Double.NaN);
+            assertColumn(chunk, DetectionColumnWriter.COLUMN_AGREEMENT, 3, 2, 1, Double.NaN);
+            assertColumn(chunk, "Area", 314, 1256, Double.NaN, Double.NaN);
+            assertColumn(chunk, "Mean", 0.5, Double.NaN, Double.NaN, 0.25);
+        }
+    }
+
+    @Test
+    public void test_emptyChunk() throws IOException {
+        Path path = directory.resolve("cohort.glc");
+        DetectionColumnWriter.append(path, SLIDE_A, List.of());
+        DetectionColumnWriter.append(path, SLIDE_B, List.of(circle(10, 20, 5, 0.1, 1)));
+
+        try (DetectionColumnReader reader = DetectionColumnReader.open(path)) {
+            assertEquals(List.of(SLIDE_A, SLIDE_B), getSlideIds(reader));
+            assertEquals(1, reader.getRowCount());
+
+            DetectionColumnReader.Chunk empty = reader.getChunks().get(0);
+            assertEquals(0, empty.getRowCount());
+            assertEquals(FIXED_COLUMNS, empty.getColumnNames());
+            assertEquals(0, empty.getColumn(DetectionColumnWriter.COLUMN_X).remaining());
+
+            assertColumn(reader.getChunks().get(1), DetectionColumnWriter.COLUMN_Y, 20);
+        }
+    }
+
+    private static PathObject circle(double x, double y, double radius, double score, int nModels) {
+        return circle(x, y, radius, score, nModels, Map.of());
+    }
+
+    private static PathObject circle(double x, double y, double radius, double score, int nModels, Map<String, Double> extra) {
+        Map<String, Double> values = new LinkedHashMap<>();
+        values.put(CircleDetection.MEASUREMENT_SCORE, score);
+        values.put(CircleDetection.MEASUREMENT_RADIUS, radius);
+        values.put(CircleDetection.MEASUREMENT_AGREEMENT, (double) nModels);
+        // Sorted so the column order doesn't depend on the map
+        extra.keySet().stream().sorted().forEach(name -> values.put(name, extra.get(name)));
+        return PathObjects.createDetectionObject(
+                ROIs.createEllipseROI(x - radius, y - radius, radius * 2, radius * 2, ImagePlane.getDefaultPlane()),
+                PathClass.fromString(CircleDetection.PATH_CLASS_NAME), measurements(values));
+    }
+
+    private static MeasurementList measurements(Map<String, Double> values) {
+        MeasurementList measurements = MeasurementListFactory.createMeasurementList(values.size(), MeasurementList.MeasurementListType.GENERAL);
+        for (Map.Entry<String, Double> entry : values.entrySet()) {
+            measurements.put(entry.getKey(), entry.getValue());
+        }
+        measurements.close();
+        return measurements;
+    }
+
+    private static List<String> getSlideIds(DetectionColumnReader reader) {
+        return reader.getChunks().stream().map(DetectionColumnReader.Chunk::getSlideId).toList();
+    }
+
+    // Values are stored as floats, and NaN marks a missing measurement
+    private static void assertColumn(DetectionColumnReader.Chunk chunk, String name, double... expected) {
+        FloatBuffer column = chunk.getColumn(name);
+        assertEquals(expected.length, chunk.getRowCount());
+        assertEquals(expected.length, column.remaining());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals((float) expected[i], column.get(i));
+        }
+    }
+
+}
@@ -0,0 +1,203 @@
+package qupath.ext.template;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class DownloadManagerTest {
+
+    private static final String FILE_NAME = "model.pth";
+    private static final int FILE_SIZE = 1024 * 1024 + 17;
+
+    @TempDir
+    Path directory;
+
+    private HttpServer server;
+    private volatile byte[] content;
+    private volatile boolean supportsRange = true;
+    // Range header of each request, or null if it had none
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        content = randomBytes(1);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void test_resumePartialFile() throws Exception {
+        int existing = FILE_SIZE / 3;
+        Files.write(directory.resolve(FILE_NAME + ".part"), Arrays.copyOf(content, existing));
+
+        DownloadManager manager = createManager();
+        Path path = download(manager, artifact(null));
+
+        assertArrayEquals(content, Files.readAllBytes(path));
+        assertEquals(List.of("bytes=" + existing + "-"), ranges);
+        assertEquals(FILE_SIZE - existing, manager.getBytesDownloaded());
+        assertFalse(Files.exists(directory.resolve(FILE_NAME + ".part")));
+    }
+
+    @Test
+    public void test_serverIgnoresRange() throws Exception {
+        supportsRange = false;
+        // Bytes that aren't the start of the file, so appending to them would give the wrong file
+        Files.write(directory.resolve(FILE_NAME + ".part"), randomBytes(2, FILE_SIZE / 2));
+
+        DownloadManager manager = createManager();
+        Path path = download(manager, artifact(sha256(content)));
+
+        assertArrayEquals(content, Files.readAllBytes(path));
+        assertEquals(1, ranges.size());
+        assertEquals(FILE_SIZE, manager.getBytesDownloaded());
+    }
+
+    @Test
+    public void test_rangeNotSatisfiableOnCompletePart() throws Exception {
+        Files.write(directory.resolve(FILE_NAME + ".part"), content);
+
+        DownloadManager manager = createManager();
+        Path path = download(manager, artifact(null));
+
+        assertArrayEquals(content, Files.readAllBytes(path));
+        assertEquals(List.of("bytes=" + FILE_SIZE + "-"), ranges);
+        assertEquals(0, manager.getBytesDownloaded());
+    }
+
+    @Test
+    public void test_pinnedHashMismatch() throws Exception {
+        String otherHash = sha256(randomBytes(3));
+
+        assertThrows(IOException.class, () -> download(createManager(), artifact(otherHash)));
+        assertFalse(Files.exists(directory.resolve(FILE_NAME)));
+        assertFalse(Files.exists(directory.resolve(FILE_NAME + ".part")));
+        assertNull(DownloadManager.getRecordedHash(directory, artifact(otherHash)));
+    }
+
+    @Test
+    public void test_reuseExistingFile() throws Exception {
+        Path path = download(createManager(), artifact(null));
+        assertEquals(DownloadManager.sha256(path), DownloadManager.getRecordedHash(directory, artifact(null)));
+        ranges.clear();
+
+        // Checked against the recorded hash, with no request
+        DownloadManager manager = createManager();
+        download(manager, artifact(null));
+        assertEquals(List.of(), ranges);
+        assertEquals(0, manager.getBytesDownloaded());
+
+        // The same size but changed on disk, so downloaded again in full
+        Files.write(path, randomBytes(4));
+        manager = createManager();
+        download(manager, artifact(null));
+        assertArrayEquals(content, Files.readAllBytes(path));
+        assertEquals(Collections.singletonList(null), ranges);
+        assertEquals(FILE_SIZE, manager.getBytesDownloaded());
+    }
+
+    @Test
+    public void test_rejectChangedRemoteFile() throws Exception {
+        Path path = download(createManager(), artifact(null));
+        byte[] original = content;
+
+        // The URL now serves another file, which mustn't replace the one first downloaded
+        content = randomBytes(5);
+        Files.delete(path);
+        assertThrows(IOException.class, () -> download(createManager(), artifact(null)));
+        assertFalse(Files.exists(path));
+        assertEquals(sha256(original), DownloadManager.getRecordedHash(directory, artifact(null)));
+    }
+
+    private DownloadManager createManager() {
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .build();
+        return new DownloadManager(client, 2);
+    }
+
+    private Path download(DownloadManager manager, DownloadManager.Artifact artifact) throws Exception {
+        List<Path> paths = manager.downloadAll(List.of(artifact), directory, null);
+        assertEquals(1, paths.size());
+        return paths.get(0);
+    }
+
+    private DownloadManager.Artifact artifact(String sha256) {
+        String url = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/models/" + FILE_NAME;
+        return new DownloadManager.Artifact(url, FILE_NAME, sha256);
+    }
+
+    private static String sha256(byte[] bytes) throws NoSuchAlgorithmException {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    }
+
+    private static byte[] randomBytes(long seed) {
+        return randomBytes(seed, FILE_SIZE);
+    }
+
+    private static byte[] randomBytes(long seed, int size) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    // Serve the content, honouring a Range header like 'bytes=123-' if ranges are supported
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            ranges.add(range);
+            byte[] body = content;
+            if (range == null || !supportsRange) {
+                send(exchange, 200, body);
+                return;
+            }
+            int start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            if (start >= body.length) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + body.length);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (body.length - 1) + "/" + body.length);
+            send(exchange, 206, Arrays.copyOfRange(body, start, body.length));
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+}